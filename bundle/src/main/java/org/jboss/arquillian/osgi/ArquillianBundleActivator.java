@@ -56,6 +56,7 @@ public class ArquillianBundleActivator implements BundleActivator {
     private static Logger log = Logger.getLogger(ArquillianBundleActivator.class.getName());
 
     private JMXTestRunner testRunner;
+    private BundleUpload bundleUpload;
     private long arqBundleId;
 
     public void start(final BundleContext context) throws Exception {
@@ -119,12 +120,19 @@ public class ArquillianBundleActivator implements BundleActivator {
             }
         };
         testRunner.registerMBean(mbeanServer);
+
+        // Register the BundleUpload
+        bundleUpload = new BundleUpload(context);
+        bundleUpload.registerMBean(mbeanServer);
     }
 
     public void stop(BundleContext context) throws Exception {
         // Unregister the JMXTestRunner
         MBeanServer mbeanServer = findOrCreateMBeanServer();
         testRunner.unregisterMBean(mbeanServer);
+
+        // Unregister the BundleUpload
+        bundleUpload.unregisterMBean(mbeanServer);
     }
 
     private MBeanServer findOrCreateMBeanServer() {
@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleException;
+
+/**
+ * Stores uploaded bundle content in the data area of the arquillian bundle, keyed by its SHA-256 hash.
+ */
+public class BundleUpload implements BundleUploadMBean {
+
+    // Provide logging
+    private static Logger log = Logger.getLogger(BundleUpload.class.getName());
+
+    private final BundleContext syscontext;
+    private final File storeDir;
+    private final Map<String, Upload> uploads = new ConcurrentHashMap<String, Upload>();
+
+    public BundleUpload(BundleContext context) {
+        this.syscontext = context.getBundle(0).getBundleContext();
+        File dataDir = context.getDataFile("uploads");
+        if (dataDir == null)
+            dataDir = new File(System.getProperty("java.io.tmpdir"), "arquillian-osgi-uploads");
+        this.storeDir = dataDir;
+    }
+
+    public void registerMBean(MBeanServer mbeanServer) throws JMException {
+        mbeanServer.registerMBean(this, new ObjectName(OBJECT_NAME));
+    }
+
+    public void unregisterMBean(MBeanServer mbeanServer) throws JMException {
+        ObjectName oname = new ObjectName(OBJECT_NAME);
+        if (mbeanServer.isRegistered(oname)) {
+            mbeanServer.unregisterMBean(oname);
+        }
+        for (String uploadId : uploads.keySet()) {
+            cancelUpload(uploadId);
+        }
+    }
+
+    @Override
+    public boolean hasContent(String sha256) {
+        return getContentFile(sha256).isFile();
+    }
+
+    @Override
+    public String beginUpload(String sha256) throws IOException {
+        getContentFile(sha256);
+        if (!storeDir.isDirectory() && !storeDir.mkdirs())
+            throw new IOException("Cannot create upload store: " + storeDir);
+
+        String uploadId = UUID.randomUUID().toString();
+        File tmpFile = new File(storeDir, uploadId + ".part");
+        uploads.put(uploadId, new Upload(sha256, tmpFile));
+        return uploadId;
+    }
+
+    @Override
+    public void uploadChunk(String uploadId, byte[] chunk, boolean deflated) throws IOException {
+        getUpload(uploadId).write(chunk, deflated);
+    }
+
+    @Override
+    public void completeUpload(String uploadId) throws IOException {
+        Upload upload = getUpload(uploadId);
+        uploads.remove(uploadId);
+        try {
+            upload.close();
+            String actual = toHexString(upload.digest.digest());
+            if (!actual.equals(upload.sha256))
+                throw new IOException("Content hash mismatch, expected " + upload.sha256 + " but was " + actual);
+
+            File contentFile = getContentFile(upload.sha256);
+            if (!upload.tmpFile.renameTo(contentFile) && !contentFile.isFile())
+                throw new IOException("Cannot store upload: " + contentFile);
+
+            log.fine("Stored upload: " + contentFile + " (" + upload.size + " bytes)");
+        } finally {
+            upload.tmpFile.delete();
+        }
+    }
+
+    @Override
+    public void cancelUpload(String uploadId) {
+        Upload upload = uploads.remove(uploadId);
+        if (upload != null) {
+            try {
+                upload.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+            upload.tmpFile.delete();
+        }
+    }
+
+    @Override
+    public long installBundle(String location, String sha256) throws IOException, BundleException {
+        InputStream input = openContent(sha256);
+        try {
+            return syscontext.installBundle(location, input).getBundleId();
+        } finally {
+            input.close();
+        }
+    }
+
+    @Override
+    public void updateBundle(long bundleId, String sha256) throws IOException, BundleException {
+        Bundle bundle = syscontext.getBundle(bundleId);
+        if (bundle == null)
+            throw new BundleException("Bundle not installed: " + bundleId);
+
+        InputStream input = openContent(sha256);
+        try {
+            bundle.update(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    private InputStream openContent(String sha256) throws IOException {
+        File contentFile = getContentFile(sha256);
+        if (!contentFile.isFile())
+            throw new IOException("No uploaded content for: " + sha256);
+        return new FileInputStream(contentFile);
+    }
+
+    private File getContentFile(String sha256) {
+        if (sha256 == null || !sha256.matches("[0-9a-f]{64}"))
+            throw new IllegalArgumentException("Invalid SHA-256 hash: " + sha256);
+        return new File(storeDir, sha256 + ".jar");
+    }
+
+    private Upload getUpload(String uploadId) throws IOException {
+        Upload upload = uploads.get(uploadId);
+        if (upload == null)
+            throw new IOException("Unknown upload: " + uploadId);
+        return upload;
+    }
+
+    private static String toHexString(byte[] bytes) {
+        StringBuilder builder = new StringBuilder();
+        for (byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    static class Upload {
+        final String sha256;
+        final File tmpFile;
+        final MessageDigest digest;
+        final OutputStream output;
+        final Inflater inflater = new Inflater();
+        final byte[] buffer = new byte[64 * 1024];
+        long size;
+
+        Upload(String sha256, File tmpFile) throws IOException {
+            this.sha256 = sha256;
+            this.tmpFile = tmpFile;
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException ex) {
+                throw new IllegalStateException(ex);
+            }
+            this.output = new FileOutputStream(tmpFile);
+        }
+
+        synchronized void write(byte[] chunk, boolean deflated) throws IOException {
+            if (!deflated) {
+                append(chunk, chunk.length);
+                return;
+            }
+            inflater.reset();
+            inflater.setInput(chunk);
+            try {
+                while (!inflater.finished()) {
+                    int num = inflater.inflate(buffer);
+                    if (num == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        throw new IOException("Truncated chunk");
+                    append(buffer, num);
+                }
+            } catch (DataFormatException ex) {
+                throw new IOException("Invalid chunk: " + ex.getMessage());
+            }
+        }
+
+        private void append(byte[] bytes, int length) throws IOException {
+            output.write(bytes, 0, length);
+            digest.update(bytes, 0, length);
+            size += length;
+        }
+
+        synchronized void close() throws IOException {
+            inflater.end();
+            output.close();
+        }
+    }
+}
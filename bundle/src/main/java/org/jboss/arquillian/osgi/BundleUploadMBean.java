@@ -0,0 +1,67 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.osgi;
+
+import java.io.IOException;
+
+import org.osgi.framework.BundleException;
+
+/**
+ * Receives bundle content from a remote client and installs it in the framework.
+ *
+ * Content is addressed by its SHA-256 hash. A client first asks whether the content is
+ * already stored, and uploads it in chunks only if it is not.
+ */
+public interface BundleUploadMBean {
+
+    String OBJECT_NAME = "jboss.arquillian:service=bundle-upload";
+
+    /**
+     * @return true if content with the given SHA-256 hash is stored
+     */
+    boolean hasContent(String sha256);
+
+    /**
+     * Start an upload of content with the given SHA-256 hash
+     * @return the upload id
+     */
+    String beginUpload(String sha256) throws IOException;
+
+    /**
+     * Append a chunk to an upload
+     * @param deflated true if the chunk is compressed with {@link java.util.zip.Deflater}
+     */
+    void uploadChunk(String uploadId, byte[] chunk, boolean deflated) throws IOException;
+
+    /**
+     * Verify the hash of an upload and store its content
+     */
+    void completeUpload(String uploadId) throws IOException;
+
+    void cancelUpload(String uploadId);
+
+    /**
+     * Install stored content
+     * @return the bundle id
+     */
+    long installBundle(String location, String sha256) throws IOException, BundleException;
+
+    /**
+     * Update a bundle from stored content
+     */
+    void updateBundle(long bundleId, String sha256) throws IOException, BundleException;
+}
@@ -22,7 +22,9 @@
 package org.jboss.arquillian.container.osgi;
 
 import java.io.InputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.jar.Attributes;
@@ -30,6 +32,8 @@ import java.util.jar.JarFile;
 import java.util.jar.Manifest;
 
 import org.jboss.arquillian.container.test.spi.client.deployment.ApplicationArchiveProcessor;
+import org.jboss.arquillian.protocol.osgi.ManifestHeader;
+import org.jboss.arquillian.protocol.osgi.ManifestHeader.Clause;
 import org.jboss.arquillian.test.spi.TestClass;
 import org.jboss.osgi.metadata.OSGiManifestBuilder;
 import org.jboss.shrinkwrap.api.Archive;
@@ -48,6 +52,20 @@ import org.osgi.framework.Constants;
  */
 public abstract class AbstractOSGiApplicationArchiveProcessor implements ApplicationArchiveProcessor {
 
+    /**
+     * Set to true to also import the packages that the classes of the archive reference
+     */
+    public static final String IMPORT_ANALYSIS_PROPERTY = "arquillian.osgi.import.analysis";
+
+    /**
+     * Comma separated packages that the import analysis leaves out, <code>org.acme.*</code> also leaves out the subpackages
+     */
+    public static final String IMPORT_EXCLUDE_PROPERTY = "arquillian.osgi.import.exclude";
+
+    private static final String[] COMMON_IMPORTS = { "org.jboss.arquillian.container.test.api", "org.jboss.arquillian.junit",
+            "org.jboss.arquillian.osgi", "org.jboss.arquillian.test.api", "org.jboss.shrinkwrap.api", "org.jboss.shrinkwrap.api.asset",
+            "org.jboss.shrinkwrap.api.spec", "org.junit", "org.junit.runner", "org.osgi.framework" };
+
     @Override
     public void process(Archive<?> appArchive, TestClass testClass) {
         Manifest manifest = getBundleManifest(appArchive);
@@ -81,22 +99,17 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
 
         // Check if the application archive already contains the test classes
         if (!appArchive.getName().endsWith(".war")) {
+            Set<String> classPaths = getClassPathIndex(appArchive);
             for (Class<?> clazz : classes) {
-                boolean testClassFound = false;
                 String path = clazz.getName().replace('.', '/') + ".class";
-                for (ArchivePath auxpath : appArchive.getContent().keySet()) {
-                    if (auxpath.toString().endsWith(path)) {
-                        testClassFound = true;
-                        break;
-                    }
-                }
-                if (testClassFound == false) {
+                if (!classPaths.contains(path)) {
                     ((ClassContainer<?>) appArchive).addClass(clazz);
                 }
             }
         }
 
         final OSGiManifestBuilder builder = OSGiManifestBuilder.newInstance();
+        List<Clause> imports = new ArrayList<Clause>();
         Attributes attributes = manifest.getMainAttributes();
         for (Entry<Object, Object> entry : attributes.entrySet()) {
             String key = entry.getKey().toString();
@@ -105,8 +118,7 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
                 continue;
 
             if (key.equals(Constants.IMPORT_PACKAGE)) {
-                String[] imports = splitWithComma(value);
-                builder.addImportPackages(imports);
+                imports.addAll(ManifestHeader.parse(value));
                 continue;
             }
 
@@ -123,9 +135,28 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
         builder.addExportPackages(javaClass);
 
         // Add common test imports
-        builder.addImportPackages("org.jboss.arquillian.container.test.api", "org.jboss.arquillian.junit", "org.jboss.arquillian.osgi", "org.jboss.arquillian.test.api");
-        builder.addImportPackages("org.jboss.shrinkwrap.api", "org.jboss.shrinkwrap.api.asset", "org.jboss.shrinkwrap.api.spec");
-        builder.addImportPackages("org.junit", "org.junit.runner", "org.osgi.framework");
+        for (String packageName : COMMON_IMPORTS) {
+            imports.addAll(ManifestHeader.parse(packageName));
+        }
+
+        // Import the other packages that the classes reference
+        if (isImportAnalysis(attributes)) {
+            Set<String> exported = new HashSet<String>();
+            for (Clause clause : ManifestHeader.parse(attributes.getValue(Constants.EXPORT_PACKAGE))) {
+                exported.addAll(clause.getPaths());
+            }
+            String[] excludes = System.getProperty(IMPORT_EXCLUDE_PROPERTY, "").split(",");
+            for (String packageName : ImportPackageAnalyzer.getInstance().getImportedPackages(appArchive)) {
+                if (!exported.contains(packageName) && !isExcluded(packageName, excludes)) {
+                    imports.addAll(ManifestHeader.parse(packageName));
+                }
+            }
+        }
+
+        // One clause per package, the attributes of a declared import are kept
+        for (Clause clause : ManifestHeader.mergeImports(imports)) {
+            builder.addImportPackages(clause.toString());
+        }
 
         // Add or replace the manifest in the archive
         appArchive.delete(ArchivePaths.create(JarFile.MANIFEST_NAME));
@@ -136,6 +167,49 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
         }, JarFile.MANIFEST_NAME);
     }
 
+    /**
+     * Classes on an embedded Bundle-ClassPath are not analyzed, so their packages cannot be told apart from imports
+     */
+    private static boolean isImportAnalysis(Attributes attributes) {
+        if (!Boolean.getBoolean(IMPORT_ANALYSIS_PROPERTY))
+            return false;
+        String classPath = attributes.getValue(Constants.BUNDLE_CLASSPATH);
+        return classPath == null || classPath.trim().equals(".");
+    }
+
+    private static boolean isExcluded(String packageName, String[] excludes) {
+        for (String exclude : excludes) {
+            exclude = exclude.trim();
+            if (exclude.endsWith(".*")) {
+                String prefix = exclude.substring(0, exclude.length() - 2);
+                if (packageName.equals(prefix) || packageName.startsWith(prefix + "."))
+                    return true;
+            } else if (packageName.equals(exclude)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Index the class entries of the archive by every path suffix that starts at a directory boundary,
+     * so that <code>org/acme/Foo.class</code> also finds <code>/WEB-INF/classes/org/acme/Foo.class</code>
+     */
+    private static Set<String> getClassPathIndex(Archive<?> archive) {
+        Set<String> index = new HashSet<String>();
+        for (ArchivePath archivePath : archive.getContent().keySet()) {
+            String path = archivePath.get();
+            if (!path.endsWith(".class"))
+                continue;
+            int slash = -1;
+            do {
+                index.add(path.substring(slash + 1));
+                slash = path.indexOf('/', slash + 1);
+            } while (slash >= 0);
+        }
+        return index;
+    }
+
     private void assertValidBundleArchive(Archive<?> archive) {
         try {
             Manifest manifest = getBundleManifest(archive);
@@ -163,21 +237,6 @@ public abstract class AbstractOSGiApplicationArchiveProcessor implements Applica
     private static String[] splitWithComma(String value) {
         // Header clauses are split with comma but comma can also appear in version parameter or in a custom parameter for "Attribute Matching"
         // e.g. Import-Package: org.jboss.arquillian.junit;version="[X.0.0,Y.0.0)";extra="A,B",...
-
-        // After each comma must be even number of double-quotes
-        return value.split(
-            "(?x)       " +   // Free-Spacing Mode
-            ",          " +   // Split with comma
-            "(?=        " +   // Followed by
-            "  (?:      " +   // Start a non-capture group
-            "    [^\"]* " +   // 0 or more non-quote characters
-            "    \"     " +   // 1 quote
-            "    [^\"]* " +   // 0 or more non-quote characters
-            "    \"     " +   // 1 quote
-            "  )*       " +   // 0 or more repetition of non-capture group (multiple of 2 quotes will be even)
-            "  [^\"]*   " +   // Finally 0 or more non-quotes
-            "  $        " +   // Till the end  (This is necessary, else every comma will satisfy the condition)
-            ")          "     // End look-ahead
-        );
+        return ManifestHeader.split(value);
     }
 }
@@ -0,0 +1,187 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jboss.arquillian.container.osgi.EmbeddedDeployableContainer.AbstractContainerLogger;
+import org.jboss.arquillian.container.osgi.EmbeddedDeployableContainer.ContainerLogger;
+
+/**
+ * A {@link ContainerLogger} that hands messages to a shared background writer.
+ *
+ * Messages below the level of the delegate are discarded by the caller. When the bounded queue
+ * is full, DEBUG and INFO messages are dropped and counted, while WARN and ERROR messages are
+ * written by the caller.
+ */
+public class AsyncContainerLogger extends AbstractContainerLogger {
+
+    static final int QUEUE_CAPACITY = 4096;
+
+    private static final Backend backend = new Backend(QUEUE_CAPACITY);
+
+    private final ContainerLogger delegate;
+
+    public AsyncContainerLogger(ContainerLogger delegate) {
+        if (delegate == null)
+            throw new IllegalArgumentException("Null delegate");
+        this.delegate = delegate;
+    }
+
+    @Override
+    public boolean isEnabled(Level level) {
+        // Plain ContainerLogger implementations cannot tell, so every level is enabled for them
+        return !(delegate instanceof AbstractContainerLogger) || ((AbstractContainerLogger) delegate).isEnabled(level);
+    }
+
+    @Override
+    public void log(Level level, String message, Throwable th) {
+        if (isEnabled(level)) {
+            backend.enqueue(new Entry(delegate, level, message, th));
+        }
+    }
+
+    /**
+     * Wait until the messages submitted so far have been written
+     */
+    public void flush(long timeout, TimeUnit unit) {
+        backend.flush(unit.toNanos(timeout));
+        long dropped = backend.dropped.getAndSet(0);
+        if (dropped > 0) {
+            delegate.log(Level.WARN, "Dropped " + dropped + " log messages, the log queue was full", null);
+        }
+    }
+
+    static final class Entry {
+        final ContainerLogger target;
+        final Level level;
+        final String message;
+        final Throwable throwable;
+
+        Entry(ContainerLogger target, Level level, String message, Throwable throwable) {
+            this.target = target;
+            this.level = level;
+            this.message = message;
+            this.throwable = throwable;
+        }
+
+        void write() {
+            try {
+                target.log(level, message, throwable);
+            } catch (RuntimeException ex) {
+                // a failing sink must not stop the writer
+            }
+        }
+    }
+
+    static final class Backend implements Runnable {
+
+        private final int capacity;
+        private final Queue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+        private final AtomicInteger size = new AtomicInteger();
+        private final AtomicLong submitted = new AtomicLong();
+        private final AtomicLong written = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicBoolean started = new AtomicBoolean();
+        private volatile Thread worker;
+        private volatile boolean waiting;
+
+        Backend(int capacity) {
+            this.capacity = capacity;
+        }
+
+        void enqueue(Entry entry) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                if (entry.level == Level.WARN || entry.level == Level.ERROR) {
+                    entry.write();
+                } else {
+                    dropped.incrementAndGet();
+                }
+                return;
+            }
+            ensureStarted();
+            submitted.incrementAndGet();
+            queue.offer(entry);
+            if (waiting) {
+                LockSupport.unpark(worker);
+            }
+        }
+
+        void flush(long timeoutNanos) {
+            long target = submitted.get();
+            long deadline = System.nanoTime() + timeoutNanos;
+            while (written.get() < target && Thread.currentThread() != worker) {
+                if (System.nanoTime() - deadline > 0)
+                    return;
+                LockSupport.unpark(worker);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Entry entry = queue.poll();
+                if (entry == null) {
+                    waiting = true;
+                    if (queue.isEmpty()) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(100));
+                    }
+                    waiting = false;
+                    continue;
+                }
+                size.decrementAndGet();
+                entry.write();
+                written.incrementAndGet();
+            }
+        }
+
+        private void drain() {
+            Entry entry;
+            while ((entry = queue.poll()) != null) {
+                size.decrementAndGet();
+                entry.write();
+                written.incrementAndGet();
+            }
+        }
+
+        private void ensureStarted() {
+            if (started.get() || !started.compareAndSet(false, true))
+                return;
+
+            Thread thread = new Thread(this, "arquillian-osgi-logger");
+            thread.setDaemon(true);
+            worker = thread;
+            thread.start();
+
+            // Write what is left when the JVM exits before a flush
+            Runtime.getRuntime().addShutdownHook(new Thread("arquillian-osgi-logger-shutdown") {
+                @Override
+                public void run() {
+                    drain();
+                }
+            });
+        }
+    }
+}
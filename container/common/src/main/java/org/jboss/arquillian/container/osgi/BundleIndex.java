@@ -0,0 +1,159 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.SynchronousBundleListener;
+import org.osgi.framework.Version;
+
+/**
+ * An index of the installed bundles by location and by symbolic name and version.
+ *
+ * The index is maintained by a synchronous bundle listener, so a bundle is indexed
+ * before the call that installed it returns.
+ */
+public class BundleIndex implements SynchronousBundleListener {
+
+    private final BundleContext syscontext;
+    private final Map<String, Bundle> byLocation = new HashMap<String, Bundle>();
+    private final Map<String, Bundle> byNameVersion = new HashMap<String, Bundle>();
+    private final Map<String, List<Bundle>> byName = new HashMap<String, List<Bundle>>();
+    private final Map<Long, String> indexedKeys = new HashMap<Long, String>();
+
+    public BundleIndex(BundleContext syscontext) {
+        this.syscontext = syscontext;
+    }
+
+    public void open() {
+        // Register first, so that no install between the scan and the registration is missed
+        syscontext.addBundleListener(this);
+        for (Bundle bundle : syscontext.getBundles()) {
+            synchronized (this) {
+                if (bundle.getState() != Bundle.UNINSTALLED && !indexedKeys.containsKey(bundle.getBundleId())) {
+                    add(bundle);
+                }
+            }
+        }
+    }
+
+    public void close() {
+        syscontext.removeBundleListener(this);
+        synchronized (this) {
+            byLocation.clear();
+            byNameVersion.clear();
+            byName.clear();
+            indexedKeys.clear();
+        }
+    }
+
+    @Override
+    public synchronized void bundleChanged(BundleEvent event) {
+        Bundle bundle = event.getBundle();
+        switch (event.getType()) {
+            case BundleEvent.INSTALLED:
+                remove(bundle);
+                add(bundle);
+                break;
+            case BundleEvent.UPDATED:
+                // The symbolic name or version may have changed
+                remove(bundle);
+                add(bundle);
+                break;
+            case BundleEvent.UNINSTALLED:
+                remove(bundle);
+                break;
+            default:
+                break;
+        }
+    }
+
+    public synchronized Bundle getBundleByLocation(String location) {
+        return valid(byLocation.get(location));
+    }
+
+    public synchronized Bundle getBundle(String symbolicName, String version) {
+        return valid(byNameVersion.get(symbolicName + ":" + normalize(version)));
+    }
+
+    /**
+     * Get the first installed bundle with the given symbolic name
+     */
+    public synchronized Bundle getBundleBySymbolicName(String symbolicName) {
+        List<Bundle> bundles = byName.get(symbolicName);
+        return bundles != null && !bundles.isEmpty() ? valid(bundles.get(0)) : null;
+    }
+
+    public synchronized Set<String> getLocations() {
+        return new HashSet<String>(byLocation.keySet());
+    }
+
+    private void add(Bundle bundle) {
+        String symbolicName = bundle.getSymbolicName();
+        String key = symbolicName + ":" + bundle.getVersion();
+        byLocation.put(bundle.getLocation(), bundle);
+        if (symbolicName != null) {
+            byNameVersion.put(key, bundle);
+            List<Bundle> bundles = byName.get(symbolicName);
+            if (bundles == null) {
+                bundles = new ArrayList<Bundle>(1);
+                byName.put(symbolicName, bundles);
+            }
+            bundles.add(bundle);
+        }
+        indexedKeys.put(bundle.getBundleId(), key);
+    }
+
+    private void remove(Bundle bundle) {
+        String key = indexedKeys.remove(bundle.getBundleId());
+        if (key == null)
+            return;
+
+        byLocation.remove(bundle.getLocation());
+        if (byNameVersion.get(key) == bundle) {
+            byNameVersion.remove(key);
+        }
+        String symbolicName = key.substring(0, key.lastIndexOf(':'));
+        List<Bundle> bundles = byName.get(symbolicName);
+        if (bundles != null) {
+            bundles.remove(bundle);
+            if (bundles.isEmpty()) {
+                byName.remove(symbolicName);
+            }
+        }
+    }
+
+    private Bundle valid(Bundle bundle) {
+        return bundle != null && bundle.getState() != Bundle.UNINSTALLED ? bundle : null;
+    }
+
+    private static String normalize(String version) {
+        try {
+            return Version.parseVersion(version).toString();
+        } catch (IllegalArgumentException ex) {
+            return version;
+        }
+    }
+}
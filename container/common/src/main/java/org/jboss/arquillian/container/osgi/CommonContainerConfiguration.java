@@ -33,6 +33,8 @@ public abstract class CommonContainerConfiguration implements ContainerConfigura
     private String bootstrapCompleteService;
     private List<String> bootstrapCompleteServices;
     private boolean autostartBundle;
+    private boolean reuseDeployments;
+    private String metricsReportDir;
 
     public String getBootstrapCompleteService() {
         return bootstrapCompleteService;
@@ -54,6 +56,28 @@ public abstract class CommonContainerConfiguration implements ContainerConfigura
         this.autostartBundle = autostartBundle;
     }
 
+    /**
+     * @return true if undeployed bundles stay installed and are reused or updated when an archive with the same name is deployed again
+     */
+    public boolean isReuseDeployments() {
+        return reuseDeployments;
+    }
+
+    public void setReuseDeployments(boolean reuseDeployments) {
+        this.reuseDeployments = reuseDeployments;
+    }
+
+    /**
+     * @return The directory the JSON metrics report is written to on container stop, or null if no report is written
+     */
+    public String getMetricsReportDir() {
+        return metricsReportDir;
+    }
+
+    public void setMetricsReportDir(String metricsReportDir) {
+        this.metricsReportDir = metricsReportDir;
+    }
+
     @Override
     public void validate() throws ConfigurationException {
         if (bootstrapCompleteService != null) {
@@ -61,6 +85,9 @@ public abstract class CommonContainerConfiguration implements ContainerConfigura
             bootstrapCompleteServices = new ArrayList<String>();
             bootstrapCompleteServices = Arrays.asList(bootstrapCompleteService.split(","));
         }
+        if (metricsReportDir != null && metricsReportDir.trim().length() == 0) {
+            metricsReportDir = null;
+        }
     }
 
 
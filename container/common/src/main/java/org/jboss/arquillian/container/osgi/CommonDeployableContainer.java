@@ -1,12 +1,18 @@
 package org.jboss.arquillian.container.osgi;
 
+import java.io.File;
+import java.util.ArrayList;
 import java.util.List;
 
+import org.jboss.arquillian.container.osgi.metrics.ContainerMetrics;
 import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
+import org.jboss.arquillian.container.spi.client.container.DeploymentException;
+import org.jboss.shrinkwrap.api.Archive;
 
 public abstract class CommonDeployableContainer <T extends CommonContainerConfiguration> implements DeployableContainer<T> {
 
     private CommonContainerConfiguration config;
+    private ContainerMetrics metrics;
 
     /**
      * @return Returns true if container starts bundles after deployment automaticly otherwise returns false
@@ -15,6 +21,13 @@ public abstract class CommonDeployableContainer <T extends CommonContainerConfig
         return config.isAutostartBundle();
     }
 
+    /**
+     * @return Returns true if undeployed bundles are kept and reused when the same archive is deployed again
+     */
+    public boolean isReuseDeployments() {
+        return config.isReuseDeployments();
+    }
+
     /**
      * Start a bundle identified by <code>symbolicName</code> and <code>version</code>
      * @param symbolicName Bundle symbolic name
@@ -23,6 +36,49 @@ public abstract class CommonDeployableContainer <T extends CommonContainerConfig
      */
     public abstract void startBundle(String symbolicName, String version) throws Exception;
 
+    /**
+     * Deploy all given archives. If an archive cannot be deployed, the archives of this batch
+     * that were already deployed are undeployed again.
+     *
+     * The default implementation deploys the archives one by one and does not report resolve timings.
+     * Containers that can resolve a batch in a single resolver run override this method.
+     *
+     * @param archives The archives to deploy
+     * @return The deployment timings in the order of the given archives
+     * @throws DeploymentException If an archive could not be deployed
+     */
+    public List<DeploymentTiming> deploy(List<Archive<?>> archives) throws DeploymentException {
+        List<DeploymentTiming> timings = new ArrayList<DeploymentTiming>();
+        List<Archive<?>> deployed = new ArrayList<Archive<?>>();
+        boolean success = false;
+        try {
+            for (Archive<?> archive : archives) {
+                long start = System.nanoTime();
+                deploy(archive);
+                deployed.add(archive);
+                timings.add(new DeploymentTiming(archive.getName(), -1, System.nanoTime() - start));
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                rollback(deployed);
+            }
+        }
+        return timings;
+    }
+
+    private void rollback(List<Archive<?>> deployed) {
+        for (int i = deployed.size() - 1; i >= 0; i--) {
+            try {
+                undeploy(deployed.get(i));
+            } catch (DeploymentException ex) {
+                // ignore, the original failure is reported
+            } catch (RuntimeException ex) {
+                // ignore, the original failure is reported
+            }
+        }
+    }
+
     /**
      * Await bootstrap complete services
      */
@@ -42,8 +98,34 @@ public abstract class CommonDeployableContainer <T extends CommonContainerConfig
      */
     protected abstract void awaitBootstrapCompleteService(String name);
 
+    /**
+     * @return The lifecycle phase timings of this container
+     */
+    public ContainerMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Register the metrics MBean, called when the container starts
+     */
+    protected void startMetrics() {
+        metrics.registerMBean();
+    }
+
+    /**
+     * Write the metrics report and unregister the metrics MBean, called when the container stops
+     */
+    protected void stopMetrics() {
+        String reportDir = config.getMetricsReportDir();
+        if (reportDir != null) {
+            metrics.writeReport(new File(reportDir).getAbsoluteFile());
+        }
+        metrics.unregisterMBean();
+    }
+
     @Override
     public void setup(T configuration) {
         this.config = configuration;
+        this.metrics = new ContainerMetrics(getClass().getSimpleName() + "@" + Integer.toHexString(System.identityHashCode(this)));
     }
 }
@@ -18,9 +18,13 @@ package org.jboss.arquillian.container.osgi;
 
 import org.jboss.arquillian.container.spi.event.container.AfterDeploy;
 import org.jboss.arquillian.core.api.annotation.Observes;
-import org.jboss.osgi.metadata.OSGiMetaData;
-import org.jboss.osgi.metadata.OSGiMetaDataBuilder;
+import org.jboss.arquillian.protocol.osgi.ManifestHeader;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Version;
 
+import java.io.InputStream;
+import java.util.List;
+import java.util.jar.Attributes;
 import java.util.jar.Manifest;
 
 /**
@@ -34,9 +38,20 @@ public class DeploymentObserver {
         if (event.getDeployableContainer() instanceof CommonDeployableContainer) {
             CommonDeployableContainer<?> container = (CommonDeployableContainer<?>) event.getDeployableContainer();
             if (container.isAutostartBundle()) {
-                Manifest manifest = new Manifest(event.getDeployment().getArchive().get("/META-INF/MANIFEST.MF").getAsset().openStream());
-                OSGiMetaData metadata = OSGiMetaDataBuilder.load(manifest);
-                container.startBundle(metadata.getBundleSymbolicName(), metadata.getBundleVersion().toString());
+                Manifest manifest;
+                InputStream input = event.getDeployment().getArchive().get("/META-INF/MANIFEST.MF").getAsset().openStream();
+                try {
+                    manifest = new Manifest(input);
+                } finally {
+                    input.close();
+                }
+                // Only the identity headers are needed, the package headers may be large and are not parsed
+                Attributes attributes = manifest.getMainAttributes();
+                List<ManifestHeader.Clause> symbolicName = ManifestHeader.parse(attributes.getValue(Constants.BUNDLE_SYMBOLICNAME));
+                if (symbolicName.isEmpty())
+                    throw new IllegalStateException("Missing " + Constants.BUNDLE_SYMBOLICNAME + " in: " + event.getDeployment().getArchive().getName());
+                Version version = Version.parseVersion(attributes.getValue(Constants.BUNDLE_VERSION));
+                container.startBundle(symbolicName.get(0).getPaths().get(0), version.toString());
             }
         }
     }
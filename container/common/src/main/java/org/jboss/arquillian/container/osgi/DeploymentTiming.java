@@ -0,0 +1,73 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The install and resolve timings of a bundle that was deployed in a batch.
+ *
+ * The resolve time is the duration of the single resolver run for the whole batch.
+ */
+public class DeploymentTiming {
+
+    private final String location;
+    private final long bundleId;
+    private final long installNanos;
+    private long resolveNanos;
+    private boolean resolved;
+
+    public DeploymentTiming(String location, long bundleId, long installNanos) {
+        this.location = location;
+        this.bundleId = bundleId;
+        this.installNanos = installNanos;
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    /**
+     * @return The bundle id or -1 if the container does not know it
+     */
+    public long getBundleId() {
+        return bundleId;
+    }
+
+    public long getInstallTime(TimeUnit unit) {
+        return unit.convert(installNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public long getResolveTime(TimeUnit unit) {
+        return unit.convert(resolveNanos, TimeUnit.NANOSECONDS);
+    }
+
+    public boolean isResolved() {
+        return resolved;
+    }
+
+    public void setResolveResult(long resolveNanos, boolean resolved) {
+        this.resolveNanos = resolveNanos;
+        this.resolved = resolved;
+    }
+
+    @Override
+    public String toString() {
+        return "[" + bundleId + "]" + location + " install=" + getInstallTime(TimeUnit.MILLISECONDS) + "ms,resolve="
+                + getResolveTime(TimeUnit.MILLISECONDS) + "ms,resolved=" + resolved;
+    }
+}
@@ -39,6 +39,10 @@ public class EmbeddedContainerConfiguration extends CommonContainerConfiguration
     private final Map<String, String> frameworkConfiguration = new HashMap<String, String>();
     private FrameworkFactory frameworkFactory;
     private String frameworkProperties;
+    private boolean storageSnapshot;
+    private String storageSnapshotDir;
+    private boolean managedStorage;
+    private String managedStorageRoot;
 
     @Override
     public void validate() throws ConfigurationException {
@@ -59,6 +63,9 @@ public class EmbeddedContainerConfiguration extends CommonContainerConfiguration
             }
         }
 
+        if (managedStorageRoot != null && !new File(managedStorageRoot).isDirectory())
+            throw new ConfigurationException("Not a valid managed storage root: " + managedStorageRoot);
+
         // Get the {@link FrameworkFactory}
         Iterator<FrameworkFactory> factories = ServiceLoader.load(FrameworkFactory.class).iterator();
         if (factories.hasNext()) {
@@ -81,4 +88,52 @@ public class EmbeddedContainerConfiguration extends CommonContainerConfiguration
     public Map<String, String> getFrameworkConfiguration() {
         return Collections.unmodifiableMap(frameworkConfiguration);
     }
+
+    /**
+     * @return true if the framework storage is restored from a snapshot of a previous boot
+     */
+    public boolean isStorageSnapshot() {
+        return storageSnapshot;
+    }
+
+    public void setStorageSnapshot(boolean storageSnapshot) {
+        this.storageSnapshot = storageSnapshot;
+    }
+
+    public File getStorageSnapshotDir() {
+        if (storageSnapshotDir != null)
+            return new File(storageSnapshotDir).getAbsoluteFile();
+
+        return new File(System.getProperty("java.io.tmpdir"), "arquillian-osgi-snapshots");
+    }
+
+    public void setStorageSnapshotDir(String storageSnapshotDir) {
+        this.storageSnapshotDir = storageSnapshotDir;
+    }
+
+    /**
+     * @return true if each container instance gets its own framework storage that is deleted on stop
+     */
+    public boolean isManagedStorage() {
+        return managedStorage;
+    }
+
+    public void setManagedStorage(boolean managedStorage) {
+        this.managedStorage = managedStorage;
+    }
+
+    /**
+     * @return the parent of the managed storage, or null to use a RAM-backed filesystem when available
+     */
+    public File getManagedStorageRoot() {
+        return managedStorageRoot != null ? new File(managedStorageRoot).getAbsoluteFile() : null;
+    }
+
+    public void setManagedStorageRoot(String managedStorageRoot) {
+        this.managedStorageRoot = managedStorageRoot;
+    }
+
+    void putFrameworkProperty(String key, String value) {
+        frameworkConfiguration.put(key, value);
+    }
 }
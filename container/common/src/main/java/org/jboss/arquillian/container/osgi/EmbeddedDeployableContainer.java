@@ -16,13 +16,17 @@
  */
 package org.jboss.arquillian.container.osgi;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.lang.management.ManagementFactory;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -31,6 +35,9 @@ import javax.management.MBeanServer;
 import javax.management.MBeanServerConnection;
 import javax.management.MBeanServerFactory;
 
+import org.jboss.arquillian.container.osgi.metrics.Phase;
+import org.jboss.arquillian.container.osgi.util.ArchiveDigest;
+import org.jboss.arquillian.container.osgi.util.TimedInputStream;
 import org.jboss.arquillian.container.spi.client.container.DeploymentException;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
 import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
@@ -39,14 +46,17 @@ import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaD
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.descriptor.api.Descriptor;
-import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleEvent;
 import org.osgi.framework.BundleException;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkEvent;
+import org.osgi.framework.FrameworkListener;
 import org.osgi.framework.ServiceReference;
 import org.osgi.framework.launch.Framework;
 import org.osgi.framework.launch.FrameworkFactory;
+import org.osgi.framework.wiring.FrameworkWiring;
 import org.osgi.util.tracker.BundleTracker;
 import org.osgi.util.tracker.ServiceTracker;
 
@@ -84,11 +94,18 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         void log(Level level, String message, Throwable th);
     }
 
-    private ContainerLogger log;
+    private AsyncContainerLogger log;
     private Framework framework;
     private BundleContext syscontext;
+    private BundleIndex bundleIndex;
     private MBeanServerConnection mbeanServer;
     private EmbeddedContainerConfiguration configuration;
+    private FrameworkStorageSnapshot storageSnapshot;
+    private ManagedFrameworkStorage managedStorage;
+    private boolean restoreSnapshot;
+    private Set<String> baselineLocations;
+    private final Map<String, String> contentHashes = new HashMap<String, String>();
+    private final Set<String> retainedLocations = new HashSet<String>();
 
     @Override
     public ProtocolDescription getDefaultProtocol() {
@@ -99,7 +116,9 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
     public void setup(T configuration) {
         super.setup(configuration);
         this.configuration = configuration;
-        this.log = getLogger();
+        this.log = new AsyncContainerLogger(getLogger());
+        this.managedStorage = createManagedStorage(configuration);
+        this.storageSnapshot = createStorageSnapshot(configuration);
         this.framework = createFramework(configuration);
         this.mbeanServer = getMBeanServerConnection();
     }
@@ -119,6 +138,41 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         };
     }
 
+    protected ManagedFrameworkStorage createManagedStorage(T conf) {
+        if (!conf.isManagedStorage())
+            return null;
+
+        ManagedFrameworkStorage storage;
+        try {
+            storage = ManagedFrameworkStorage.create(conf.getManagedStorageRoot());
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot create managed framework storage", ex);
+        }
+        if (conf.getManagedStorageRoot() == null && !storage.isRamBacked()) {
+            log.info("No RAM-backed filesystem available, using: " + storage);
+        }
+        conf.putFrameworkProperty(Constants.FRAMEWORK_STORAGE, storage.getStorageDir().getPath());
+        return storage;
+    }
+
+    protected FrameworkStorageSnapshot createStorageSnapshot(T conf) {
+        if (!conf.isStorageSnapshot())
+            return null;
+
+        FrameworkStorageSnapshot snapshot = FrameworkStorageSnapshot.create(conf, getArquillianBundleVersion());
+        if (snapshot == null) {
+            log.warn("Cannot use storage snapshot without: " + Constants.FRAMEWORK_STORAGE);
+            return null;
+        }
+
+        // Do not let the framework clean the storage we are about to restore
+        restoreSnapshot = snapshot.exists();
+        if (restoreSnapshot) {
+            conf.putFrameworkProperty(Constants.FRAMEWORK_STORAGE_CLEAN, "none");
+        }
+        return snapshot;
+    }
+
     protected Framework createFramework(T conf) {
         FrameworkFactory factory = conf.getFrameworkFactory();
         if (factory == null)
@@ -150,20 +204,34 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
 
     @Override
     public void startBundle(String symbolicName, String version) throws Exception {
-        for (Bundle bundle : syscontext.getBundles()) {
-            if (bundle.getSymbolicName().equals(symbolicName) && bundle.getVersion().toString().equals(version)) {
-                bundle.start();
-                return;
-            }
-        }
-        throw new IllegalStateException("Bundle '" + symbolicName + ":" + version + "' was not found");
+        Bundle bundle = bundleIndex.getBundle(symbolicName, version);
+        if (bundle == null)
+            throw new IllegalStateException("Bundle '" + symbolicName + ":" + version + "' was not found");
+
+        long start = System.nanoTime();
+        bundle.start();
+        getMetrics().recordSince(Phase.START, bundle.getLocation(), start);
     }
 
     @Override
     public void start() throws LifecycleException {
-        log.debug("Starting OSGi embedded container: " + getClass().getName());
+        if (log.isEnabled(ContainerLogger.Level.DEBUG))
+            log.debug("Starting OSGi embedded container: " + getClass().getName());
+        long startNanos = System.nanoTime();
+        startMetrics();
+        if (restoreSnapshot) {
+            try {
+                storageSnapshot.restore();
+                log.info("Restored framework storage from snapshot: " + storageSnapshot);
+            } catch (IOException ex) {
+                throw new LifecycleException("Cannot restore framework storage snapshot: " + storageSnapshot, ex);
+            }
+        }
+
         try {
             syscontext = startFramework();
+            bundleIndex = new BundleIndex(syscontext);
+            bundleIndex.open();
         } catch (BundleException ex) {
             throw new LifecycleException("Cannot start embedded OSGi Framework", ex);
         }
@@ -173,9 +241,39 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         // Wait for the arquillian-osgi-bundle to become ACTIVE
         awaitArquillianBundleActive(syscontext, 30, TimeUnit.SECONDS);
 
+        // Remember the baseline so that a snapshot can be captured on stop
+        if (storageSnapshot != null && !restoreSnapshot) {
+            baselineLocations = getBundleLocations();
+        }
+
+        getMetrics().recordSince(Phase.CONTAINER_START, null, startNanos);
         log.info("Started OSGi embedded container: " + getClass().getName());
     }
 
+    private Set<String> getBundleLocations() {
+        return bundleIndex.getLocations();
+    }
+
+    private void releaseManagedStorage() {
+        if (managedStorage != null) {
+            try {
+                managedStorage.release();
+                log.info("Released framework storage " + managedStorage + ", usage: " + managedStorage.getUsage() / 1024 + "KB");
+            } catch (IOException ex) {
+                log.warn("Cannot release framework storage: " + managedStorage, ex);
+            }
+        }
+    }
+
+    private void captureStorageSnapshot() {
+        try {
+            storageSnapshot.capture();
+            log.info("Captured framework storage snapshot: " + storageSnapshot);
+        } catch (IOException ex) {
+            log.warn("Cannot capture framework storage snapshot: " + storageSnapshot, ex);
+        }
+    }
+
     protected void awaitArquillianBundleActive(BundleContext syscontext, long timeout, TimeUnit unit) throws LifecycleException {
         final CountDownLatch latch = new CountDownLatch(1);
         final AtomicReference<Bundle> bundleRef = new AtomicReference<Bundle>();
@@ -251,11 +349,7 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         Bundle arqBundle = getInstalledBundle("arquillian-osgi-bundle");
         if (arqBundle == null) {
             try {
-                // Note, the bundle does not have an ImplementationVersion, we use the one of the container.
-                String arqVersion = EmbeddedDeployableContainer.class.getPackage().getImplementationVersion();
-                if (arqVersion == null) {
-                    arqVersion = System.getProperty("arquillian.osgi.version");
-                }
+                String arqVersion = getArquillianBundleVersion();
                 arqBundle = installBundle("org.jboss.arquillian.osgi", "arquillian-osgi-bundle", arqVersion, true);
             } catch (BundleException ex) {
                 throw new LifecycleException("Cannot install arquillian-osgi-bundle", ex);
@@ -263,55 +357,223 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         }
     }
 
+    protected String getArquillianBundleVersion() {
+        // Note, the bundle does not have an ImplementationVersion, we use the one of the container.
+        String arqVersion = EmbeddedDeployableContainer.class.getPackage().getImplementationVersion();
+        if (arqVersion == null) {
+            arqVersion = System.getProperty("arquillian.osgi.version");
+        }
+        return arqVersion;
+    }
+
     @Override
     public void stop() throws LifecycleException {
+        long startNanos = System.nanoTime();
         try {
+            uninstallRetainedBundles();
+
+            // Only capture storage that is back to the state it had after boot
+            boolean captureSnapshot = baselineLocations != null && baselineLocations.equals(getBundleLocations());
+            if (bundleIndex != null) {
+                bundleIndex.close();
+            }
             stopFramework();
-            framework.waitForStop(3000);
+            FrameworkEvent event = framework.waitForStop(3000);
+            if (captureSnapshot && event.getType() == FrameworkEvent.STOPPED && !storageSnapshot.exists()) {
+                captureStorageSnapshot();
+            }
         } catch (RuntimeException rte) {
             throw rte;
         } catch (Exception ex) {
             throw new LifecycleException("Cannot stop embedded OSGi Framework", ex);
         } finally {
+            releaseManagedStorage();
             syscontext = null;
+            bundleIndex = null;
+            baselineLocations = null;
+            getMetrics().recordSince(Phase.CONTAINER_STOP, null, startNanos);
+            stopMetrics();
+            if (log != null) {
+                log.flush(5, TimeUnit.SECONDS);
+            }
         }
     }
 
     @Override
     public ProtocolMetaData deploy(final Archive<?> archive) throws DeploymentException {
+        installArchive(archive);
+        return new ProtocolMetaData().addContext(new JMXContext(mbeanServer));
+    }
+
+    @Override
+    public List<DeploymentTiming> deploy(List<Archive<?>> archives) throws DeploymentException {
+        List<DeploymentTiming> timings = new ArrayList<DeploymentTiming>();
+        List<Bundle> bundles = new ArrayList<Bundle>();
+        List<Bundle> installed = new ArrayList<Bundle>();
+        boolean success = false;
         try {
-            // Export the bundle bytes
-            ZipExporter exporter = archive.as(ZipExporter.class);
-            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-            exporter.exportTo(baos);
+            for (Archive<?> archive : archives) {
+                long start = System.nanoTime();
+                Bundle bundle = installArchive(archive, installed);
+                bundles.add(bundle);
+                timings.add(new DeploymentTiming(archive.getName(), bundle.getBundleId(), System.nanoTime() - start));
+            }
+            success = true;
+        } finally {
+            if (!success) {
+                uninstallBatch(installed);
+            }
+        }
 
-            String location = archive.getName();
-            ByteArrayInputStream inputStream = new ByteArrayInputStream(baos.toByteArray());
-            log.info("Installing bundle: " + location);
-            installBundle(location, inputStream);
+        // Resolve the whole batch at once
+        FrameworkWiring frameworkWiring = syscontext.getBundle(0).adapt(FrameworkWiring.class);
+        long start = System.nanoTime();
+        frameworkWiring.resolveBundles(bundles);
+        long resolveTime = System.nanoTime() - start;
 
+        for (int i = 0; i < bundles.size(); i++) {
+            boolean resolved = (bundles.get(i).getState() & (Bundle.INSTALLED | Bundle.UNINSTALLED)) == 0;
+            timings.get(i).setResolveResult(resolveTime, resolved);
+            getMetrics().record(Phase.RESOLVE, timings.get(i).getLocation(), resolveTime);
+        }
+        log.info("Deployed bundles: " + timings);
+        return timings;
+    }
+
+    private void uninstallBatch(List<Bundle> installed) {
+        // Only bundles that were installed by the failed batch are removed, reused bundles stay
+        for (int i = installed.size() - 1; i >= 0; i--) {
+            Bundle bundle = installed.get(i);
+            String location = bundle.getLocation();
+            contentHashes.remove(location);
+            try {
+                log.info("Uninstalling bundle: " + location);
+                uninstallBundle(bundle);
+            } catch (BundleException ex) {
+                log.warn("Cannot uninstall: " + location, ex);
+            }
+        }
+    }
+
+    private Bundle installArchive(Archive<?> archive) throws DeploymentException {
+        return installArchive(archive, null);
+    }
+
+    private Bundle installArchive(Archive<?> archive, List<Bundle> installed) throws DeploymentException {
+        String location = archive.getName();
+        try {
+            String contentHash = null;
+            if (isReuseDeployments()) {
+                contentHash = ArchiveDigest.sha256(archive);
+                retainedLocations.remove(location);
+                Bundle bundle = bundleIndex.getBundleByLocation(location);
+                if (bundle != null) {
+                    if (contentHash.equals(contentHashes.get(location))) {
+                        log.info("Reusing unchanged bundle: " + location);
+                        return bundle;
+                    }
+                    log.info("Updating bundle: " + location);
+                    long start = System.nanoTime();
+                    TimedInputStream inputStream = new TimedInputStream(archive.as(ZipExporter.class).exportAsInputStream());
+                    try {
+                        bundle.update(inputStream);
+                    } finally {
+                        inputStream.close();
+                    }
+                    recordInstall(location, start, inputStream.getNanos());
+                    start = System.nanoTime();
+                    refreshBundle(bundle, 30, TimeUnit.SECONDS);
+                    getMetrics().recordSince(Phase.RESOLVE, location, start);
+                    contentHashes.put(location, contentHash);
+                    return bundle;
+                }
+            }
+
+            // Stream the bundle bytes, the archive is zipped on demand while the framework reads it
+            long start = System.nanoTime();
+            ZipExporter exporter = archive.as(ZipExporter.class);
+            TimedInputStream inputStream = new TimedInputStream(exporter.exportAsInputStream());
+            try {
+                log.info("Installing bundle: " + location);
+                Bundle bundle = installBundle(location, inputStream);
+                if (contentHash != null) {
+                    contentHashes.put(location, contentHash);
+                }
+                if (installed != null) {
+                    installed.add(bundle);
+                }
+                return bundle;
+            } finally {
+                inputStream.close();
+                recordInstall(location, start, inputStream.getNanos());
+            }
         } catch (RuntimeException rte) {
             throw rte;
         } catch (Exception ex) {
             throw new DeploymentException("Cannot deploy: " + archive, ex);
         }
+    }
 
-        return new ProtocolMetaData().addContext(new JMXContext(mbeanServer));
+    private void recordInstall(String location, long startNanos, long exportNanos) {
+        // Export and install overlap, the time spent reading the export stream is the export time
+        long totalNanos = System.nanoTime() - startNanos;
+        getMetrics().record(Phase.ARCHIVE_EXPORT, location, exportNanos);
+        getMetrics().record(Phase.INSTALL, location, totalNanos - exportNanos);
+    }
+
+    private void refreshBundle(Bundle bundle, long timeout, TimeUnit unit) throws InterruptedException, BundleException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        FrameworkWiring frameworkWiring = syscontext.getBundle(0).adapt(FrameworkWiring.class);
+        frameworkWiring.refreshBundles(Collections.singleton(bundle), new FrameworkListener() {
+            @Override
+            public void frameworkEvent(FrameworkEvent event) {
+                latch.countDown();
+            }
+        });
+        if (!latch.await(timeout, unit))
+            throw new BundleException("Giving up waiting for refresh of: " + bundle);
     }
 
     @Override
     public void undeploy(Archive<?> archive) throws DeploymentException {
+        long startNanos = System.nanoTime();
+        String location = archive.getName();
         try {
-            String location = archive.getName();
-            log.info("Uninstalling bundle: " + location);
-
-            Bundle bundle = syscontext.getBundle(location);
-            if (bundle != null && bundle.getState() != Bundle.UNINSTALLED) {
-                uninstallBundle(bundle);
+            Bundle bundle = bundleIndex.getBundleByLocation(location);
+            if (bundle != null) {
+                if (isReuseDeployments() && contentHashes.containsKey(location)) {
+                    // Keep the bundle for the next deployment of the same archive
+                    log.info("Retaining bundle: " + location);
+                    if ((bundle.getState() & (Bundle.STARTING | Bundle.ACTIVE)) != 0) {
+                        bundle.stop();
+                    }
+                    retainedLocations.add(location);
+                } else {
+                    log.info("Uninstalling bundle: " + location);
+                    uninstallBundle(bundle);
+                }
             }
         } catch (BundleException ex) {
             log.warn("Cannot undeploy: " + archive, ex);
+        } finally {
+            getMetrics().recordSince(Phase.UNDEPLOY, location, startNanos);
+        }
+    }
+
+    private void uninstallRetainedBundles() {
+        for (String location : retainedLocations) {
+            Bundle bundle = bundleIndex.getBundleByLocation(location);
+            if (bundle != null) {
+                try {
+                    log.info("Uninstalling bundle: " + location);
+                    uninstallBundle(bundle);
+                } catch (BundleException ex) {
+                    log.warn("Cannot uninstall: " + location, ex);
+                }
+            }
         }
+        retainedLocations.clear();
+        contentHashes.clear();
     }
 
     @Override
@@ -325,16 +587,14 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
     }
 
     private Bundle getInstalledBundle(String symbolicName) {
-        for (Bundle aux : syscontext.getBundles()) {
-            if (symbolicName.equals(aux.getSymbolicName()))
-                return aux;
-        }
-        return null;
+        return bundleIndex.getBundleBySymbolicName(symbolicName);
     }
 
     private Bundle installBundle(String groupId, String artifactId, String version, boolean startBundle) throws BundleException {
         String filespec = groupId + ":" + artifactId + ":jar:" + version;
-        File[] resolved = Maven.resolver().resolve(filespec).withoutTransitivity().asFile();
+        long startNanos = System.nanoTime();
+        File[] resolved = MavenArtifactCache.getInstance().resolve(filespec);
+        getMetrics().recordSince(Phase.MAVEN_RESOLVE, filespec, startNanos);
         if (resolved == null || resolved.length == 0)
             throw new BundleException("Cannot obtain maven artifact: " + filespec);
 
@@ -351,9 +611,14 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
         String location = bundleFile.toURI().toString();
         log.info("Installing bundle: " + location);
         try {
+            startNanos = System.nanoTime();
             Bundle bundle = installBundle(location, null);
-            if (startBundle == true)
+            getMetrics().recordSince(Phase.INSTALL, location, startNanos);
+            if (startBundle == true) {
+                startNanos = System.nanoTime();
                 bundle.start();
+                getMetrics().recordSince(Phase.START, location, startNanos);
+            }
 
             return bundle;
         } catch (BundleException ex) {
@@ -371,7 +636,8 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
 
         if (serverArr.size() > 0) {
             mbeanServer = serverArr.get(0);
-            log.debug("Found MBeanServer: " + mbeanServer.getDefaultDomain());
+            if (log.isEnabled(ContainerLogger.Level.DEBUG))
+                log.debug("Found MBeanServer: " + mbeanServer.getDefaultDomain());
         }
 
         if (mbeanServer == null) {
@@ -384,6 +650,13 @@ public abstract class EmbeddedDeployableContainer<T extends EmbeddedContainerCon
 
     public abstract static class AbstractContainerLogger implements ContainerLogger {
 
+        /**
+         * @return true if messages of the given level are written, subclasses override this to skip disabled levels
+         */
+        public boolean isEnabled(Level level) {
+            return true;
+        }
+
         @Override
         public void debug(String message) {
             log(Level.DEBUG, message, null);
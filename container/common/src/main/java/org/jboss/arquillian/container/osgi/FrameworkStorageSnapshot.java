@@ -0,0 +1,141 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.osgi.framework.Constants;
+
+/**
+ * A snapshot of the framework storage area in its baseline state.
+ *
+ * The snapshot is keyed by a hash of the framework factory, the framework configuration
+ * and the bundle files referenced from it. A framework that is started with the same
+ * configuration can restore the snapshot instead of installing its bundles again.
+ */
+public class FrameworkStorageSnapshot {
+
+    private final File storageDir;
+    private final File snapshotDir;
+    private final String key;
+
+    public FrameworkStorageSnapshot(File storageDir, File snapshotRoot, String key) {
+        this.storageDir = storageDir;
+        this.snapshotDir = new File(snapshotRoot, key);
+        this.key = key;
+    }
+
+    /**
+     * Create the snapshot for the given configuration
+     * @return null if the configuration does not define a framework storage area
+     */
+    public static FrameworkStorageSnapshot create(EmbeddedContainerConfiguration conf, String arqVersion) {
+        Map<String, String> props = conf.getFrameworkConfiguration();
+        String storage = props.get(Constants.FRAMEWORK_STORAGE);
+        if (storage == null)
+            return null;
+
+        MessageDigest digest = FileUtils.newDigest("SHA-1");
+        if (conf.getFrameworkFactory() != null) {
+            FileUtils.update(digest, conf.getFrameworkFactory().getClass().getName());
+        }
+        FileUtils.update(digest, "arquillian-osgi-bundle:" + arqVersion);
+        for (Map.Entry<String, String> entry : new TreeMap<String, String>(props).entrySet()) {
+            // The location of the storage does not affect its content
+            if (Constants.FRAMEWORK_STORAGE.equals(entry.getKey()) || Constants.FRAMEWORK_STORAGE_CLEAN.equals(entry.getKey()))
+                continue;
+
+            FileUtils.update(digest, entry.getKey() + "=" + entry.getValue() + "\n");
+            for (String token : entry.getValue().split("[\\s,]+")) {
+                File file = getReferencedFile(token);
+                if (file != null) {
+                    FileUtils.update(digest, file + ":" + file.length() + ":" + file.lastModified() + "\n");
+                }
+            }
+        }
+        String key = FileUtils.toHexString(digest.digest());
+        return new FrameworkStorageSnapshot(new File(storage).getAbsoluteFile(), conf.getStorageSnapshotDir(), key);
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public File getStorageDir() {
+        return storageDir;
+    }
+
+    public boolean exists() {
+        return snapshotDir.isDirectory();
+    }
+
+    /**
+     * Replace the framework storage area with the content of the snapshot
+     */
+    public void restore() throws IOException {
+        if (storageDir.exists() && !FileUtils.deleteRecursively(storageDir))
+            throw new IOException("Cannot delete framework storage: " + storageDir);
+
+        FileUtils.copyDirectory(snapshotDir, storageDir);
+    }
+
+    /**
+     * Capture the current content of the framework storage area.
+     *
+     * The content is copied to a temporary directory first and then renamed, so that
+     * concurrent captures for the same key never expose a partial snapshot.
+     */
+    public void capture() throws IOException {
+        File snapshotRoot = snapshotDir.getParentFile();
+        File tmpDir = new File(snapshotRoot, key + ".tmp" + System.nanoTime());
+        try {
+            FileUtils.copyDirectory(storageDir, tmpDir);
+            if (!tmpDir.renameTo(snapshotDir) && !exists())
+                throw new IOException("Cannot create storage snapshot: " + snapshotDir);
+        } finally {
+            if (tmpDir.exists()) {
+                FileUtils.deleteRecursively(tmpDir);
+            }
+        }
+    }
+
+    private static File getReferencedFile(String token) {
+        if (token.startsWith("reference:")) {
+            token = token.substring("reference:".length());
+        }
+        if (!token.startsWith("file:"))
+            return null;
+
+        try {
+            File file = new File(new URL(token).getPath());
+            return file.isFile() ? file : null;
+        } catch (IOException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + key + "]" + snapshotDir;
+    }
+}
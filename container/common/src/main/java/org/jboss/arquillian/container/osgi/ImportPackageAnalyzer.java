@@ -0,0 +1,487 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Computes the packages that the classes of an archive reference.
+ *
+ * The constant pool of every class is scanned for class names and for the type descriptors and generic
+ * signatures of fields, methods and annotations. Classes are analyzed in parallel. The result for a class is
+ * kept in an on-disk index keyed by the SHA-1 of its bytes, so unchanged classes are not parsed again in later
+ * runs.
+ *
+ * The index location defaults to <code>~/.arquillian/osgi-imports.properties</code> and can be changed with the
+ * <code>arquillian.osgi.import.index</code> system property.
+ */
+public class ImportPackageAnalyzer {
+
+    static final Logger logger = LoggerFactory.getLogger(ImportPackageAnalyzer.class.getPackage().getName());
+
+    public static final String INDEX_PROPERTY = "arquillian.osgi.import.index";
+
+    private static final int MAX_ANALYZER_THREADS = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), 8));
+    private static final int CLASSES_PER_TASK = 64;
+    private static final int MAX_INDEX_ENTRIES = 50000;
+
+    private static ImportPackageAnalyzer instance;
+
+    private final File indexFile;
+    private final Map<String, String> index = new ConcurrentHashMap<String, String>();
+    private final Set<String> usedKeys = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private boolean indexLoaded;
+
+    /**
+     * @param indexFile the on-disk index, null to keep results in memory only
+     */
+    public ImportPackageAnalyzer(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public static synchronized ImportPackageAnalyzer getInstance() {
+        if (instance == null) {
+            String path = System.getProperty(INDEX_PROPERTY);
+            if (path == null) {
+                path = System.getProperty("user.home") + File.separator + ".arquillian" + File.separator + "osgi-imports.properties";
+            }
+            instance = new ImportPackageAnalyzer(new File(path));
+        }
+        return instance;
+    }
+
+    /**
+     * @return the referenced packages, without the packages of the archive itself and without <code>java.*</code>
+     */
+    public Set<String> getImportedPackages(Archive<?> archive) {
+        List<Asset> assets = new ArrayList<Asset>();
+        for (Map.Entry<ArchivePath, Node> entry : archive.getContent().entrySet()) {
+            Asset asset = entry.getValue().getAsset();
+            if (asset != null && entry.getKey().get().endsWith(".class")) {
+                assets.add(asset);
+            }
+        }
+        if (assets.isEmpty())
+            return Collections.emptySet();
+
+        loadIndex();
+        int sizeBefore = index.size();
+        List<String> results = analyze(assets);
+        if (index.size() > sizeBefore) {
+            storeIndex();
+        }
+
+        Set<String> ownPackages = new TreeSet<String>();
+        Set<String> packages = new TreeSet<String>();
+        for (String result : results) {
+            int sep = result.indexOf('|');
+            ownPackages.add(result.substring(0, sep));
+            for (String pkg : result.substring(sep + 1).split(",")) {
+                if (pkg.length() > 0) {
+                    packages.add(pkg);
+                }
+            }
+        }
+        packages.removeAll(ownPackages);
+        return packages;
+    }
+
+    private List<String> analyze(final List<Asset> assets) {
+        if (assets.size() <= CLASSES_PER_TASK)
+            return analyze(assets, 0, assets.size());
+
+        int tasks = (assets.size() + CLASSES_PER_TASK - 1) / CLASSES_PER_TASK;
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(tasks, MAX_ANALYZER_THREADS));
+        try {
+            List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+            for (int start = 0; start < assets.size(); start += CLASSES_PER_TASK) {
+                final int from = start;
+                final int to = Math.min(start + CLASSES_PER_TASK, assets.size());
+                futures.add(executor.submit(new Callable<List<String>>() {
+                    @Override
+                    public List<String> call() throws Exception {
+                        return analyze(assets, from, to);
+                    }
+                }));
+            }
+            List<String> results = new ArrayList<String>();
+            for (Future<List<String>> future : futures) {
+                try {
+                    results.addAll(future.get());
+                } catch (ExecutionException ex) {
+                    Throwable cause = ex.getCause();
+                    if (cause instanceof RuntimeException)
+                        throw (RuntimeException) cause;
+                    throw new IllegalStateException("Cannot analyze classes", cause);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while analyzing classes", ex);
+                }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private List<String> analyze(List<Asset> assets, int from, int to) {
+        List<String> results = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            byte[] bytes;
+            try {
+                bytes = toByteArray(assets.get(i).openStream());
+            } catch (IOException ex) {
+                throw new IllegalStateException("Cannot read class: " + assets.get(i), ex);
+            }
+            String key = FileUtils.toHexString(FileUtils.newDigest("SHA-1").digest(bytes));
+            String result = index.get(key);
+            if (result == null) {
+                try {
+                    result = toIndexValue(analyze(bytes));
+                } catch (IOException ex) {
+                    logger.debug("Cannot analyze class: " + assets.get(i), ex);
+                    continue;
+                }
+                index.put(key, result);
+            }
+            usedKeys.add(key);
+            results.add(result);
+        }
+        return results;
+    }
+
+    /**
+     * Analyze a single class file
+     *
+     * @return the package of the class followed by the packages it references, in internal form
+     */
+    static List<String> analyze(byte[] bytes) throws IOException {
+        DataInputStream input = new DataInputStream(new ByteArrayInputStream(bytes));
+        if (input.readInt() != 0xCAFEBABE)
+            throw new IOException("Not a class file");
+        input.readUnsignedShort();
+        input.readUnsignedShort();
+
+        int count = input.readUnsignedShort();
+        String[] utf8 = new String[count];
+        int[] classNames = new int[count];
+        boolean[] constants = new boolean[count];
+        for (int i = 1; i < count; i++) {
+            int tag = input.readUnsignedByte();
+            switch (tag) {
+                case 1: // Utf8
+                    utf8[i] = input.readUTF();
+                    break;
+                case 7: // Class
+                    classNames[i] = input.readUnsignedShort();
+                    break;
+                case 8: // String
+                    constants[input.readUnsignedShort()] = true;
+                    break;
+                case 16: // MethodType
+                case 19: // Module
+                case 20: // Package
+                    input.readUnsignedShort();
+                    break;
+                case 15: // MethodHandle
+                    input.skipBytes(3);
+                    break;
+                case 3: // Integer
+                case 4: // Float
+                case 9: // Fieldref
+                case 10: // Methodref
+                case 11: // InterfaceMethodref
+                case 12: // NameAndType
+                case 17: // Dynamic
+                case 18: // InvokeDynamic
+                    input.skipBytes(4);
+                    break;
+                case 5: // Long
+                case 6: // Double
+                    input.skipBytes(8);
+                    i++;
+                    break;
+                default:
+                    throw new IOException("Invalid constant pool tag: " + tag);
+            }
+        }
+        input.readUnsignedShort();
+        int thisClass = input.readUnsignedShort();
+        if (thisClass <= 0 || thisClass >= count || classNames[thisClass] == 0)
+            throw new IOException("Invalid this_class index: " + thisClass);
+
+        Set<String> packages = new TreeSet<String>();
+        for (int i = 1; i < count; i++) {
+            String name = classNames[i] != 0 ? utf8[classNames[i]] : null;
+            if (name == null)
+                continue;
+            if (name.startsWith("[")) {
+                new SignatureScanner(name, packages).scan();
+            } else {
+                addPackage(packages, name);
+            }
+            constants[classNames[i]] = true;
+        }
+        // Descriptors and signatures of fields, methods and annotations are plain Utf8 entries
+        for (int i = 1; i < count; i++) {
+            String value = utf8[i];
+            if (value != null && !constants[i] && value.length() > 1 && "(<L[".indexOf(value.charAt(0)) >= 0) {
+                new SignatureScanner(value, packages).scan();
+            }
+        }
+
+        List<String> result = new ArrayList<String>();
+        result.add(getPackage(utf8[classNames[thisClass]]));
+        result.addAll(packages);
+        return result;
+    }
+
+    private static void addPackage(Set<String> packages, String internalName) {
+        String pkg = getPackage(internalName);
+        if (pkg.length() > 0 && !pkg.equals("java") && !pkg.startsWith("java.")) {
+            packages.add(pkg);
+        }
+    }
+
+    private static String getPackage(String internalName) {
+        int index = internalName != null ? internalName.lastIndexOf('/') : -1;
+        return index > 0 ? internalName.substring(0, index).replace('/', '.') : "";
+    }
+
+    private static String toIndexValue(List<String> analysis) {
+        StringBuilder builder = new StringBuilder(analysis.get(0)).append('|');
+        for (int i = 1; i < analysis.size(); i++) {
+            builder.append(i > 1 ? "," : "").append(analysis.get(i));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Collects the class names of a type descriptor or generic signature.
+     * Values that turn out not to be a descriptor are ignored.
+     */
+    private static class SignatureScanner {
+        private final String value;
+        private final Set<String> packages;
+        private final Set<String> found = new TreeSet<String>();
+        private int pos;
+
+        SignatureScanner(String value, Set<String> packages) {
+            this.value = value;
+            this.packages = packages;
+        }
+
+        void scan() {
+            try {
+                if (value.charAt(0) == '<') {
+                    formalTypeParameters();
+                }
+                while (pos < value.length()) {
+                    char ch = value.charAt(pos);
+                    if (ch == '(' || ch == ')' || ch == '^') {
+                        pos++;
+                    } else {
+                        type();
+                    }
+                }
+            } catch (IndexOutOfBoundsException ex) {
+                return;
+            } catch (IllegalArgumentException ex) {
+                return;
+            }
+            for (String name : found) {
+                addPackage(packages, name);
+            }
+        }
+
+        private void formalTypeParameters() {
+            pos++;
+            while (value.charAt(pos) != '>') {
+                int colon = value.indexOf(':', pos);
+                if (colon < 0)
+                    throw new IllegalArgumentException();
+                pos = colon;
+                while (value.charAt(pos) == ':') {
+                    pos++;
+                    if ("LT[".indexOf(value.charAt(pos)) >= 0) {
+                        type();
+                    }
+                }
+            }
+            pos++;
+        }
+
+        private void type() {
+            char ch = value.charAt(pos++);
+            switch (ch) {
+                case 'B':
+                case 'C':
+                case 'D':
+                case 'F':
+                case 'I':
+                case 'J':
+                case 'S':
+                case 'Z':
+                case 'V':
+                case '*':
+                    return;
+                case '[':
+                case '+':
+                case '-':
+                    type();
+                    return;
+                case 'T':
+                    pos = value.indexOf(';', pos) + 1;
+                    if (pos == 0)
+                        throw new IllegalArgumentException();
+                    return;
+                case 'L':
+                    classType();
+                    return;
+                default:
+                    throw new IllegalArgumentException();
+            }
+        }
+
+        private void classType() {
+            int start = pos;
+            boolean outer = true;
+            while (true) {
+                char ch = value.charAt(pos);
+                if (ch == ';' || ch == '<' || ch == '.') {
+                    if (outer) {
+                        String name = value.substring(start, pos);
+                        if (name.length() == 0 || name.indexOf(':') >= 0 || name.indexOf('(') >= 0)
+                            throw new IllegalArgumentException();
+                        found.add(name);
+                        outer = false;
+                    }
+                    pos++;
+                    if (ch == ';')
+                        return;
+                    if (ch == '<') {
+                        while (value.charAt(pos) != '>') {
+                            type();
+                        }
+                        pos++;
+                    }
+                } else {
+                    pos++;
+                }
+            }
+        }
+    }
+
+    private static byte[] toByteArray(InputStream input) throws IOException {
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                output.write(buffer, 0, num);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private synchronized void loadIndex() {
+        if (indexLoaded || indexFile == null)
+            return;
+        indexLoaded = true;
+        if (indexFile.isFile()) {
+            Properties properties = new Properties();
+            try {
+                InputStream input = new FileInputStream(indexFile);
+                try {
+                    properties.load(input);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot read import index: " + indexFile, ex);
+            }
+            for (String key : properties.stringPropertyNames()) {
+                index.put(key, properties.getProperty(key));
+            }
+        }
+    }
+
+    private synchronized void storeIndex() {
+        if (indexFile == null)
+            return;
+        Properties properties = new Properties();
+        for (Map.Entry<String, String> entry : index.entrySet()) {
+            // Once the index is full, only keep the classes that were seen by this JVM
+            if (index.size() <= MAX_INDEX_ENTRIES || usedKeys.contains(entry.getKey())) {
+                properties.setProperty(entry.getKey(), entry.getValue());
+            }
+        }
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        File tmpFile = new File(parent, indexFile.getName() + ".tmp" + System.nanoTime());
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Cannot create directory: " + parent);
+
+            FileOutputStream output = new FileOutputStream(tmpFile);
+            try {
+                properties.store(output, "Arquillian OSGi class imports");
+            } finally {
+                output.close();
+            }
+            // Replace the index in one step so that concurrent readers never see a partial file
+            if (!tmpFile.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile))
+                    throw new IOException("Cannot replace: " + indexFile);
+            }
+        } catch (IOException ex) {
+            logger.warn("Cannot write import index: " + indexFile, ex);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+
+/**
+ * A framework storage area that is owned by a single container instance.
+ *
+ * The storage directory is created on a RAM-backed filesystem when one is available,
+ * otherwise in the temp directory. It is deleted when the container stops, or when
+ * the JVM exits before that.
+ */
+public class ManagedFrameworkStorage {
+
+    static final String[] RAM_ROOTS = new String[] { "/dev/shm", "/run/shm" };
+
+    // Leave room for other users of a small shared memory filesystem
+    static final long MIN_FREE_SPACE = 256L * 1024 * 1024;
+
+    private final File storageDir;
+    private final boolean ramBacked;
+    private long usage;
+
+    private ManagedFrameworkStorage(File storageDir, boolean ramBacked) {
+        this.storageDir = storageDir;
+        this.ramBacked = ramBacked;
+
+        // The framework recreates the directory if the container is started again after release
+        Runtime.getRuntime().addShutdownHook(new Thread("arquillian-osgi-storage-cleanup") {
+            @Override
+            public void run() {
+                FileUtils.deleteRecursively(ManagedFrameworkStorage.this.storageDir);
+            }
+        });
+    }
+
+    /**
+     * Create a unique storage directory
+     * @param root the parent directory, or null to choose a RAM-backed filesystem if one is usable
+     */
+    public static ManagedFrameworkStorage create(File root) throws IOException {
+        boolean ramBacked = false;
+        if (root == null) {
+            root = getRamRoot();
+            ramBacked = root != null;
+            if (root == null) {
+                root = new File(System.getProperty("java.io.tmpdir"));
+            }
+        }
+        File storageDir = File.createTempFile("arquillian-osgi-", "-store", root);
+        if (!storageDir.delete() || !storageDir.mkdir())
+            throw new IOException("Cannot create framework storage in: " + root);
+
+        return new ManagedFrameworkStorage(storageDir, ramBacked);
+    }
+
+    private static File getRamRoot() {
+        for (String path : RAM_ROOTS) {
+            File dir = new File(path);
+            if (dir.isDirectory() && dir.canWrite() && dir.getUsableSpace() >= MIN_FREE_SPACE)
+                return dir;
+        }
+        return null;
+    }
+
+    public File getStorageDir() {
+        return storageDir;
+    }
+
+    public boolean isRamBacked() {
+        return ramBacked;
+    }
+
+    /**
+     * The size in bytes of the storage area when it was released
+     */
+    public long getUsage() {
+        return usage;
+    }
+
+    /**
+     * Measure and delete the storage area
+     */
+    public void release() throws IOException {
+        usage = FileUtils.sizeOf(storageDir);
+        if (!FileUtils.deleteRecursively(storageDir))
+            throw new IOException("Cannot delete framework storage: " + storageDir);
+    }
+
+    @Override
+    public String toString() {
+        return storageDir + (ramBacked ? " (ram)" : "");
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.jboss.shrinkwrap.resolver.api.maven.Maven;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An on-disk index of resolved maven artifacts.
+ *
+ * Each entry maps a <code>groupId:artifactId:type:version</code> filespec to the resolved file together
+ * with its size, modification time and SHA-1 checksum. An entry is only used when the file still matches,
+ * otherwise the artifact is resolved through ShrinkWrap Resolver again.
+ *
+ * The index location defaults to <code>~/.arquillian/osgi-artifacts.properties</code> and can be changed
+ * with the <code>arquillian.osgi.artifact.index</code> system property.
+ */
+public class MavenArtifactCache {
+
+    static final Logger logger = LoggerFactory.getLogger(MavenArtifactCache.class.getPackage().getName());
+
+    public static final String INDEX_PROPERTY = "arquillian.osgi.artifact.index";
+
+    private static MavenArtifactCache instance;
+
+    private final File indexFile;
+
+    public MavenArtifactCache(File indexFile) {
+        this.indexFile = indexFile;
+    }
+
+    public static synchronized MavenArtifactCache getInstance() {
+        if (instance == null) {
+            String path = System.getProperty(INDEX_PROPERTY);
+            if (path == null) {
+                path = System.getProperty("user.home") + File.separator + ".arquillian" + File.separator + "osgi-artifacts.properties";
+            }
+            instance = new MavenArtifactCache(new File(path));
+        }
+        return instance;
+    }
+
+    /**
+     * Resolve a single artifact without transitive dependencies
+     * @return the resolved files, which may be empty
+     */
+    public File[] resolve(String filespec) {
+        synchronized (this) {
+            File file = getValidEntry(loadIndex(), filespec);
+            if (file != null) {
+                logger.debug("Artifact index hit: {} -> {}", filespec, file);
+                return new File[] { file };
+            }
+        }
+
+        File[] files = resolveWithMaven(filespec);
+        if (files != null && files.length == 1) {
+            synchronized (this) {
+                Properties index = loadIndex();
+                try {
+                    index.setProperty(filespec, toEntry(files[0]));
+                    storeIndex(index);
+                } catch (IOException ex) {
+                    logger.warn("Cannot index artifact: " + files[0], ex);
+                }
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Resolve an artifact that is not in the index or whose file has changed
+     */
+    protected File[] resolveWithMaven(String filespec) {
+        long start = System.currentTimeMillis();
+        File[] files = Maven.resolver().resolve(filespec).withoutTransitivity().asFile();
+        logger.debug("Resolved {} in {}ms", filespec, System.currentTimeMillis() - start);
+        return files;
+    }
+
+    private File getValidEntry(Properties index, String filespec) {
+        String value = index.getProperty(filespec);
+        if (value == null)
+            return null;
+
+        // path|size|lastModified|sha1
+        String[] parts = value.split("\\|");
+        if (parts.length != 4)
+            return null;
+
+        File file = new File(parts[0]);
+        try {
+            if (file.isFile() && file.length() == Long.parseLong(parts[1]) && file.lastModified() == Long.parseLong(parts[2])
+                    && parts[3].equals(sha1(file))) {
+                return file;
+            }
+        } catch (NumberFormatException ex) {
+            // invalid entry
+        } catch (IOException ex) {
+            // unreadable file
+        }
+        return null;
+    }
+
+    private String toEntry(File file) throws IOException {
+        File absFile = file.getAbsoluteFile();
+        return absFile.getPath() + "|" + absFile.length() + "|" + absFile.lastModified() + "|" + sha1(absFile);
+    }
+
+    private static String sha1(File file) throws IOException {
+        MessageDigest digest = FileUtils.newDigest("SHA-1");
+        InputStream input = new FileInputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, num);
+            }
+        } finally {
+            input.close();
+        }
+        return FileUtils.toHexString(digest.digest());
+    }
+
+    private Properties loadIndex() {
+        Properties index = new Properties();
+        if (indexFile.isFile()) {
+            try {
+                InputStream input = new FileInputStream(indexFile);
+                try {
+                    index.load(input);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                logger.warn("Cannot read artifact index: " + indexFile, ex);
+            }
+        }
+        return index;
+    }
+
+    private void storeIndex(Properties index) {
+        File parent = indexFile.getAbsoluteFile().getParentFile();
+        File tmpFile = new File(parent, indexFile.getName() + ".tmp" + System.nanoTime());
+        try {
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Cannot create directory: " + parent);
+
+            FileOutputStream output = new FileOutputStream(tmpFile);
+            try {
+                index.store(output, "Arquillian OSGi resolved artifacts");
+            } finally {
+                output.close();
+            }
+            // Replace the index in one step so that concurrent readers never see a partial file
+            if (!tmpFile.renameTo(indexFile)) {
+                indexFile.delete();
+                if (!tmpFile.renameTo(indexFile))
+                    throw new IOException("Cannot replace: " + indexFile);
+            }
+        } catch (IOException ex) {
+            logger.warn("Cannot write artifact index: " + indexFile, ex);
+        } finally {
+            tmpFile.delete();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.osgi.framework.BundleEvent;
+import org.osgi.jmx.framework.BundleStateMBean;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A client side copy of the identifier, symbolic name, version and state of the bundles in a remote framework.
+ *
+ * The table is loaded with the item subset variant of {@link BundleStateMBean#listBundles(String...)} and then
+ * kept up to date from bundle event notifications. It is loaded again when the connection was replaced,
+ * because the notification subscription does not survive that, and before a lookup reports a miss.
+ */
+class BundleStateCache implements NotificationListener {
+
+    static final Logger logger = LoggerFactory.getLogger(BundleStateCache.class.getPackage().getName());
+
+    static final String[] ITEMS = new String[] { BundleStateMBean.IDENTIFIER, BundleStateMBean.SYMBOLIC_NAME, BundleStateMBean.VERSION,
+            BundleStateMBean.STATE };
+
+    static class Entry {
+        final long bundleId;
+        final String symbolicName;
+        String version;
+        String state;
+
+        Entry(long bundleId, String symbolicName, String version, String state) {
+            this.bundleId = bundleId;
+            this.symbolicName = symbolicName;
+            this.version = version;
+            this.state = state;
+        }
+    }
+
+    private final JMXConnectionManager connectionManager;
+    private final BundleStateMBean bundleStateMBean;
+    private final ObjectName emitter;
+    private final Map<Long, Entry> entries = new LinkedHashMap<Long, Entry>();
+    private long generation = -1;
+    private boolean subscribed;
+    private boolean itemSubsetSupported = true;
+
+    BundleStateCache(JMXConnectionManager connectionManager, BundleStateMBean bundleStateMBean, ObjectName emitter) {
+        this.connectionManager = connectionManager;
+        this.bundleStateMBean = bundleStateMBean;
+        this.emitter = emitter;
+    }
+
+    /**
+     * Get the bundles with the given symbolic name, or all bundles for a null name
+     */
+    synchronized List<Entry> getBundles(String symbolicName) throws IOException {
+        ensureCurrent();
+        List<Entry> result = find(symbolicName, null);
+        if (result.isEmpty() && symbolicName != null) {
+            reload();
+            result = find(symbolicName, null);
+        }
+        return result;
+    }
+
+    synchronized Entry getBundle(String symbolicName, String version) throws IOException {
+        ensureCurrent();
+        List<Entry> result = find(symbolicName, version);
+        if (result.isEmpty()) {
+            reload();
+            result = find(symbolicName, version);
+        }
+        return result.isEmpty() ? null : result.get(0);
+    }
+
+    /**
+     * Record a bundle that was installed through this client, before its notification arrives
+     */
+    synchronized void installed(long bundleId, String symbolicName) {
+        if (!entries.containsKey(bundleId)) {
+            entries.put(bundleId, new Entry(bundleId, symbolicName, null, BundleStateMBean.INSTALLED));
+        }
+    }
+
+    synchronized void close() {
+        if (subscribed) {
+            try {
+                connectionManager.getConnection().removeNotificationListener(emitter, this);
+            } catch (Exception ex) {
+                // the connection is gone
+            }
+            subscribed = false;
+        }
+        entries.clear();
+        generation = -1;
+    }
+
+    @Override
+    public synchronized void handleNotification(Notification notification, Object handback) {
+        Object userData = notification.getUserData();
+        if (!(userData instanceof CompositeData))
+            return;
+
+        CompositeData event = (CompositeData) userData;
+        long bundleId = (Long) event.get(BundleStateMBean.IDENTIFIER);
+        int type = (Integer) event.get(BundleStateMBean.EVENT);
+        Entry entry = entries.get(bundleId);
+        switch (type) {
+            case BundleEvent.INSTALLED:
+                if (entry == null) {
+                    String symbolicName = (String) event.get(BundleStateMBean.SYMBOLIC_NAME);
+                    entries.put(bundleId, new Entry(bundleId, symbolicName, null, BundleStateMBean.INSTALLED));
+                }
+                break;
+            case BundleEvent.UNINSTALLED:
+                entries.remove(bundleId);
+                break;
+            case BundleEvent.UPDATED:
+                // The symbolic name may have changed as well
+                entries.put(bundleId, new Entry(bundleId, (String) event.get(BundleStateMBean.SYMBOLIC_NAME), null, BundleStateMBean.INSTALLED));
+                break;
+            default:
+                if (entry != null) {
+                    entry.state = toState(type, entry.state);
+                }
+                break;
+        }
+    }
+
+    private List<Entry> find(String symbolicName, String version) throws IOException {
+        List<Entry> result = new ArrayList<Entry>();
+        for (Entry entry : entries.values()) {
+            if (symbolicName == null || symbolicName.equals(entry.symbolicName)) {
+                if (version != null) {
+                    if (entry.version == null) {
+                        entry.version = bundleStateMBean.getVersion(entry.bundleId);
+                    }
+                    if (!version.equals(entry.version))
+                        continue;
+                }
+                result.add(entry);
+            }
+        }
+        return result;
+    }
+
+    private void ensureCurrent() throws IOException {
+        if (generation == connectionManager.getGeneration() && subscribed)
+            return;
+
+        MBeanServerConnection connection = connectionManager.getConnection();
+        generation = connectionManager.getGeneration();
+        subscribed = false;
+        if (emitter != null) {
+            try {
+                connection.addNotificationListener(emitter, this, null, null);
+                subscribed = true;
+            } catch (Exception ex) {
+                logger.debug("Cannot subscribe to bundle events, the bundle cache is reloaded on every lookup: {}", ex.toString());
+            }
+        }
+        reload();
+    }
+
+    private void reload() throws IOException {
+        TabularData table;
+        if (itemSubsetSupported) {
+            try {
+                table = bundleStateMBean.listBundles(ITEMS);
+            } catch (RuntimeException ex) {
+                // An MBean before version 1.7 does not have the item subset operation
+                logger.debug("Cannot list bundle items, listing complete bundles: {}", ex.toString());
+                itemSubsetSupported = false;
+                table = bundleStateMBean.listBundles();
+            }
+        } else {
+            table = bundleStateMBean.listBundles();
+        }
+        entries.clear();
+        for (Object value : table.values()) {
+            CompositeData bundleType = (CompositeData) value;
+            Long bundleId = (Long) bundleType.get(BundleStateMBean.IDENTIFIER);
+            String symbolicName = (String) bundleType.get(BundleStateMBean.SYMBOLIC_NAME);
+            String version = (String) bundleType.get(BundleStateMBean.VERSION);
+            String state = (String) bundleType.get(BundleStateMBean.STATE);
+            entries.put(bundleId, new Entry(bundleId, symbolicName, version, state));
+        }
+        if (!subscribed) {
+            // Without notifications the table is only valid for this lookup
+            generation = -1;
+        }
+    }
+
+    private static String toState(int eventType, String state) {
+        switch (eventType) {
+            case BundleEvent.RESOLVED:
+            case BundleEvent.STOPPED:
+                return BundleStateMBean.RESOLVED;
+            case BundleEvent.UNRESOLVED:
+                return BundleStateMBean.INSTALLED;
+            case BundleEvent.STARTING:
+            case BundleEvent.LAZY_ACTIVATION:
+                return BundleStateMBean.STARTING;
+            case BundleEvent.STARTED:
+                return BundleStateMBean.ACTIVE;
+            case BundleEvent.STOPPING:
+                return BundleStateMBean.STOPPING;
+            default:
+                return state;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.zip.Deflater;
+
+import javax.management.JMException;
+import javax.management.MBeanException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.osgi.framework.BundleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Transfers bundle content to the upload MBean of the arquillian bundle in a remote framework.
+ *
+ * The content is sent in deflated chunks over the JMX connection, so the remote side does not
+ * need to connect back to the client. Content that the remote side already stores is not sent again.
+ */
+class BundleUploader {
+
+    static final Logger logger = LoggerFactory.getLogger(BundleUploader.class.getPackage().getName());
+
+    static final ObjectName OBJECT_NAME = ObjectNameFactory.create("jboss.arquillian:service=bundle-upload");
+
+    static final int CHUNK_SIZE = 256 * 1024;
+
+    private final MBeanServerConnection mbeanServer;
+
+    BundleUploader(MBeanServerConnection mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * @return true if the arquillian bundle in the remote framework provides the upload MBean
+     */
+    boolean isAvailable() throws IOException {
+        return mbeanServer.isRegistered(OBJECT_NAME);
+    }
+
+    long installBundle(String location, URL streamURL) throws IOException, BundleException {
+        String sha256 = upload(location, streamURL);
+        return (Long) invoke("installBundle", new Object[] { location, sha256 }, new String[] { String.class.getName(), String.class.getName() });
+    }
+
+    void updateBundle(long bundleId, String location, URL streamURL) throws IOException, BundleException {
+        String sha256 = upload(location, streamURL);
+        invoke("updateBundle", new Object[] { bundleId, sha256 }, new String[] { long.class.getName(), String.class.getName() });
+    }
+
+    private String upload(String location, URL streamURL) throws IOException, BundleException {
+        long start = System.currentTimeMillis();
+        String sha256 = sha256(streamURL);
+        if ((Boolean) invoke("hasContent", new Object[] { sha256 }, new String[] { String.class.getName() })) {
+            logger.info("Content of {} is already present remotely", location);
+            return sha256;
+        }
+
+        String uploadId = (String) invoke("beginUpload", new Object[] { sha256 }, new String[] { String.class.getName() });
+        String[] chunkSignature = new String[] { String.class.getName(), byte[].class.getName(), boolean.class.getName() };
+        long size = 0;
+        long sent = 0;
+        boolean complete = false;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        InputStream input = streamURL.openStream();
+        try {
+            byte[] chunk = new byte[CHUNK_SIZE];
+            byte[] deflated = new byte[CHUNK_SIZE + CHUNK_SIZE / 8 + 64];
+            int num;
+            while ((num = readFully(input, chunk)) > 0) {
+                deflater.reset();
+                deflater.setInput(chunk, 0, num);
+                deflater.finish();
+                int deflatedSize = deflater.deflate(deflated);
+
+                // Jar content is often compressed already, send it as is when deflating does not help
+                boolean useDeflated = deflater.finished() && deflatedSize < num;
+                byte[] payload = useDeflated ? Arrays.copyOf(deflated, deflatedSize) : Arrays.copyOf(chunk, num);
+                invoke("uploadChunk", new Object[] { uploadId, payload, useDeflated }, chunkSignature);
+                size += num;
+                sent += payload.length;
+            }
+            invoke("completeUpload", new Object[] { uploadId }, new String[] { String.class.getName() });
+            complete = true;
+        } finally {
+            deflater.end();
+            input.close();
+            if (!complete) {
+                try {
+                    invoke("cancelUpload", new Object[] { uploadId }, new String[] { String.class.getName() });
+                } catch (Exception ex) {
+                    // report the original failure
+                }
+            }
+        }
+
+        long millis = Math.max(1, System.currentTimeMillis() - start);
+        logger.info("Uploaded {} in {}ms: {}KB content, {}KB sent, {}KB/s", new Object[] { location, millis, size / 1024, sent / 1024,
+                size * 1000 / 1024 / millis });
+        return sha256;
+    }
+
+    private Object invoke(String operation, Object[] params, String[] signature) throws IOException, BundleException {
+        try {
+            return mbeanServer.invoke(OBJECT_NAME, operation, params, signature);
+        } catch (MBeanException ex) {
+            Exception cause = ex.getTargetException();
+            if (cause instanceof BundleException)
+                throw (BundleException) cause;
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Cannot invoke " + operation + ": " + cause, cause);
+        } catch (JMException ex) {
+            throw new IOException("Cannot invoke " + operation, ex);
+        }
+    }
+
+    private static String sha256(URL streamURL) throws IOException {
+        MessageDigest digest = FileUtils.newDigest("SHA-256");
+        InputStream input = streamURL.openStream();
+        try {
+            byte[] buffer = new byte[8192];
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                digest.update(buffer, 0, num);
+            }
+        } finally {
+            input.close();
+        }
+        return FileUtils.toHexString(digest.digest());
+    }
+
+    private static int readFully(InputStream input, byte[] buffer) throws IOException {
+        int total = 0;
+        while (total < buffer.length) {
+            int num = input.read(buffer, total, buffer.length - total);
+            if (num == -1)
+                break;
+            total += num;
+        }
+        return total;
+    }
+}
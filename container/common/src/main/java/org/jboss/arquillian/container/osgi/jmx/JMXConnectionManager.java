@@ -0,0 +1,252 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.remote.JMXConnectionNotification;
+import javax.management.remote.JMXConnector;
+import javax.management.remote.JMXConnectorFactory;
+import javax.management.remote.JMXServiceURL;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Manages the single JMX connector of a container.
+ *
+ * Callers get one {@link MBeanServerConnection} that delegates to the current connector.
+ * A broken connector is dropped when the connector reports a failure, when a call fails
+ * with an IOException or when the periodic liveness check fails, and the next call connects again.
+ * Read-only calls that fail on a broken connector are retried once on a new one.
+ *
+ * All managers share one daemon thread for their liveness checks.
+ */
+public class JMXConnectionManager {
+
+    static final Logger logger = LoggerFactory.getLogger(JMXConnectionManager.class.getPackage().getName());
+
+    static final long LIVENESS_CHECK_SECONDS = 10;
+
+    private static final Set<String> READ_ONLY_METHODS = new HashSet<String>(Arrays.asList("getAttribute", "getAttributes",
+            "getDefaultDomain", "getDomains", "getMBeanCount", "getMBeanInfo", "getObjectInstance", "isInstanceOf", "isRegistered",
+            "queryMBeans", "queryNames"));
+
+    private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable run) {
+            Thread thread = new Thread(run, "arquillian-osgi-jmx");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final ConcurrentMap<String, Boolean> localHosts = new ConcurrentHashMap<String, Boolean>();
+
+    private final JMXServiceURL serviceURL;
+    private final Map<String, ?> environment;
+    private final MBeanServerConnection connection;
+    private JMXConnector connector;
+    private MBeanServerConnection delegate;
+    private ScheduledFuture<?> livenessCheck;
+    private long generation;
+
+    public JMXConnectionManager(String serviceURL, String username, String password) throws IOException {
+        this.serviceURL = new JMXServiceURL(serviceURL);
+        this.environment = Collections.singletonMap(JMXConnector.CREDENTIALS, new String[] { username, password });
+        this.connection = (MBeanServerConnection) Proxy.newProxyInstance(MBeanServerConnection.class.getClassLoader(),
+                new Class<?>[] { MBeanServerConnection.class }, new ConnectionHandler());
+    }
+
+    /**
+     * Get the managed connection, connecting if there is no live connector
+     */
+    public MBeanServerConnection getConnection() throws IOException {
+        getDelegate();
+        return connection;
+    }
+
+    /**
+     * The number of connectors created so far. Notification subscriptions do not survive a new connector.
+     */
+    public synchronized long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return true if the service URL points to this host
+     */
+    public boolean isLocalHost() {
+        String host = serviceURL.getHost();
+        Boolean local = localHosts.get(host);
+        if (local == null) {
+            local = isLocalAddress(host);
+            localHosts.putIfAbsent(host, local);
+        }
+        return local;
+    }
+
+    /**
+     * Close the connector and stop the liveness check. A later call connects again.
+     */
+    public synchronized void close() {
+        if (livenessCheck != null) {
+            livenessCheck.cancel(false);
+            livenessCheck = null;
+        }
+        if (delegate != null) {
+            invalidate(delegate);
+        }
+    }
+
+    private synchronized MBeanServerConnection getDelegate() throws IOException {
+        if (delegate == null) {
+            JMXConnector newConnector = JMXConnectorFactory.connect(serviceURL, environment);
+            final MBeanServerConnection newDelegate = newConnector.getMBeanServerConnection();
+            newConnector.addConnectionNotificationListener(new NotificationListener() {
+                @Override
+                public void handleNotification(Notification notification, Object handback) {
+                    String type = notification.getType();
+                    if (JMXConnectionNotification.FAILED.equals(type) || JMXConnectionNotification.CLOSED.equals(type)) {
+                        invalidate(newDelegate);
+                    }
+                }
+            }, null, null);
+            connector = newConnector;
+            delegate = newDelegate;
+            generation++;
+            logger.debug("Connected to: {}", serviceURL);
+        }
+        if (livenessCheck == null) {
+            livenessCheck = scheduler.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    checkLiveness();
+                }
+            }, LIVENESS_CHECK_SECONDS, LIVENESS_CHECK_SECONDS, TimeUnit.SECONDS);
+        }
+        return delegate;
+    }
+
+    private void checkLiveness() {
+        MBeanServerConnection current;
+        synchronized (this) {
+            current = delegate;
+        }
+        try {
+            if (current != null) {
+                current.getMBeanCount();
+            } else {
+                getDelegate();
+            }
+        } catch (Exception ex) {
+            logger.debug("JMX connection to {} is not alive: {}", serviceURL, ex.toString());
+            if (current != null) {
+                invalidate(current);
+            }
+        }
+    }
+
+    private void invalidate(MBeanServerConnection failed) {
+        JMXConnector closing;
+        synchronized (this) {
+            if (delegate != failed)
+                return;
+
+            closing = connector;
+            connector = null;
+            delegate = null;
+        }
+        // Close outside the lock, the connector may notify listeners while closing
+        try {
+            closing.close();
+        } catch (IOException ex) {
+            // already broken
+        }
+    }
+
+    private static boolean isLocalAddress(String host) {
+        try {
+            InetAddress addr = InetAddress.getByName(host);
+
+            // Any localhost address
+            if (addr.isAnyLocalAddress() || addr.isLoopbackAddress()) {
+                return true;
+            }
+
+            // Address of a local network interface
+            return (NetworkInterface.getByInetAddress(addr) != null);
+        } catch (IOException e) {
+            // Assume name lookups imply not local
+            return false;
+        }
+    }
+
+    private class ConnectionHandler implements InvocationHandler {
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                if ("equals".equals(method.getName()))
+                    return proxy == args[0];
+                if ("hashCode".equals(method.getName()))
+                    return System.identityHashCode(proxy);
+                return "JMXConnection[" + serviceURL + "]";
+            }
+
+            boolean retry = READ_ONLY_METHODS.contains(method.getName());
+            while (true) {
+                MBeanServerConnection current = getDelegate();
+                try {
+                    return method.invoke(current, args);
+                } catch (InvocationTargetException ex) {
+                    Throwable cause = ex.getCause();
+                    if (!(cause instanceof IOException))
+                        throw cause;
+
+                    invalidate(current);
+                    if (!retry)
+                        throw cause;
+
+                    logger.debug("Retrying {} after: {}", method.getName(), cause.toString());
+                    retry = false;
+                }
+            }
+        }
+    }
+}
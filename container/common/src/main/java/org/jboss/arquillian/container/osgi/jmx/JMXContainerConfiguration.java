@@ -29,6 +29,7 @@ public class JMXContainerConfiguration extends CommonContainerConfiguration {
     protected String jmxServiceURL;
     protected String jmxUsername;
     protected String jmxPassword;
+    protected boolean bundleUpload;
 
     @Override
     public void validate() throws ConfigurationException {
@@ -59,4 +60,15 @@ public class JMXContainerConfiguration extends CommonContainerConfiguration {
         this.jmxPassword = jmxPassword;
     }
 
+    /**
+     * @return true if bundles are uploaded to a remote framework over JMX instead of served over HTTP
+     */
+    public boolean isBundleUpload() {
+        return bundleUpload;
+    }
+
+    public void setBundleUpload(boolean bundleUpload) {
+        this.bundleUpload = bundleUpload;
+    }
+
 }
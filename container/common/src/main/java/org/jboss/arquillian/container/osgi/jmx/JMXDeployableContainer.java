@@ -18,34 +18,32 @@ package org.jboss.arquillian.container.osgi.jmx;
 
 import java.io.File;
 import java.io.IOException;
-import java.net.InetAddress;
-import java.net.NetworkInterface;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.management.MBeanServerConnection;
+import javax.management.MBeanServerDelegate;
 import javax.management.MBeanServerInvocationHandler;
 import javax.management.ObjectName;
-import javax.management.openmbean.CompositeData;
 import javax.management.openmbean.TabularData;
-import javax.management.remote.JMXConnector;
-import javax.management.remote.JMXConnectorFactory;
 import javax.management.remote.JMXServiceURL;
 
 import org.jboss.arquillian.container.osgi.CommonDeployableContainer;
+import org.jboss.arquillian.container.osgi.DeploymentTiming;
+import org.jboss.arquillian.container.osgi.MavenArtifactCache;
 import org.jboss.arquillian.container.osgi.jmx.http.SimpleHTTPServer;
+import org.jboss.arquillian.container.osgi.metrics.Phase;
+import org.jboss.arquillian.container.osgi.util.ArchiveDigest;
 import org.jboss.arquillian.container.spi.client.container.DeploymentException;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
 import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
@@ -61,7 +59,6 @@ import org.jboss.osgi.vfs.VirtualFile;
 import org.jboss.shrinkwrap.api.Archive;
 import org.jboss.shrinkwrap.api.exporter.ZipExporter;
 import org.jboss.shrinkwrap.descriptor.api.Descriptor;
-import org.jboss.shrinkwrap.resolver.api.maven.Maven;
 
 import org.osgi.framework.BundleException;
 import org.osgi.jmx.framework.BundleStateMBean;
@@ -80,7 +77,12 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     static final Logger logger = LoggerFactory.getLogger(JMXDeployableContainer.class.getPackage().getName());
 
     protected final Map<String, BundleHandle> deployedBundles = new HashMap<String, BundleHandle>();
+    private final Map<String, BundleHandle> retainedBundles = new HashMap<String, BundleHandle>();
+    private final Map<String, String> contentHashes = new HashMap<String, String>();
     private JMXContainerConfiguration config;
+    private JMXConnectionManager connectionManager;
+    private BundleStateCache bundleStateCache;
+    private SimpleHTTPServer httpServer;
 
     @Inject
     @ContainerScoped
@@ -102,6 +104,45 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     public void setup(T configuration) {
         super.setup(configuration);
         this.config = configuration;
+        try {
+            new JMXServiceURL(config.getJmxServiceURL());
+        } catch (MalformedURLException ex) {
+            throw new IllegalArgumentException("Invalid JMX service URL: " + config.getJmxServiceURL(), ex);
+        }
+    }
+
+    /**
+     * @return The JMX service URL the container connects to, the configured one by default
+     */
+    protected String getJmxServiceURL() {
+        return config.getJmxServiceURL();
+    }
+
+    // The connection manager is created on first use, so that a subclass can provide the service URL on start
+    private synchronized JMXConnectionManager getConnectionManager() {
+        if (connectionManager == null) {
+            String serviceURL = getJmxServiceURL();
+            try {
+                connectionManager = new JMXConnectionManager(serviceURL, config.getJmxUsername(), config.getJmxPassword());
+            } catch (IOException ex) {
+                throw new IllegalArgumentException("Invalid JMX service URL: " + serviceURL, ex);
+            }
+        }
+        return connectionManager;
+    }
+
+    /**
+     * Close the connection to the framework, the next use connects again
+     */
+    protected synchronized void closeMBeanServerConnection() {
+        if (bundleStateCache != null) {
+            bundleStateCache.close();
+            bundleStateCache = null;
+        }
+        if (connectionManager != null) {
+            connectionManager.close();
+            connectionManager = null;
+        }
     }
 
     @Override
@@ -118,6 +159,56 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         return new ProtocolMetaData().addContext(new JMXContext(mbeanServer));
     }
 
+    @Override
+    public List<DeploymentTiming> deploy(List<Archive<?>> archives) throws DeploymentException {
+        List<DeploymentTiming> timings = new ArrayList<DeploymentTiming>();
+        long[] bundleIds = new long[archives.size()];
+        List<String> installed = new ArrayList<String>();
+        Map<String, BundleHandle> reused = new HashMap<String, BundleHandle>();
+        boolean success = false;
+        try {
+            for (int i = 0; i < bundleIds.length; i++) {
+                Archive<?> archive = archives.get(i);
+                long start = System.nanoTime();
+                BundleHandle retained = retainedBundles.get(archive.getName());
+                if (retained != null) {
+                    reused.put(archive.getName(), retained);
+                }
+                BundleHandle handle = installBundle(archive);
+                deployedBundles.put(archive.getName(), handle);
+                if (retained == null || retained.getBundleId() != handle.getBundleId()) {
+                    reused.remove(archive.getName());
+                    installed.add(archive.getName());
+                }
+                bundleIds[i] = handle.getBundleId();
+                timings.add(new DeploymentTiming(archive.getName(), handle.getBundleId(), System.nanoTime() - start));
+            }
+
+            // Resolve the whole batch with a single remote call
+            long start = System.nanoTime();
+            frameworkMBean.resolveBundles(bundleIds);
+            long resolveTime = System.nanoTime() - start;
+
+            for (DeploymentTiming timing : timings) {
+                String bundleState = bundleStateMBean.getState(timing.getBundleId());
+                boolean resolved = !BundleStateMBean.INSTALLED.equals(bundleState) && !BundleStateMBean.UNINSTALLED.equals(bundleState);
+                timing.setResolveResult(resolveTime, resolved);
+                getMetrics().record(Phase.RESOLVE, timing.getLocation(), resolveTime);
+            }
+            success = true;
+        } catch (RuntimeException rte) {
+            throw rte;
+        } catch (Exception ex) {
+            throw new DeploymentException("Cannot deploy: " + archives, ex);
+        } finally {
+            if (!success) {
+                uninstallBatch(installed, reused);
+            }
+        }
+        logger.info("Deployed bundles: {}", timings);
+        return timings;
+    }
+
     @Override
     public void deploy(Descriptor desc) throws DeploymentException {
         throw new UnsupportedOperationException();
@@ -125,30 +216,76 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
     @Override
     public void undeploy(Archive<?> archive) throws DeploymentException {
+        long startNanos = System.nanoTime();
         BundleHandle handle = deployedBundles.remove(archive.getName());
         if (handle != null) {
-            String bundleState = null;
-            try {
-                long bundleId = handle.getBundleId();
-                CompositeData bundleType = bundleStateMBean.getBundle(bundleId);
-                if (bundleType != null) {
-                    bundleState = (String) bundleType.get(BundleStateMBean.STATE);
-                }
-            } catch (IOException e) {
-                // ignore non-existent bundle
-                return;
-            }
+            String bundleState = getBundleState(handle);
             if (bundleState != null && !bundleState.equals(BundleStateMBean.UNINSTALLED)) {
                 try {
                     long bundleId = handle.getBundleId();
-                    frameworkMBean.uninstallBundle(bundleId);
+                    if (isReuseDeployments() && contentHashes.containsKey(archive.getName())) {
+                        // Keep the bundle for the next deployment of the same archive
+                        logger.info("Retaining bundle: {}", handle);
+                        if (BundleStateMBean.ACTIVE.equals(bundleState) || BundleStateMBean.STARTING.equals(bundleState)) {
+                            frameworkMBean.stopBundle(bundleId);
+                        }
+                        retainedBundles.put(archive.getName(), handle);
+                    } else {
+                        frameworkMBean.uninstallBundle(bundleId);
+                    }
                 } catch (IOException ex) {
                     logger.error("Cannot undeploy: " + archive.getName(), ex);
                 }
             }
+            getMetrics().recordSince(Phase.UNDEPLOY, archive.getName(), startNanos);
         }
     }
 
+    private void uninstallBatch(List<String> installed, Map<String, BundleHandle> reused) {
+        // Reused bundles are retained again, their content is compared anew on the next deployment
+        for (Map.Entry<String, BundleHandle> entry : reused.entrySet()) {
+            deployedBundles.remove(entry.getKey());
+            contentHashes.remove(entry.getKey());
+            retainedBundles.put(entry.getKey(), entry.getValue());
+        }
+        // Only bundles that were installed by the failed batch are removed
+        for (int i = installed.size() - 1; i >= 0; i--) {
+            String location = installed.get(i);
+            BundleHandle handle = deployedBundles.remove(location);
+            contentHashes.remove(location);
+            try {
+                logger.info("Uninstalling bundle: {}", handle);
+                frameworkMBean.uninstallBundle(handle.getBundleId());
+            } catch (IOException ex) {
+                logger.error("Cannot uninstall: " + handle, ex);
+            }
+        }
+    }
+
+    private String getBundleState(BundleHandle handle) {
+        try {
+            return bundleStateMBean.getState(handle.getBundleId());
+        } catch (IOException e) {
+            // ignore non-existent bundle
+            return null;
+        }
+    }
+
+    private void uninstallRetainedBundles() {
+        for (BundleHandle handle : retainedBundles.values()) {
+            String bundleState = getBundleState(handle);
+            if (bundleState != null && !bundleState.equals(BundleStateMBean.UNINSTALLED)) {
+                try {
+                    frameworkMBean.uninstallBundle(handle.getBundleId());
+                } catch (IOException ex) {
+                    logger.error("Cannot uninstall: " + handle, ex);
+                }
+            }
+        }
+        retainedBundles.clear();
+        contentHashes.clear();
+    }
+
     @Override
     public void undeploy(Descriptor desc) throws DeploymentException {
         throw new UnsupportedOperationException();
@@ -156,13 +293,24 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
     @Override
     public void stop() throws LifecycleException {
-        uninstallArquillianBundle();
+        long startNanos = System.nanoTime();
+        try {
+            uninstallRetainedBundles();
+            uninstallArquillianBundle();
+        } finally {
+            closeMBeanServerConnection();
+            shutdownHTTPServer();
+            getMetrics().recordSince(Phase.CONTAINER_STOP, null, startNanos);
+            stopMetrics();
+        }
     }
 
     protected BundleHandle installBundle(String groupId, String artifactId, String version, boolean startBundle)
         throws BundleException, IOException {
         String filespec = groupId + ":" + artifactId + ":jar:" + version;
-        File[] resolved = Maven.resolver().resolve(filespec).withoutTransitivity().asFile();
+        long startNanos = System.nanoTime();
+        File[] resolved = MavenArtifactCache.getInstance().resolve(filespec);
+        getMetrics().recordSince(Phase.MAVEN_RESOLVE, filespec, startNanos);
         if (resolved == null || resolved.length == 0)
             throw new BundleException("Cannot obtain maven artifact: " + filespec);
         if (resolved.length > 1)
@@ -170,23 +318,77 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
 
         URL fileURL = resolved[0].toURI().toURL();
 
+        startNanos = System.nanoTime();
         BundleHandle handle = installBundle(filespec, fileURL);
+        getMetrics().recordSince(Phase.INSTALL, filespec, startNanos);
 
         if (startBundle) {
+            startNanos = System.nanoTime();
             frameworkMBean.startBundle(handle.getBundleId());
+            getMetrics().recordSince(Phase.START, filespec, startNanos);
         }
         return handle;
     }
 
     private BundleHandle installBundle(Archive<?> archive) throws BundleException, IOException {
+        String location = archive.getName();
+        String contentHash = null;
+        if (isReuseDeployments()) {
+            contentHash = ArchiveDigest.sha256(archive);
+            BundleHandle handle = retainedBundles.remove(location);
+            String bundleState = handle != null ? getBundleState(handle) : null;
+            if (bundleState != null && !bundleState.equals(BundleStateMBean.UNINSTALLED)) {
+                if (contentHash.equals(contentHashes.get(location))) {
+                    logger.info("Reusing unchanged bundle: {}", handle);
+                    return handle;
+                }
+                logger.info("Updating bundle: {}", handle);
+                VirtualFile virtualFile = toVirtualFile(archive);
+                try {
+                    long startNanos = System.nanoTime();
+                    updateBundle(handle, virtualFile);
+                    getMetrics().recordSince(Phase.INSTALL, location, startNanos);
+                } finally {
+                    VFSUtils.safeClose(virtualFile);
+                }
+                contentHashes.put(location, contentHash);
+                return handle;
+            }
+        }
+
         VirtualFile virtualFile = toVirtualFile(archive);
         try {
-            return installBundle(archive.getName(), virtualFile);
+            long startNanos = System.nanoTime();
+            BundleHandle handle = installBundle(location, virtualFile);
+            getMetrics().recordSince(Phase.INSTALL, location, startNanos);
+            if (contentHash != null) {
+                contentHashes.put(location, contentHash);
+            }
+            return handle;
         } finally {
             VFSUtils.safeClose(virtualFile);
         }
     }
 
+    private void updateBundle(BundleHandle handle, VirtualFile virtualFile) throws BundleException, IOException {
+        BundleInfo info = BundleInfo.createBundleInfo(virtualFile);
+        URL serverUrl = info.getRoot().getStreamURL();
+
+        // Upload to remote system over JMX
+        BundleUploader uploader = getBundleUploader();
+        if (uploader != null) {
+            uploader.updateBundle(handle.getBundleId(), bundleStateMBean.getLocation(handle.getBundleId()), serverUrl);
+            frameworkMBean.refreshBundleAndWait(handle.getBundleId());
+            return;
+        }
+
+        // Adapt URL to remote system by serving over HTTP
+        serverUrl = getContainerURL(serverUrl);
+
+        frameworkMBean.updateBundleFromURL(handle.getBundleId(), serverUrl.toExternalForm());
+        frameworkMBean.refreshBundleAndWait(handle.getBundleId());
+    }
+
     private BundleHandle installBundle(String location, VirtualFile virtualFile) throws BundleException, IOException {
         BundleInfo info = BundleInfo.createBundleInfo(virtualFile);
         URL streamURL = info.getRoot().getStreamURL();
@@ -196,40 +398,48 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     private BundleHandle installBundle(String location, URL streamURL) throws BundleException, IOException {
         URL serverUrl = streamURL;
 
-        // Adapt URL to remote system by serving over HTTP
-        SimpleHTTPServer server = null;
-        if (!isLocalHost(config)) {
-            server = new SimpleHTTPServer();
-            serverUrl = server.serve(streamURL);
-            server.start();
-        }
-
-        try {
-            long bundleId = frameworkMBean.installBundleFromURL(location, serverUrl.toExternalForm());
+        // Upload to remote system over JMX
+        BundleUploader uploader = getBundleUploader();
+        if (uploader != null) {
+            long bundleId = uploader.installBundle(location, streamURL);
             String symbolicName = bundleStateMBean.getSymbolicName(bundleId);
+            getBundleStateCache().installed(bundleId, symbolicName);
             return new BundleHandle(bundleId, symbolicName);
-        } finally {
-            if (server != null) {
-                server.shutdown();
-            }
         }
+
+        // Adapt URL to remote system by serving over HTTP
+        serverUrl = getContainerURL(streamURL);
+
+        long bundleId = frameworkMBean.installBundleFromURL(location, serverUrl.toExternalForm());
+        String symbolicName = bundleStateMBean.getSymbolicName(bundleId);
+        getBundleStateCache().installed(bundleId, symbolicName);
+        return new BundleHandle(bundleId, symbolicName);
     }
 
-    private static boolean isLocalHost(JMXContainerConfiguration config) {
-        try {
-            JMXServiceURL serviceURL = new JMXServiceURL(config.getJmxServiceURL());
-            InetAddress addr = InetAddress.getByName(serviceURL.getHost());
+    /**
+     * @return A URL under which the container reads the given local content, served over HTTP if the container is remote
+     */
+    protected URL getContainerURL(URL streamURL) throws IOException {
+        return getConnectionManager().isLocalHost() ? streamURL : serveOverHTTP(streamURL);
+    }
 
-            // Any localhost address
-            if (addr.isAnyLocalAddress() || addr.isLoopbackAddress()) {
-                return true;
-            }
+    /**
+     * Serve the content from the HTTP server that is shared for the lifetime of this container.
+     * The server is started on first use and the content is addressed by its SHA-256.
+     */
+    private synchronized URL serveOverHTTP(URL streamURL) throws IOException {
+        if (httpServer == null) {
+            SimpleHTTPServer server = new SimpleHTTPServer();
+            server.start();
+            httpServer = server;
+        }
+        return httpServer.serveContent(streamURL);
+    }
 
-            // Address of a local network interface
-            return (NetworkInterface.getByInetAddress(addr) != null);
-        } catch (IOException e) {
-            // Assume name lookups imply not local
-            return false;
+    private synchronized void shutdownHTTPServer() {
+        if (httpServer != null) {
+            httpServer.shutdown();
+            httpServer = null;
         }
     }
 
@@ -267,23 +477,28 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
     }
 
     private VirtualFile toVirtualFile(Archive<?> archive) throws IOException {
+        long startNanos = System.nanoTime();
         ZipExporter exporter = archive.as(ZipExporter.class);
-        return AbstractVFS.toVirtualFile(archive.getName(), exporter.exportAsInputStream());
+        VirtualFile virtualFile = AbstractVFS.toVirtualFile(archive.getName(), exporter.exportAsInputStream());
+        getMetrics().recordSince(Phase.ARCHIVE_EXPORT, archive.getName(), startNanos);
+        return virtualFile;
     }
 
     protected void awaitBeginningStartLevel(final Integer beginningStartLevel, long timeout, TimeUnit unit) throws IOException, TimeoutException,
         InterruptedException {
-        int startLevel = 0;
-        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
-        while (System.currentTimeMillis() < timeoutMillis) {
-            startLevel = frameworkMBean.getFrameworkStartLevel();
-            if (startLevel >= beginningStartLevel) {
-                return;
-            } else {
-                Thread.sleep(500);
+        // There are no start level notifications, bundles change state while the start level rises
+        // but the final start level change is not notified, so keep polling at the unsubscribed rate
+        final int[] startLevel = new int[1];
+        NotificationWaiter waiter = newNotificationWaiter(bundleStateMBean, NotificationWaiter.MAX_POLL_MILLIS);
+        boolean reached = waiter.await(new NotificationWaiter.Condition() {
+            @Override
+            public boolean isSatisfied() throws IOException {
+                startLevel[0] = frameworkMBean.getFrameworkStartLevel();
+                return startLevel[0] >= beginningStartLevel;
             }
-        }
-        throw new TimeoutException("Beginning start level [" + beginningStartLevel + "] not reached: " + startLevel);
+        }, timeout, unit);
+        if (!reached)
+            throw new TimeoutException("Beginning start level [" + beginningStartLevel + "] not reached: " + startLevel[0]);
     }
 
     @Override
@@ -295,17 +510,17 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         }
     }
 
-    protected void awaitBootstrapCompleteService(String serviceName, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException, IOException {
-        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
-        while (System.currentTimeMillis() < timeoutMillis) {
-            TabularData list = serviceStateMBean.listServices(serviceName, null);
-            if (list.size() > 0) {
-                return;
-            } else {
-                Thread.sleep(500);
+    protected void awaitBootstrapCompleteService(final String serviceName, long timeout, TimeUnit unit) throws TimeoutException, InterruptedException, IOException {
+        NotificationWaiter waiter = newNotificationWaiter(serviceStateMBean);
+        boolean registered = waiter.await(new NotificationWaiter.Condition() {
+            @Override
+            public boolean isSatisfied() throws IOException {
+                TabularData list = serviceStateMBean.listServices(serviceName, null);
+                return list.size() > 0;
             }
-        }
-        throw new TimeoutException("Timeout while waiting for service: " + serviceName);
+        }, timeout, unit);
+        if (!registered)
+            throw new TimeoutException("Timeout while waiting for service: " + serviceName);
     }
 
     protected void awaitArquillianBundleActive(long timeout, TimeUnit unit) throws IOException, TimeoutException,
@@ -315,102 +530,130 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         if (list.size() != 1)
             throw new IllegalStateException("Cannot obtain: " + symbolicName);
 
-        String bundleState = null;
-        long bundleId = list.get(0).getBundleId();
-        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
-        while (System.currentTimeMillis() < timeoutMillis) {
-            bundleState = bundleStateMBean.getState(bundleId);
-            if (BundleStateMBean.ACTIVE.equals(bundleState)) {
-                return;
-            } else {
-                Thread.sleep(500);
+        final String[] bundleState = new String[1];
+        final long bundleId = list.get(0).getBundleId();
+        NotificationWaiter waiter = newNotificationWaiter(bundleStateMBean);
+        boolean active = waiter.await(new NotificationWaiter.Condition() {
+            @Override
+            public boolean isSatisfied() throws IOException {
+                bundleState[0] = bundleStateMBean.getState(bundleId);
+                return BundleStateMBean.ACTIVE.equals(bundleState[0]);
+            }
+        }, timeout, unit);
+        if (!active)
+            throw new TimeoutException("Arquillian bundle [" + bundleId + "] not started: " + bundleState[0]);
+    }
+
+    private NotificationWaiter newNotificationWaiter(Object mbeanProxy) {
+        return newNotificationWaiter(mbeanProxy, NotificationWaiter.MAX_SUBSCRIBED_POLL_MILLIS);
+    }
+
+    private NotificationWaiter newNotificationWaiter(Object mbeanProxy, long maxSubscribedPollMillis) {
+        if (mbeanProxy != null && Proxy.isProxyClass(mbeanProxy.getClass())) {
+            InvocationHandler handler = Proxy.getInvocationHandler(mbeanProxy);
+            if (handler instanceof MBeanServerInvocationHandler) {
+                MBeanServerInvocationHandler mbeanHandler = (MBeanServerInvocationHandler) handler;
+                return new NotificationWaiter(mbeanHandler.getMBeanServerConnection(), mbeanHandler.getObjectName(), maxSubscribedPollMillis);
             }
         }
-        throw new TimeoutException("Arquillian bundle [" + bundleId + "] not started: " + bundleState);
+        // Not a JMX proxy, fall back to polling
+        return new NotificationWaiter(null, null);
     }
 
-    protected MBeanServerConnection getMBeanServerConnection(final long timeout, final TimeUnit unit)
-            throws TimeoutException {
-        Callable<MBeanServerConnection> callable = new Callable<MBeanServerConnection>() {
-            @Override
-            public MBeanServerConnection call() throws Exception {
-                Exception lastException = null;
-                long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
-                while (System.currentTimeMillis() < timeoutMillis) {
+    protected MBeanServerConnection getMBeanServerConnection(long timeout, TimeUnit unit) throws TimeoutException {
+        Exception lastException = null;
+        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        // Retry quickly at first, a server that is coming up usually accepts connections shortly after its port opens
+        long backoff = 10;
+        while (System.currentTimeMillis() < timeoutMillis) {
+            try {
+                return getMBeanServerConnection();
+            } catch (Exception ex) {
+                lastException = ex;
+                long remaining = timeoutMillis - System.currentTimeMillis();
+                if (remaining > 0) {
                     try {
-                        return getMBeanServerConnection();
-                    } catch (Exception ex) {
-                        lastException = ex;
-                        Thread.sleep(500);
+                        Thread.sleep(Math.min(backoff, remaining));
+                        backoff = Math.min(backoff * 2, 500);
+                    } catch (InterruptedException ie) {
+                        Thread.currentThread().interrupt();
+                        break;
                     }
                 }
-                TimeoutException timeoutException = new TimeoutException();
-                timeoutException.initCause(lastException);
-                throw timeoutException;
             }
-        };
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<MBeanServerConnection> future = executor.submit(callable);
-        try {
-            return future.get(timeout, unit);
-        } catch (TimeoutException ex) {
-            throw ex;
-        } catch (Exception ex) {
-            throw new IllegalStateException(ex);
         }
+        TimeoutException timeoutException = new TimeoutException();
+        timeoutException.initCause(lastException);
+        throw timeoutException;
     }
 
     protected MBeanServerConnection getMBeanServerConnection() throws IOException {
-        String[] credentials = new String[] { config.getJmxUsername(), config.getJmxPassword() };
-        Map<String, ?> env = Collections.singletonMap(JMXConnector.CREDENTIALS, credentials);
-        JMXServiceURL serviceURL = new JMXServiceURL(config.getJmxServiceURL());
-        JMXConnector connector = JMXConnectorFactory.connect(serviceURL, env);
-        return connector.getMBeanServerConnection();
+        return getConnectionManager().getConnection();
     }
 
     protected <U> U getMBeanProxy(final MBeanServerConnection mbeanServer, final ObjectName oname, final Class<U> type,
         final long timeout, final TimeUnit unit) throws TimeoutException {
+        final Set<ObjectName> names = new HashSet<ObjectName>();
+        boolean found;
+        try {
+            found = newNotificationWaiter(mbeanServer).await(new NotificationWaiter.Condition() {
+                @Override
+                public boolean isSatisfied() throws IOException {
+                    names.clear();
+                    names.addAll(mbeanServer.queryNames(oname, null));
+                    return names.size() == 1;
+                }
+            }, timeout, unit);
+        } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(ex);
+        }
+        if (!found) {
+            logger.warn("Cannot get MBean proxy for type: " + oname);
+            throw new TimeoutException();
+        }
+        return MBeanServerInvocationHandler.newProxyInstance(mbeanServer, names.iterator().next(), type, false);
+    }
 
-        Callable<U> callable = new Callable<U>() {
+    /**
+     * Look up the framework, bundleState and serviceState MBeans in a single query per attempt
+     */
+    protected void lookupOSGiMBeans(final MBeanServerConnection mbeanServer, long timeout, TimeUnit unit) throws TimeoutException, IOException,
+        InterruptedException {
+        final ObjectName pattern = ObjectNameFactory.create("osgi.core:*");
+        final Map<String, ObjectName> found = new HashMap<String, ObjectName>();
+        boolean complete = newNotificationWaiter(mbeanServer).await(new NotificationWaiter.Condition() {
             @Override
-            public U call() throws Exception {
-                IOException lastException = null;
-                long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
-                while (System.currentTimeMillis() < timeoutMillis) {
-                    Set<ObjectName> names = mbeanServer.queryNames(oname, null);
-                    if (names.size() == 1) {
-                        ObjectName instanceName = names.iterator().next();
-                        return MBeanServerInvocationHandler.newProxyInstance(mbeanServer, instanceName, type, false);
-                    } else {
-                        Thread.sleep(500);
+            public boolean isSatisfied() throws IOException {
+                found.clear();
+                for (ObjectName name : mbeanServer.queryNames(pattern, null)) {
+                    String type = name.getKeyProperty("type");
+                    if (found.put(type, name) != null) {
+                        logger.warn("Multiple MBeans of type {}, using: {}", type, name);
                     }
                 }
-                logger.warn("Cannot get MBean proxy for type: " + oname, lastException);
-                throw new TimeoutException();
+                return found.containsKey("framework") && found.containsKey("bundleState") && found.containsKey("serviceState");
             }
-        };
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        Future<U> future = executor.submit(callable);
-        try {
-            return future.get(timeout, unit);
-        } catch (TimeoutException ex) {
-            throw ex;
-        } catch (Exception ex) {
-            throw new IllegalStateException(ex);
-        }
+        }, timeout, unit);
+        if (!complete)
+            throw new TimeoutException("Cannot obtain OSGi MBeans, found: " + found.values());
+
+        frameworkMBean = MBeanServerInvocationHandler.newProxyInstance(mbeanServer, found.get("framework"), FrameworkMBean.class, false);
+        bundleStateMBean = MBeanServerInvocationHandler.newProxyInstance(mbeanServer, found.get("bundleState"), BundleStateMBean.class, false);
+        serviceStateMBean = MBeanServerInvocationHandler.newProxyInstance(mbeanServer, found.get("serviceState"), ServiceStateMBean.class, false);
+    }
+
+    private NotificationWaiter newNotificationWaiter(MBeanServerConnection mbeanServer) {
+        // The delegate notifies about every MBean registration
+        return new NotificationWaiter(mbeanServer, MBeanServerDelegate.DELEGATE_NAME);
     }
 
     protected List<BundleHandle> listBundles(String symbolicName) throws IOException {
         List<BundleHandle> bundleList = new ArrayList<BundleHandle>();
-        TabularData listBundles = bundleStateMBean.listBundles();
-        Iterator<?> iterator = listBundles.values().iterator();
-        while (iterator.hasNext()) {
-            CompositeData bundleType = (CompositeData) iterator.next();
-            Long bundleId = (Long) bundleType.get(BundleStateMBean.IDENTIFIER);
-            String auxName = (String) bundleType.get(BundleStateMBean.SYMBOLIC_NAME);
-            if (symbolicName == null || symbolicName.equals(auxName)) {
-                bundleList.add(new BundleHandle(bundleId, symbolicName));
-            }
+        for (BundleStateCache.Entry entry : getBundleStateCache().getBundles(symbolicName)) {
+            bundleList.add(new BundleHandle(entry.bundleId, symbolicName));
         }
         return bundleList;
     }
@@ -421,22 +664,43 @@ public abstract class JMXDeployableContainer<T extends JMXContainerConfiguration
         if (bHandle == null) {
             throw new IllegalStateException("Bundle '" + symbolicName + ":" + version + "' was not found");
         }
+        long startNanos = System.nanoTime();
         frameworkMBean.startBundle(bHandle.getBundleId());
+        getMetrics().recordSince(Phase.START, symbolicName, startNanos);
     }
 
     protected BundleHandle getBundle(String symbolicName, String version) throws Exception {
-        TabularData listBundles = bundleStateMBean.listBundles();
-        Iterator<?> iterator = listBundles.values().iterator();
-        while (iterator.hasNext()) {
-            CompositeData bundleType = (CompositeData) iterator.next();
-            Long bundleId = (Long) bundleType.get(BundleStateMBean.IDENTIFIER);
-            String auxName = (String) bundleType.get(BundleStateMBean.SYMBOLIC_NAME);
-            String auxVersion = (String) bundleType.get(BundleStateMBean.VERSION);
-            if (symbolicName.equals(auxName) && version.equals(auxVersion)) {
-                return new BundleHandle(bundleId, symbolicName);
+        BundleStateCache.Entry entry = getBundleStateCache().getBundle(symbolicName, version);
+        return entry != null ? new BundleHandle(entry.bundleId, symbolicName) : null;
+    }
+
+    /**
+     * @return the uploader if configured for a remote system and provided by the arquillian bundle, null otherwise
+     */
+    private BundleUploader getBundleUploader() throws IOException {
+        if (!config.isBundleUpload() || getConnectionManager().isLocalHost())
+            return null;
+
+        BundleUploader uploader = new BundleUploader(getConnectionManager().getConnection());
+        if (!uploader.isAvailable()) {
+            logger.debug("No bundle upload service, serving over HTTP");
+            return null;
+        }
+        return uploader;
+    }
+
+    private synchronized BundleStateCache getBundleStateCache() {
+        if (bundleStateCache == null) {
+            ObjectName emitter = null;
+            if (Proxy.isProxyClass(bundleStateMBean.getClass())) {
+                InvocationHandler handler = Proxy.getInvocationHandler(bundleStateMBean);
+                if (handler instanceof MBeanServerInvocationHandler) {
+                    emitter = ((MBeanServerInvocationHandler) handler).getObjectName();
+                }
             }
+            bundleStateCache = new BundleStateCache(getConnectionManager(), bundleStateMBean, emitter);
         }
-        return null;
+        return bundleStateCache;
     }
 
     static class BundleHandle {
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import java.io.IOException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServerConnection;
+import javax.management.Notification;
+import javax.management.NotificationListener;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Waits for a condition in a remote framework.
+ *
+ * The condition is checked again as soon as the emitter MBean sends a notification, and otherwise
+ * with an exponential backoff. The backoff is capped lower when the emitter cannot be subscribed to,
+ * or when the notifications of the emitter do not cover every change of the condition.
+ */
+class NotificationWaiter implements NotificationListener {
+
+    static final Logger logger = LoggerFactory.getLogger(NotificationWaiter.class.getPackage().getName());
+
+    static final long MIN_POLL_MILLIS = 10;
+    static final long MAX_POLL_MILLIS = 500;
+    static final long MAX_SUBSCRIBED_POLL_MILLIS = 2000;
+
+    interface Condition {
+        boolean isSatisfied() throws IOException;
+    }
+
+    private final MBeanServerConnection mbeanServer;
+    private final ObjectName emitter;
+    private final long maxSubscribedPollMillis;
+    private final Semaphore signal = new Semaphore(0);
+
+    /**
+     * @param emitter the MBean whose notifications trigger a check, may be null
+     */
+    NotificationWaiter(MBeanServerConnection mbeanServer, ObjectName emitter) {
+        this(mbeanServer, emitter, MAX_SUBSCRIBED_POLL_MILLIS);
+    }
+
+    /**
+     * @param emitter the MBean whose notifications trigger a check, may be null
+     * @param maxSubscribedPollMillis the backoff cap while subscribed to the emitter
+     */
+    NotificationWaiter(MBeanServerConnection mbeanServer, ObjectName emitter, long maxSubscribedPollMillis) {
+        this.mbeanServer = mbeanServer;
+        this.emitter = emitter;
+        this.maxSubscribedPollMillis = maxSubscribedPollMillis;
+    }
+
+    /**
+     * @return true if the condition was satisfied before the timeout
+     */
+    boolean await(Condition condition, long timeout, TimeUnit unit) throws IOException, InterruptedException {
+        boolean subscribed = subscribe();
+        try {
+            long maxPollMillis = subscribed ? maxSubscribedPollMillis : MAX_POLL_MILLIS;
+            long pollMillis = MIN_POLL_MILLIS;
+            long deadline = System.nanoTime() + unit.toNanos(timeout);
+            while (true) {
+                if (condition.isSatisfied())
+                    return true;
+
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0)
+                    return false;
+
+                if (signal.tryAcquire(Math.min(pollMillis, remainingMillis), TimeUnit.MILLISECONDS)) {
+                    signal.drainPermits();
+                }
+                pollMillis = Math.min(pollMillis * 2, maxPollMillis);
+            }
+        } finally {
+            if (subscribed) {
+                unsubscribe();
+            }
+        }
+    }
+
+    @Override
+    public void handleNotification(Notification notification, Object handback) {
+        signal.release();
+    }
+
+    private boolean subscribe() {
+        if (mbeanServer == null || emitter == null)
+            return false;
+        try {
+            mbeanServer.addNotificationListener(emitter, this, null, null);
+            return true;
+        } catch (Exception ex) {
+            // The MBean is not a notification broadcaster
+            logger.debug("Cannot subscribe to {}, polling instead: {}", emitter, ex.toString());
+            return false;
+        }
+    }
+
+    private void unsubscribe() {
+        try {
+            mbeanServer.removeNotificationListener(emitter, this);
+        } catch (Exception ex) {
+            logger.debug("Cannot unsubscribe from {}: {}", emitter, ex.toString());
+        }
+    }
+}
@@ -1,39 +1,90 @@
 package org.jboss.arquillian.container.osgi.jmx.http;
 
-import java.io.BufferedReader;
-import java.io.DataOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TimeZone;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import org.jboss.osgi.vfs.VFSUtils;
+import org.jboss.arquillian.container.osgi.util.FileUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 /**
- * A very simple HTTP server, capable of serving multiple files.
+ * A very simple HTTP/1.1 server, capable of serving multiple files.
+ *
+ * All connections are multiplexed on a single selector thread. Requests are resolved on a small bounded
+ * worker pool and the content is written with {@link FileChannel#transferTo}, so serving does not copy
+ * through the heap. Responses carry a <code>Content-Length</code>, connections are kept alive and
+ * <code>HEAD</code> and single byte range requests are supported.
+ *
+ * Content registered with {@link #serveContent(URL)} is addressed by its SHA-256, which is also sent as
+ * <code>ETag</code>, so the same content is served from one URL for the lifetime of the server.
  */
 public class SimpleHTTPServer {
 
     static final Logger _logger = LoggerFactory.getLogger(SimpleHTTPServer.class.getPackage().getName());
 
-    private final Map<String, URL> streams = Collections.synchronizedMap(new HashMap<String, URL>());
-    private final List<ClientConnection> clients = new ArrayList<ClientConnection>();
-    private final ServerSocket serverSocket;
+    static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    private static final int MAX_WORKERS = Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_REQUEST_SIZE = 8192;
+    private static final long IDLE_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+    private static final long SELECT_TIMEOUT = 1000;
+
+    // SHA-256 of local files by path, size and modification time
+    private static final Map<String, String> fileDigests = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, Content> streams = new ConcurrentHashMap<String, Content>();
+    private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<Runnable>();
+    private final Set<Connection> connections = new HashSet<Connection>();
+    private final ServerSocketChannel serverChannel;
+    private final Selector selector;
+    private final ThreadPoolExecutor workers;
     private final String canonicalHostName;
 
     private volatile boolean running = true;
+    private Thread selectorThread;
 
     /**
      * Constructs an HTTP server, which will run on a randomly selected port on the wildcard address.
@@ -54,68 +105,98 @@ public class SimpleHTTPServer {
 
     private SimpleHTTPServer(InetAddress bindAddress, String canonicalHostname, int port) throws IOException {
         this.canonicalHostName = canonicalHostname;
-        this.serverSocket = new ServerSocket();
-        serverSocket.bind(new InetSocketAddress(bindAddress, port));
+        this.serverChannel = ServerSocketChannel.open();
+        this.selector = Selector.open();
+        try {
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind(new InetSocketAddress(bindAddress, port));
+            serverChannel.configureBlocking(false);
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            closeQuietly(selector);
+            closeQuietly(serverChannel);
+            throw ex;
+        }
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(MAX_WORKERS, MAX_WORKERS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new WorkerThreadFactory());
+        executor.allowCoreThreadTimeOut(true);
+        this.workers = executor;
     }
 
     /**
      * Register a stream for serving.
      *
-     * @param stream the URL to obtain the stream contents, which will be opened each time the stream is served.
+     * The content of a <code>file:</code> URL is read each time the stream is served. Any other URL is opened
+     * once, on the first request, and its content is kept in a temporary file until the server is shut down.
+     *
+     * @param stream the URL to obtain the stream contents
      * @return an HTTP URL that can be used to access the contents of the provided stream.
      */
     public URL serve(URL stream) {
         final String token = UUID.randomUUID().toString();
-        streams.put(token, stream);
+        streams.put(token, new Content(stream));
         try {
-            return new URL(String.format("http://%s:%d/%s", canonicalHostName, this.serverSocket.getLocalPort(), token));
+            return new URL(String.format("http://%s:%d/%s", canonicalHostName, getPort(), token));
         } catch (MalformedURLException e) {
             throw new IllegalStateException("HTTP url could not be parsed.", e);
         }
     }
 
-    private void serve() {
-        try {
-            while (running) {
-                ClientConnection client = new ClientConnection(serverSocket.accept());
-                onClientConnect(client);
-                client.start();
+    /**
+     * Register a stream for serving under its SHA-256.
+     *
+     * The content is read once to compute the digest. Content that is not a local file is kept in a temporary
+     * file until the server is shut down. Registering the same content again returns the same URL, and the other
+     * local files with that content are served when the first one is deleted.
+     *
+     * @param stream the URL to obtain the stream contents
+     * @return an HTTP URL that can be used to access the contents of the provided stream.
+     */
+    public URL serveContent(URL stream) throws IOException {
+        Content content = new Content(stream);
+        String sha256 = content.digest();
+        Content existing = streams.putIfAbsent(sha256, content);
+        if (existing != null) {
+            _logger.debug("Serving {} from cached content {}", stream, sha256);
+            if ("file".equals(stream.getProtocol())) {
+                existing.addAlternate(stream);
             }
-        } catch (Exception e) {
-            runError("Error accepting connection", e);
+            content.release();
         }
-    }
-
-    private synchronized void onClientConnect(ClientConnection client) {
-        if (!running) {
-            client.shutdown();
-        } else {
-            clients.add(client);
+        try {
+            return new URL(String.format("http://%s:%d/%s", canonicalHostName, getPort(), sha256));
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException("HTTP url could not be parsed.", e);
         }
     }
 
-    private synchronized void onClientDisconnect(ClientConnection client) {
-        clients.remove(client);
-    }
-
-    private void runError(String message, Throwable t) {
-        if (running) {
-            _logger.error(message, t);
-        }
+    /**
+     * @return the port this server is bound to
+     */
+    public int getPort() {
+        return serverChannel.socket().getLocalPort();
     }
 
     /**
      * Starts listening for client connections.
      */
-    public void start() {
-        Thread srv = new Thread("Simple HTTP Server") {
+    public synchronized void start() {
+        if (selectorThread != null)
+            throw new IllegalStateException("Server already started");
+        selectorThread = new Thread("Simple HTTP Server") {
             @Override
             public void run() {
-                serve();
+                try {
+                    select();
+                } catch (Exception e) {
+                    runError("Error serving connections", e);
+                } finally {
+                    closeAll();
+                }
             }
         };
-        srv.setDaemon(true);
-        srv.start();
+        selectorThread.setDaemon(true);
+        selectorThread.start();
     }
 
     /**
@@ -123,89 +204,614 @@ public class SimpleHTTPServer {
      */
     public void shutdown() {
         running = false;
+        Thread thread;
+        synchronized (this) {
+            thread = selectorThread;
+        }
+        if (thread != null) {
+            selector.wakeup();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        } else {
+            closeAll();
+        }
+        workers.shutdownNow();
+        for (Content content : streams.values()) {
+            content.release();
+        }
+        streams.clear();
+    }
+
+    private void select() throws IOException {
+        while (running) {
+            selector.select(SELECT_TIMEOUT);
+            Runnable task;
+            while ((task = selectorTasks.poll()) != null) {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    runError("Error dispatching response", e);
+                }
+            }
+            Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid())
+                    continue;
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        connection.onReadable();
+                    } else if (key.isWritable()) {
+                        connection.onWritable();
+                    }
+                } catch (IOException e) {
+                    _logger.debug("Closing connection after I/O error: {}", e.toString());
+                    connection.close();
+                }
+            }
+            closeIdleConnections();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Connection connection = new Connection(channel);
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            connections.add(connection);
+        }
+    }
+
+    private void closeIdleConnections() {
+        long now = System.currentTimeMillis();
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            if (connection.isIdle(now)) {
+                _logger.debug("Closing idle connection");
+                connection.close();
+            }
+        }
+    }
+
+    private void closeAll() {
+        for (Connection connection : new ArrayList<Connection>(connections)) {
+            connection.close();
+        }
+        closeQuietly(serverChannel);
+        closeQuietly(selector);
+    }
+
+    private void runInSelector(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    private void runError(String message, Throwable t) {
+        if (running) {
+            _logger.error(message, t);
+        }
+    }
+
+    static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    static void closeQuietly(Selector selector) {
         try {
-            serverSocket.close();
+            selector.close();
         } catch (IOException e) {
+            // ignore
         }
+    }
 
-        final ArrayList<ClientConnection> runningClients;
-        synchronized (this) {
-            runningClients = new ArrayList<ClientConnection>(clients);
-            clients.clear();
+    /**
+     * A client connection, owned by the selector thread except while a worker prepares its response.
+     */
+    private class Connection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer requestBuffer = ByteBuffer.allocate(MAX_REQUEST_SIZE);
+        private SelectionKey key;
+        private Response response;
+        private boolean processing;
+        private long lastActivity = System.currentTimeMillis();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
         }
-        for (ClientConnection client : runningClients) {
-            client.shutdown();
+
+        boolean isIdle(long now) {
+            return !processing && response == null && now - lastActivity > IDLE_TIMEOUT;
+        }
+
+        void onReadable() throws IOException {
+            int num = channel.read(requestBuffer);
+            if (num < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            dispatchRequest();
         }
-    }
 
-    private class ClientConnection extends Thread {
-        private Socket socket;
+        void onWritable() throws IOException {
+            lastActivity = System.currentTimeMillis();
+            if (!response.writeTo(channel))
+                return;
 
-        public ClientConnection(Socket socket) {
-            setDaemon(true);
-            this.socket = socket;
+            response.close();
+            boolean keepAlive = response.keepAlive;
+            response = null;
+            if (!keepAlive) {
+                close();
+                return;
+            }
+            key.interestOps(SelectionKey.OP_READ);
+            // A pipelined request may already be buffered
+            dispatchRequest();
         }
 
-        public void run() {
+        private void dispatchRequest() {
+            final String request = takeRequest();
+            if (request == null) {
+                if (!requestBuffer.hasRemaining()) {
+                    respond(Response.status(431, "Request Header Fields Too Large", false));
+                }
+                return;
+            }
+            processing = true;
+            key.interestOps(0);
             try {
-                final BufferedReader input = new BufferedReader(
-                        new InputStreamReader(socket.getInputStream(), "US-ASCII"));
-                final DataOutputStream output = new DataOutputStream(socket.getOutputStream());
-                try {
-                    final String line = input.readLine();
-                    _logger.debug("Incoming request [{}]", line);
-                    if ((line == null) || line.length() < 1) {
-                        return;
-                    }
-                    final URL streamUrl = getRequestedFile(line);
-                    if (streamUrl != null) {
-                        _logger.debug("For [{}] serving {}", line, streamUrl);
-                        writeResponse(output, "200 OK");
-                        VFSUtils.copyStream(streamUrl.openStream(), output);
-                    } else {
-                        writeResponse(output, "404 Not Found");
-                        _logger.warn("For [{}] no file found", line);
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        final Response result = process(request);
+                        runInSelector(new Runnable() {
+                            @Override
+                            public void run() {
+                                processing = false;
+                                if (channel.isOpen()) {
+                                    respond(result);
+                                } else {
+                                    result.close();
+                                }
+                            }
+                        });
                     }
-                } catch (Exception e) {
-                    writeResponse(output, "500 Server Error");
-                    runError("Error serving file", e);
-                } finally {
-                    output.flush();
+                });
+            } catch (RejectedExecutionException e) {
+                close();
+            }
+        }
+
+        /**
+         * Remove a complete request head from the buffer
+         *
+         * @return the request head or null if it is not complete yet
+         */
+        private String takeRequest() {
+            int end = -1;
+            for (int i = 3; i < requestBuffer.position(); i++) {
+                if (requestBuffer.get(i - 3) == '\r' && requestBuffer.get(i - 2) == '\n' && requestBuffer.get(i - 1) == '\r'
+                        && requestBuffer.get(i) == '\n') {
+                    end = i + 1;
+                    break;
                 }
-            } catch (Exception e) {
-                runError("Error setting up file serving thread", e);
-            } finally {
-                shutdown();
             }
+            if (end < 0)
+                return null;
+
+            requestBuffer.flip();
+            byte[] head = new byte[end];
+            requestBuffer.get(head);
+            requestBuffer.compact();
+            return new String(head, US_ASCII);
+        }
+
+        private void respond(Response result) {
+            response = result;
+            lastActivity = System.currentTimeMillis();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void close() {
+            connections.remove(this);
+            if (response != null) {
+                response.close();
+                response = null;
+            }
+            if (key != null) {
+                key.cancel();
+            }
+            closeQuietly(channel);
+        }
+    }
+
+    Response process(String request) {
+        String[] lines = request.split("\r\n");
+        _logger.debug("Incoming request [{}]", lines[0]);
+        String[] parts = lines[0].split(" ");
+        if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+            return Response.status(400, "Bad Request", false);
+        }
+        String method = parts[0];
+        boolean http11 = !parts[2].equals("HTTP/1.0");
+        String connectionHeader = null;
+        String rangeHeader = null;
+        String ifNoneMatch = null;
+        String ifModifiedSince = null;
+        boolean hasBody = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0)
+                continue;
+            String name = lines[i].substring(0, colon).trim().toLowerCase(Locale.ENGLISH);
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equals("connection")) {
+                connectionHeader = value.toLowerCase(Locale.ENGLISH);
+            } else if (name.equals("range")) {
+                rangeHeader = value;
+            } else if (name.equals("if-none-match")) {
+                ifNoneMatch = value;
+            } else if (name.equals("if-modified-since")) {
+                ifModifiedSince = value;
+            } else if (name.equals("transfer-encoding") || (name.equals("content-length") && !value.equals("0"))) {
+                hasBody = true;
+            }
+        }
+        // Request bodies are not read, so the connection cannot be reused after one
+        boolean keepAlive = !hasBody && (http11 ? !"close".equals(connectionHeader) : "keep-alive".equals(connectionHeader));
+
+        boolean head = method.equals("HEAD");
+        if (!head && !method.equals("GET")) {
+            return Response.status(405, "Method Not Allowed", keepAlive);
+        }
+        Content content = parts[1].startsWith("/") ? streams.get(parts[1].substring(1)) : null;
+        if (content == null) {
+            _logger.warn("For [{}] no file found", lines[0]);
+            return Response.status(404, "Not Found", keepAlive);
+        }
+
+        try {
+            File file = content.getFile();
+            String etag = content.sha256 != null ? "\"" + content.sha256 + "\"" : null;
+            long lastModified = content.getLastModified() / 1000 * 1000;
+            if (isNotModified(etag, lastModified, ifNoneMatch, ifModifiedSince)) {
+                Response response = Response.status(304, "Not Modified", keepAlive);
+                response.setValidators(etag, lastModified);
+                return response;
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            FileChannel body = raf.getChannel();
+            long length = body.size();
+            long[] range = parseRange(rangeHeader, length);
+            Response response;
+            if (range == null) {
+                response = new Response(200, "OK", keepAlive, body, 0, length, null);
+            } else if (range.length == 0) {
+                closeQuietly(raf);
+                response = new Response(416, "Range Not Satisfiable", keepAlive, null, 0, 0, "bytes */" + length);
+            } else {
+                response = new Response(206, "Partial Content", keepAlive, body, range[0], range[1] - range[0] + 1, "bytes " + range[0]
+                        + "-" + range[1] + "/" + length);
+            }
+            response.setValidators(etag, lastModified);
+            if (head) {
+                response.skipBody();
+            }
+            _logger.debug("For [{}] serving {}", lines[0], content.url);
+            return response;
+        } catch (Exception e) {
+            runError("Error serving file", e);
+            return Response.status(500, "Server Error", false);
+        }
+    }
+
+    static boolean isNotModified(String etag, long lastModified, String ifNoneMatch, String ifModifiedSince) {
+        if (ifNoneMatch != null) {
+            if (etag == null)
+                return false;
+            for (String candidate : ifNoneMatch.split(",")) {
+                String value = candidate.trim();
+                if (value.startsWith("W/")) {
+                    value = value.substring(2);
+                }
+                if (value.equals("*") || value.equals(etag))
+                    return true;
+            }
+            return false;
+        }
+        if (ifModifiedSince != null && lastModified > 0) {
+            try {
+                return lastModified <= newHttpDateFormat().parse(ifModifiedSince).getTime();
+            } catch (ParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
+    static DateFormat newHttpDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return format;
+    }
+
+    /**
+     * Parse a single byte range
+     *
+     * @return null to serve the whole content, an empty array if not satisfiable, or the first and last byte position
+     */
+    static long[] parseRange(String header, long length) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0)
+            return null;
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0)
+            return null;
+        try {
+            long first;
+            long last;
+            if (dash == 0) {
+                long suffix = Long.parseLong(spec.substring(1));
+                if (suffix <= 0)
+                    return new long[0];
+                first = Math.max(0, length - suffix);
+                last = length - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+            }
+            if (first >= length || first > last)
+                return new long[0];
+            return new long[] { first, last };
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A response with a head and an optional region of a file as body
+     */
+    static class Response {
+
+        final boolean keepAlive;
+        private final StringBuilder headers = new StringBuilder();
+        private ByteBuffer head;
+        private FileChannel body;
+        private long position;
+        private long remaining;
+
+        Response(int status, String reason, boolean keepAlive, FileChannel body, long position, long count, String contentRange) {
+            this.keepAlive = keepAlive;
+            this.body = body;
+            this.position = position;
+            this.remaining = count;
+            StringBuilder builder = headers;
+            builder.append("HTTP/1.1 ").append(status).append(' ').append(reason).append("\r\n");
+            builder.append("Content-Length: ").append(count).append("\r\n");
+            if (body != null) {
+                builder.append("Content-Type: application/octet-stream\r\n");
+            }
+            if (status == 405) {
+                builder.append("Allow: GET, HEAD\r\n");
+            }
+            builder.append("Accept-Ranges: bytes\r\n");
+            if (contentRange != null) {
+                builder.append("Content-Range: ").append(contentRange).append("\r\n");
+            }
+            builder.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
         }
 
-        private void writeResponse(DataOutputStream output, String responseLine) throws IOException {
-            output.writeBytes("HTTP/1.0 ");
-            output.writeBytes(responseLine);
-            output.writeBytes("\r\n\r\n");
+        void setValidators(String etag, long lastModified) {
+            if (etag != null) {
+                headers.append("ETag: ").append(etag).append("\r\n");
+            }
+            if (lastModified > 0) {
+                headers.append("Last-Modified: ").append(newHttpDateFormat().format(new Date(lastModified))).append("\r\n");
+            }
+        }
+
+        static Response status(int status, String reason, boolean keepAlive) {
+            return new Response(status, reason, keepAlive, null, 0, 0, null);
         }
 
-        private URL getRequestedFile(String requestLine) {
-            if (requestLine.startsWith("GET")) {
-                String[] parts = requestLine.split(" ");
-                if ((parts.length >= 2) && parts[1].startsWith("/")) {
-                    String token = parts[1].substring(1);
-                    return streams.get(token);
+        void skipBody() {
+            closeQuietly(body);
+            body = null;
+            remaining = 0;
+        }
+
+        /**
+         * @return true if the response has been written completely
+         */
+        boolean writeTo(SocketChannel channel) throws IOException {
+            if (head == null) {
+                head = ByteBuffer.wrap(headers.append("\r\n").toString().getBytes(US_ASCII));
+            }
+            if (head.hasRemaining()) {
+                channel.write(head);
+                if (head.hasRemaining())
+                    return false;
+            }
+            while (remaining > 0) {
+                long num = body.transferTo(position, remaining, channel);
+                if (num <= 0)
+                    return false;
+                position += num;
+                remaining -= num;
+            }
+            return true;
+        }
+
+        void close() {
+            closeQuietly(body);
+            body = null;
+        }
+    }
+
+    /**
+     * The content behind a served URL
+     */
+    static class Content {
+
+        final URL url;
+        private final List<URL> alternates = new ArrayList<URL>();
+        private volatile String sha256;
+        private File file;
+        private boolean temporary;
+        private long lastModified;
+
+        Content(URL url) {
+            this.url = url;
+        }
+
+        /**
+         * Add another local file with the same content, it is served when the file of this content is missing
+         */
+        synchronized void addAlternate(URL alternate) {
+            if (!alternate.equals(url) && !alternates.contains(alternate)) {
+                alternates.add(alternate);
+            }
+        }
+
+        synchronized File getFile() throws IOException {
+            if (file == null) {
+                if ("file".equals(url.getProtocol())) {
+                    try {
+                        file = new File(url.toURI());
+                    } catch (URISyntaxException e) {
+                        file = new File(url.getPath());
+                    }
+                } else {
+                    spool(null);
+                }
+            }
+            if (!temporary && !file.exists()) {
+                File alternate = findAlternate();
+                if (alternate != null) {
+                    _logger.debug("Serving {} from {}", url, alternate);
+                    file = alternate;
                 }
             }
+            return file;
+        }
+
+        // Drop the alternates that are missing or no longer have the same content
+        private File findAlternate() throws IOException {
+            Iterator<URL> iterator = alternates.iterator();
+            while (iterator.hasNext()) {
+                Content candidate = new Content(iterator.next());
+                File candidateFile = candidate.getFile();
+                iterator.remove();
+                if (candidateFile.exists() && candidate.digest().equals(sha256))
+                    return candidateFile;
+            }
             return null;
         }
 
-        public synchronized void shutdown() {
-            if (socket != null) {
+        synchronized long getLastModified() {
+            return temporary ? lastModified : (file != null ? file.lastModified() : 0);
+        }
+
+        /**
+         * Compute the SHA-256 of the content
+         */
+        synchronized String digest() throws IOException {
+            if (sha256 != null)
+                return sha256;
+
+            MessageDigest digest = FileUtils.newDigest("SHA-256");
+            if ("file".equals(url.getProtocol())) {
+                File localFile = getFile();
+                String key = localFile.getAbsolutePath() + "|" + localFile.length() + "|" + localFile.lastModified();
+                String cached = fileDigests.get(key);
+                if (cached == null) {
+                    InputStream input = new FileInputStream(localFile);
+                    try {
+                        byte[] buffer = new byte[65536];
+                        int num;
+                        while ((num = input.read(buffer)) != -1) {
+                            digest.update(buffer, 0, num);
+                        }
+                    } finally {
+                        input.close();
+                    }
+                    cached = FileUtils.toHexString(digest.digest());
+                    fileDigests.put(key, cached);
+                }
+                sha256 = cached;
+            } else {
+                spool(digest);
+                sha256 = FileUtils.toHexString(digest.digest());
+            }
+            return sha256;
+        }
+
+        // Spool other content once, so that it can be transferred like a plain file
+        private void spool(MessageDigest digest) throws IOException {
+            File tmpFile = File.createTempFile("arquillian-osgi-", ".jar");
+            tmpFile.deleteOnExit();
+            InputStream input = url.openStream();
+            try {
+                OutputStream output = new FileOutputStream(tmpFile);
+                if (digest != null) {
+                    output = new DigestOutputStream(output, digest);
+                }
                 try {
-                    socket.close();
-                } catch (IOException e) {
+                    byte[] buffer = new byte[65536];
+                    int num;
+                    while ((num = input.read(buffer)) != -1) {
+                        output.write(buffer, 0, num);
+                    }
+                } finally {
+                    output.close();
                 }
-                socket = null;
+            } catch (IOException e) {
+                tmpFile.delete();
+                throw e;
+            } finally {
+                input.close();
+            }
+            file = tmpFile;
+            temporary = true;
+            lastModified = System.currentTimeMillis();
+        }
+
+        synchronized void release() {
+            if (temporary) {
+                file.delete();
             }
-            onClientDisconnect(this);
+            file = null;
+            temporary = false;
         }
     }
 
+    static class WorkerThreadFactory implements ThreadFactory {
+
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Simple HTTP Server Worker-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
 }
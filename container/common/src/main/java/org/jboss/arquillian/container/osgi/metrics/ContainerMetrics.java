@@ -0,0 +1,336 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.metrics;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.container.osgi.jmx.ObjectNameFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Latency histograms of the container lifecycle phases, overall and per deployment name.
+ */
+public class ContainerMetrics implements ContainerMetricsMBean {
+
+    static final Logger logger = LoggerFactory.getLogger(ContainerMetrics.class.getPackage().getName());
+
+    private final String containerName;
+    private final long createTime = System.currentTimeMillis();
+    private final ConcurrentMap<Phase, LatencyHistogram> phases = new ConcurrentHashMap<Phase, LatencyHistogram>();
+    private final ConcurrentMap<String, ConcurrentMap<Phase, LatencyHistogram>> deployments = new ConcurrentHashMap<String, ConcurrentMap<Phase, LatencyHistogram>>();
+    private final ConcurrentMap<String, LatencyHistogram> tests = new ConcurrentHashMap<String, LatencyHistogram>();
+    private ObjectName objectName;
+
+    public ContainerMetrics(String containerName) {
+        this.containerName = containerName;
+    }
+
+    public String getContainerName() {
+        return containerName;
+    }
+
+    /**
+     * Record the duration of a phase
+     * @param deploymentName The deployment the phase belongs to, may be null
+     */
+    public void record(Phase phase, String deploymentName, long nanos) {
+        getHistogram(phases, phase).record(nanos);
+        if (deploymentName != null) {
+            ConcurrentMap<Phase, LatencyHistogram> map = deployments.get(deploymentName);
+            if (map == null) {
+                ConcurrentMap<Phase, LatencyHistogram> newMap = new ConcurrentHashMap<Phase, LatencyHistogram>();
+                map = deployments.putIfAbsent(deploymentName, newMap);
+                if (map == null) {
+                    map = newMap;
+                }
+            }
+            getHistogram(map, phase).record(nanos);
+        }
+    }
+
+    /**
+     * Record the duration of a test invocation
+     * @param testName The name of the test method
+     */
+    public void recordTest(String testName, long nanos) {
+        getHistogram(phases, Phase.TEST_INVOCATION).record(nanos);
+        LatencyHistogram histogram = tests.get(testName);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = tests.putIfAbsent(testName, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        histogram.record(nanos);
+    }
+
+    /**
+     * Record the time elapsed since <code>startNanos</code>
+     */
+    public void recordSince(Phase phase, String deploymentName, long startNanos) {
+        record(phase, deploymentName, System.nanoTime() - startNanos);
+    }
+
+    public LatencyHistogram getHistogram(Phase phase) {
+        return phases.get(phase);
+    }
+
+    private static LatencyHistogram getHistogram(ConcurrentMap<Phase, LatencyHistogram> map, Phase phase) {
+        LatencyHistogram histogram = map.get(phase);
+        if (histogram == null) {
+            LatencyHistogram newHistogram = new LatencyHistogram();
+            histogram = map.putIfAbsent(phase, newHistogram);
+            if (histogram == null) {
+                histogram = newHistogram;
+            }
+        }
+        return histogram;
+    }
+
+    @Override
+    public String[] getPhases() {
+        List<String> result = new ArrayList<String>();
+        for (Phase phase : Phase.values()) {
+            if (phases.containsKey(phase)) {
+                result.add(phase.name());
+            }
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    @Override
+    public String[] getDeploymentNames() {
+        return deployments.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public String[] getTestNames() {
+        return tests.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getCount(String phase) {
+        LatencyHistogram histogram = phases.get(Phase.valueOf(phase));
+        return histogram != null ? histogram.getCount() : 0;
+    }
+
+    @Override
+    public long getTotalMillis(String phase) {
+        LatencyHistogram histogram = phases.get(Phase.valueOf(phase));
+        return histogram != null ? histogram.getTotal(TimeUnit.MILLISECONDS) : 0;
+    }
+
+    @Override
+    public double getMeanMillis(String phase) {
+        LatencyHistogram histogram = phases.get(Phase.valueOf(phase));
+        return histogram != null ? histogram.getMeanMillis() : 0;
+    }
+
+    @Override
+    public long getMaxMillis(String phase) {
+        LatencyHistogram histogram = phases.get(Phase.valueOf(phase));
+        return histogram != null ? histogram.getMax(TimeUnit.MILLISECONDS) : 0;
+    }
+
+    @Override
+    public double getPercentileMillis(String phase, double percentile) {
+        LatencyHistogram histogram = phases.get(Phase.valueOf(phase));
+        return histogram != null ? histogram.getPercentileMillis(percentile) : 0;
+    }
+
+    @Override
+    public double getDeploymentMeanMillis(String deploymentName, String phase) {
+        Map<Phase, LatencyHistogram> map = deployments.get(deploymentName);
+        LatencyHistogram histogram = map != null ? map.get(Phase.valueOf(phase)) : null;
+        return histogram != null ? histogram.getMeanMillis() : 0;
+    }
+
+    @Override
+    public double getTestMeanMillis(String testName) {
+        LatencyHistogram histogram = tests.get(testName);
+        return histogram != null ? histogram.getMeanMillis() : 0;
+    }
+
+    @Override
+    public void reset() {
+        phases.clear();
+        deployments.clear();
+        tests.clear();
+    }
+
+    /**
+     * Register this MBean with the platform MBeanServer
+     */
+    public void registerMBean() {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = ObjectNameFactory.create(OBJECT_NAME_PREFIX + ",name=" + ObjectName.quote(containerName));
+        try {
+            if (mbeanServer.isRegistered(oname)) {
+                mbeanServer.unregisterMBean(oname);
+            }
+            mbeanServer.registerMBean(this, oname);
+            objectName = oname;
+        } catch (JMException ex) {
+            logger.warn("Cannot register: " + oname, ex);
+        }
+    }
+
+    public void unregisterMBean() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (JMException ex) {
+                logger.debug("Cannot unregister: " + objectName, ex);
+            }
+            objectName = null;
+        }
+    }
+
+    /**
+     * Write the JSON report to <code>reportDir</code>
+     * @return the report file or null if it could not be written
+     */
+    public File writeReport(File reportDir) {
+        File reportFile = new File(reportDir, containerName.replaceAll("[^A-Za-z0-9._-]", "_") + "-" + createTime + ".json");
+        try {
+            if (!reportDir.isDirectory() && !reportDir.mkdirs())
+                throw new IOException("Cannot create directory: " + reportDir);
+
+            Writer writer = new OutputStreamWriter(new FileOutputStream(reportFile), "UTF-8");
+            try {
+                writer.write(toJSONString());
+            } finally {
+                writer.close();
+            }
+            logger.info("Container metrics written to: {}", reportFile);
+            return reportFile;
+        } catch (IOException ex) {
+            logger.warn("Cannot write container metrics: " + reportFile, ex);
+            return null;
+        }
+    }
+
+    @Override
+    public String toJSONString() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n  \"container\": ").append(quote(containerName));
+        json.append(",\n  \"created\": ").append(createTime);
+        json.append(",\n  \"phases\": ");
+        appendPhases(json, phases, "  ");
+        json.append(",\n  \"deployments\": {");
+        boolean first = true;
+        for (Map.Entry<String, ConcurrentMap<Phase, LatencyHistogram>> entry : deployments.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append("    ").append(quote(entry.getKey())).append(": ");
+            appendPhases(json, entry.getValue(), "    ");
+            first = false;
+        }
+        json.append(first ? "}" : "\n  }");
+        json.append(",\n  \"tests\": {");
+        first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : tests.entrySet()) {
+            json.append(first ? "\n" : ",\n");
+            json.append("    ").append(quote(entry.getKey())).append(": ");
+            appendHistogram(json, entry.getValue());
+            first = false;
+        }
+        json.append(first ? "}" : "\n  }");
+        json.append("\n}\n");
+        return json.toString();
+    }
+
+    private static void appendPhases(StringBuilder json, Map<Phase, LatencyHistogram> map, String indent) {
+        json.append("{");
+        boolean first = true;
+        for (Phase phase : Phase.values()) {
+            LatencyHistogram histogram = map.get(phase);
+            if (histogram == null)
+                continue;
+
+            json.append(first ? "\n" : ",\n");
+            json.append(indent).append("  ").append(quote(phase.name())).append(": ");
+            appendHistogram(json, histogram);
+            first = false;
+        }
+        json.append(first ? "}" : "\n" + indent + "}");
+    }
+
+    private static void appendHistogram(StringBuilder json, LatencyHistogram histogram) {
+        json.append("{\"count\": ").append(histogram.getCount());
+        json.append(", \"totalMillis\": ").append(histogram.getTotal(TimeUnit.MILLISECONDS));
+        json.append(", \"minMillis\": ").append(histogram.getMin(TimeUnit.MILLISECONDS));
+        json.append(", \"maxMillis\": ").append(histogram.getMax(TimeUnit.MILLISECONDS));
+        json.append(", \"meanMillis\": ").append(histogram.getMeanMillis());
+        json.append(", \"p50Millis\": ").append(histogram.getPercentileMillis(50));
+        json.append(", \"p90Millis\": ").append(histogram.getPercentileMillis(90));
+        json.append(", \"p99Millis\": ").append(histogram.getPercentileMillis(99));
+        json.append(", \"bucketsMicros\": [");
+        long[] buckets = histogram.getBuckets();
+        for (int i = 0; i < buckets.length; i++) {
+            json.append(i > 0 ? ", " : "").append(buckets[i]);
+        }
+        json.append("]}");
+    }
+
+    static String quote(String value) {
+        StringBuilder result = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char ch = value.charAt(i);
+            switch (ch) {
+            case '"':
+                result.append("\\\"");
+                break;
+            case '\\':
+                result.append("\\\\");
+                break;
+            case '\n':
+                result.append("\\n");
+                break;
+            case '\r':
+                result.append("\\r");
+                break;
+            case '\t':
+                result.append("\\t");
+                break;
+            default:
+                if (ch < 0x20) {
+                    result.append(String.format("\\u%04x", (int) ch));
+                } else {
+                    result.append(ch);
+                }
+            }
+        }
+        return result.append("\"").toString();
+    }
+}
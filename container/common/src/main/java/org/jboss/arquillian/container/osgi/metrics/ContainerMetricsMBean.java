@@ -0,0 +1,51 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.metrics;
+
+/**
+ * Management interface of the container lifecycle timings.
+ *
+ * Phase names are the names of the {@link Phase} constants.
+ */
+public interface ContainerMetricsMBean {
+
+    String OBJECT_NAME_PREFIX = "org.jboss.arquillian.osgi:type=ContainerMetrics";
+
+    String[] getPhases();
+
+    String[] getDeploymentNames();
+
+    String[] getTestNames();
+
+    long getCount(String phase);
+
+    long getTotalMillis(String phase);
+
+    double getMeanMillis(String phase);
+
+    long getMaxMillis(String phase);
+
+    double getPercentileMillis(String phase, double percentile);
+
+    double getDeploymentMeanMillis(String deploymentName, String phase);
+
+    double getTestMeanMillis(String testName);
+
+    String toJSONString();
+
+    void reset();
+}
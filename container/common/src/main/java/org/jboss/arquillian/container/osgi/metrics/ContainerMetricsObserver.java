@@ -0,0 +1,55 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.metrics;
+
+import org.jboss.arquillian.container.osgi.CommonDeployableContainer;
+import org.jboss.arquillian.container.spi.Container;
+import org.jboss.arquillian.container.spi.ContainerRegistry;
+import org.jboss.arquillian.core.api.Instance;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.test.spi.event.suite.After;
+import org.jboss.arquillian.test.spi.event.suite.Before;
+
+/**
+ * Records the test invocation time with the metrics of the OSGi containers.
+ */
+public class ContainerMetricsObserver {
+
+    @Inject
+    private Instance<ContainerRegistry> registryInstance;
+
+    private long startNanos;
+
+    public void beforeTest(@Observes Before event) {
+        startNanos = System.nanoTime();
+    }
+
+    public void afterTest(@Observes After event) {
+        long nanos = System.nanoTime() - startNanos;
+        ContainerRegistry registry = registryInstance.get();
+        if (registry != null) {
+            String testName = event.getTestClass().getName() + "#" + event.getTestMethod().getName();
+            for (Container container : registry.getContainers()) {
+                if (container.getState() == Container.State.STARTED && container.getDeployableContainer() instanceof CommonDeployableContainer) {
+                    CommonDeployableContainer<?> deployableContainer = (CommonDeployableContainer<?>) container.getDeployableContainer();
+                    deployableContainer.getMetrics().recordTest(testName, nanos);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ArchivePath;
+import org.jboss.shrinkwrap.api.Node;
+import org.jboss.shrinkwrap.api.asset.ArchiveAsset;
+import org.jboss.shrinkwrap.api.asset.Asset;
+
+/**
+ * Computes a digest over the content of an archive.
+ *
+ * Unlike a digest over the exported ZIP, the result does not depend on entry timestamps,
+ * so the same archive built twice yields the same value.
+ */
+public final class ArchiveDigest {
+
+    private ArchiveDigest() {
+    }
+
+    public static String sha256(Archive<?> archive) {
+        MessageDigest digest = FileUtils.newDigest("SHA-256");
+        try {
+            update(digest, archive);
+        } catch (IOException ex) {
+            throw new IllegalStateException("Cannot read content of: " + archive.getName(), ex);
+        }
+        return FileUtils.toHexString(digest.digest());
+    }
+
+    private static void update(MessageDigest digest, Archive<?> archive) throws IOException {
+        Map<String, Node> sorted = new TreeMap<String, Node>();
+        for (Map.Entry<ArchivePath, Node> entry : archive.getContent().entrySet()) {
+            sorted.put(entry.getKey().get(), entry.getValue());
+        }
+        byte[] buffer = new byte[8192];
+        for (Map.Entry<String, Node> entry : sorted.entrySet()) {
+            FileUtils.update(digest, entry.getKey() + "\n");
+            Asset asset = entry.getValue().getAsset();
+            if (asset instanceof ArchiveAsset) {
+                update(digest, ((ArchiveAsset) asset).getArchive());
+            } else if (asset != null) {
+                InputStream input = asset.openStream();
+                try {
+                    int num;
+                    while ((num = input.read(buffer)) != -1) {
+                        digest.update(buffer, 0, num);
+                    }
+                } finally {
+                    input.close();
+                }
+            }
+        }
+    }
+}
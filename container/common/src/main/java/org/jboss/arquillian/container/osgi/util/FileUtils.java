@@ -0,0 +1,207 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * File system helpers shared by the container implementations.
+ */
+public final class FileUtils {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private FileUtils() {
+    }
+
+    /**
+     * Recursively copy the contents of <code>source</code> into <code>target</code>
+     */
+    public static void copyDirectory(File source, File target) throws IOException {
+        if (!target.isDirectory() && !target.mkdirs())
+            throw new IOException("Cannot create directory: " + target);
+
+        File[] children = source.listFiles();
+        if (children == null)
+            throw new IOException("Cannot list directory: " + source);
+
+        for (File child : children) {
+            File dest = new File(target, child.getName());
+            if (child.isDirectory()) {
+                copyDirectory(child, dest);
+            } else {
+                copyFile(child, dest);
+            }
+        }
+    }
+
+    /**
+     * Clone the contents of <code>source</code> into the new directory <code>target</code>.
+     *
+     * Where the file system supports copy-on-write, all files are reflinked and share their blocks until written.
+     * Otherwise jar files, which are never written in place, are hard linked and all other files are copied.
+     * Without a suitable <code>cp</code> command the whole tree is copied.
+     */
+    public static void cloneDirectory(File source, File target) throws IOException {
+        if (target.exists())
+            throw new IOException("Target already exists: " + target);
+        File parent = target.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create directory: " + parent);
+
+        String sourcePath = source.getAbsolutePath();
+        String targetPath = target.getAbsolutePath();
+        boolean macos = System.getProperty("os.name", "").toLowerCase().contains("mac");
+        if (exec("cp", "-R", macos ? "-c" : "--reflink=always", sourcePath, targetPath))
+            return;
+
+        deleteRecursively(target);
+        if (exec("cp", "-R", "-l", sourcePath, targetPath)) {
+            unlinkMutableFiles(target);
+            return;
+        }
+
+        deleteRecursively(target);
+        copyDirectory(source, target);
+    }
+
+    // Replace hard links to files that may be written in place with copies
+    private static void unlinkMutableFiles(File dir) throws IOException {
+        File[] children = dir.listFiles();
+        if (children == null)
+            throw new IOException("Cannot list directory: " + dir);
+
+        for (File child : children) {
+            if (child.isDirectory()) {
+                unlinkMutableFiles(child);
+            } else if (!child.getName().endsWith(".jar")) {
+                File tmpFile = new File(dir, child.getName() + ".tmp" + System.nanoTime());
+                copyFile(child, tmpFile);
+                if (!tmpFile.renameTo(child)) {
+                    tmpFile.delete();
+                    throw new IOException("Cannot replace: " + child);
+                }
+            }
+        }
+    }
+
+    private static boolean exec(String... cmd) {
+        try {
+            ProcessBuilder builder = new ProcessBuilder(cmd);
+            builder.redirectErrorStream(true);
+            Process process = builder.start();
+            InputStream output = process.getInputStream();
+            try {
+                byte[] buffer = new byte[1024];
+                while (output.read(buffer) != -1) {
+                    // discard
+                }
+            } finally {
+                output.close();
+            }
+            return process.waitFor() == 0;
+        } catch (IOException ex) {
+            return false;
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Copy a single file, preserving its last modified time
+     */
+    public static void copyFile(File source, File target) throws IOException {
+        FileInputStream input = new FileInputStream(source);
+        try {
+            FileOutputStream output = new FileOutputStream(target);
+            try {
+                long size = input.getChannel().size();
+                long position = 0;
+                while (position < size) {
+                    position += input.getChannel().transferTo(position, size - position, output.getChannel());
+                }
+            } finally {
+                output.close();
+            }
+        } finally {
+            input.close();
+        }
+        target.setLastModified(source.lastModified());
+    }
+
+    /**
+     * Recursively delete a file or directory
+     * @return true if the file no longer exists
+     */
+    public static boolean deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        return file.delete() || !file.exists();
+    }
+
+    /**
+     * Get the total size in bytes of a file or directory
+     */
+    public static long sizeOf(File file) {
+        File[] children = file.listFiles();
+        if (children == null)
+            return file.length();
+
+        long size = 0;
+        for (File child : children) {
+            size += sizeOf(child);
+        }
+        return size;
+    }
+
+    public static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException("Digest algorithm not available: " + algorithm, ex);
+        }
+    }
+
+    public static void update(MessageDigest digest, String value) {
+        try {
+            digest.update(value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String toHexString(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = HEX[(bytes[i] >> 4) & 0x0f];
+            chars[2 * i + 1] = HEX[bytes[i] & 0x0f];
+        }
+        return new String(chars);
+    }
+}
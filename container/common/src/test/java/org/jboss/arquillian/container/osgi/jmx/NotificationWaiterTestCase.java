@@ -0,0 +1,145 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.jmx;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.Notification;
+import javax.management.NotificationBroadcasterSupport;
+import javax.management.ObjectName;
+
+import org.junit.Test;
+
+/**
+ * Test {@link NotificationWaiter}, which is package-private to the JMX container, from within its package
+ */
+public class NotificationWaiterTestCase {
+
+    // Slack for thread scheduling on a busy machine
+    static final long SLACK_MILLIS = 300;
+
+    public interface EmitterMBean {
+    }
+
+    public static class Emitter extends NotificationBroadcasterSupport implements EmitterMBean {
+
+        private long sequence;
+
+        void emit() {
+            sendNotification(new Notification("test", this, ++sequence));
+        }
+    }
+
+    @Test
+    public void testNotificationEndsWait() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = new ObjectName("org.jboss.arquillian.osgi:type=NotificationWaiterTest");
+        final Emitter emitter = new Emitter();
+        mbeanServer.registerMBean(emitter, oname);
+        try {
+            // Without notifications the backoff would reach polls of several seconds
+            NotificationWaiter waiter = new NotificationWaiter(mbeanServer, oname, 10000);
+            final FlippingCondition condition = new FlippingCondition(1500);
+            Thread notifier = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(condition.satisfiedAfterMillis);
+                        emitter.emit();
+                    } catch (InterruptedException ex) {
+                        // ignore
+                    }
+                }
+            };
+            notifier.start();
+            long start = System.nanoTime();
+            assertTrue(waiter.await(condition, 10, TimeUnit.SECONDS));
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            notifier.join();
+
+            // The next backoff poll would only be at 2550ms
+            assertTrue("Waited " + elapsedMillis + "ms", elapsedMillis < 1500 + SLACK_MILLIS);
+        } finally {
+            mbeanServer.unregisterMBean(oname);
+        }
+    }
+
+    @Test
+    public void testFallbackPoll() throws Exception {
+        NotificationWaiter waiter = new NotificationWaiter(null, null);
+        FlippingCondition condition = new FlippingCondition(2500);
+        assertTrue(waiter.await(condition, 10, TimeUnit.SECONDS));
+        long maxGap = condition.getMaxGapMillis();
+        assertTrue("Max poll gap " + maxGap + "ms", maxGap <= NotificationWaiter.MAX_POLL_MILLIS + SLACK_MILLIS);
+    }
+
+    @Test
+    public void testCappedSubscribedPoll() throws Exception {
+        MBeanServer mbeanServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName oname = new ObjectName("org.jboss.arquillian.osgi:type=NotificationWaiterTest");
+        mbeanServer.registerMBean(new Emitter(), oname);
+        try {
+            // An emitter that never notifies about the awaited change, like the start level
+            NotificationWaiter waiter = new NotificationWaiter(mbeanServer, oname, NotificationWaiter.MAX_POLL_MILLIS);
+            FlippingCondition condition = new FlippingCondition(2500);
+            assertTrue(waiter.await(condition, 10, TimeUnit.SECONDS));
+            long maxGap = condition.getMaxGapMillis();
+            assertTrue("Max poll gap " + maxGap + "ms", maxGap <= NotificationWaiter.MAX_POLL_MILLIS + SLACK_MILLIS);
+        } finally {
+            mbeanServer.unregisterMBean(oname);
+        }
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        NotificationWaiter waiter = new NotificationWaiter(null, null);
+        assertFalse(waiter.await(new FlippingCondition(Long.MAX_VALUE), 200, TimeUnit.MILLISECONDS));
+    }
+
+    static class FlippingCondition implements NotificationWaiter.Condition {
+
+        final long satisfiedAfterMillis;
+        final long startNanos = System.nanoTime();
+        final List<Long> checks = new ArrayList<Long>();
+
+        FlippingCondition(long satisfiedAfterMillis) {
+            this.satisfiedAfterMillis = satisfiedAfterMillis;
+        }
+
+        @Override
+        public boolean isSatisfied() {
+            long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            checks.add(elapsedMillis);
+            return elapsedMillis >= satisfiedAfterMillis;
+        }
+
+        long getMaxGapMillis() {
+            long maxGap = 0;
+            for (int i = 1; i < checks.size(); i++) {
+                maxGap = Math.max(maxGap, checks.get(i) - checks.get(i - 1));
+            }
+            return maxGap;
+        }
+    }
+}
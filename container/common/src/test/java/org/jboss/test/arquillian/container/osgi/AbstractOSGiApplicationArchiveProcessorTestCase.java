@@ -16,15 +16,27 @@
  */
 package org.jboss.test.arquillian.container.osgi;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
 
+import java.io.InputStream;
 import java.lang.reflect.Method;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
 
 import org.jboss.arquillian.container.osgi.AbstractOSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.container.osgi.OSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.test.spi.TestClass;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.ClassAsset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
 import org.junit.Test;
 
 /**
@@ -71,6 +83,86 @@ public class AbstractOSGiApplicationArchiveProcessorTestCase {
         }
     }
 
+    @Test
+    public void processRepeatedDeployment() throws Exception {
+        OSGiApplicationArchiveProcessor processor = new OSGiApplicationArchiveProcessor();
+        TestClass testClass = new TestClass(AbstractOSGiApplicationArchiveProcessorTestCase.class);
+
+        JavaArchive first = createDeployment();
+        processor.process(first, testClass);
+        JavaArchive second = createDeployment();
+        processor.process(second, testClass);
+
+        for (Archive<?> archive : Arrays.asList(first, second)) {
+            assertNotNull(archive.get("/org/jboss/test/arquillian/container/osgi/AbstractOSGiApplicationArchiveProcessorTestCase.class"));
+            Manifest manifest = getManifest(archive);
+            assertEquals("processed-deployment.jar", manifest.getMainAttributes().getValue("Bundle-SymbolicName"));
+            assertTrue(manifest.getMainAttributes().getValue("Export-Package").contains("org.jboss.test.arquillian.container.osgi"));
+        }
+        assertEquals(getManifest(first), getManifest(second));
+    }
+
+    @Test
+    public void processKeepsContainedTestClass() throws Exception {
+        OSGiApplicationArchiveProcessor processor = new OSGiApplicationArchiveProcessor();
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "nested-deployment.jar");
+        archive.add(new ClassAsset(AbstractOSGiApplicationArchiveProcessorTestCase.class),
+                "/lib/classes/org/jboss/test/arquillian/container/osgi/AbstractOSGiApplicationArchiveProcessorTestCase.class");
+        processor.process(archive, new TestClass(AbstractOSGiApplicationArchiveProcessorTestCase.class));
+        assertEquals(null, archive.get("/org/jboss/test/arquillian/container/osgi/AbstractOSGiApplicationArchiveProcessorTestCase.class"));
+    }
+
+    @Test
+    public void processWithImportAnalysis() throws Exception {
+        OSGiApplicationArchiveProcessor processor = new OSGiApplicationArchiveProcessor();
+        TestClass testClass = new TestClass(AbstractOSGiApplicationArchiveProcessorTestCase.class);
+
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "analyzed-deployment.jar");
+        archive.addClass(ReferenceHolder.class);
+        processor.process(archive, testClass);
+        String imports = getManifest(archive).getMainAttributes().getValue("Import-Package");
+        assertFalse(imports, imports.contains("javax.management"));
+
+        System.setProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_ANALYSIS_PROPERTY, "true");
+        System.setProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_EXCLUDE_PROPERTY, "javax.naming.*");
+        try {
+            archive = ShrinkWrap.create(JavaArchive.class, "analyzed-deployment.jar");
+            archive.addClass(ReferenceHolder.class);
+            processor.process(archive, testClass);
+        } finally {
+            System.clearProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_ANALYSIS_PROPERTY);
+            System.clearProperty(AbstractOSGiApplicationArchiveProcessor.IMPORT_EXCLUDE_PROPERTY);
+        }
+        imports = getManifest(archive).getMainAttributes().getValue("Import-Package");
+        assertTrue(imports, imports.contains("javax.management"));
+        assertFalse(imports, imports.contains("javax.naming"));
+        assertFalse(imports, imports.contains("resolution:=optional"));
+    }
+
+    private static JavaArchive createDeployment() {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "processed-deployment.jar");
+        archive.addClass(ArchiveHolder.class);
+        return archive;
+    }
+
+    private static Manifest getManifest(Archive<?> archive) throws Exception {
+        InputStream input = archive.get(JarFile.MANIFEST_NAME).getAsset().openStream();
+        try {
+            return new Manifest(input);
+        } finally {
+            input.close();
+        }
+    }
+
+    static class ArchiveHolder {
+    }
+
+    static class ReferenceHolder {
+        javax.management.MBeanServer server;
+        javax.naming.Context context;
+        javax.naming.directory.DirContext dirContext;
+    }
+
     private static List<String> splitWithComma(String value) throws Exception{
         Method method = AbstractOSGiApplicationArchiveProcessor.class.getDeclaredMethod("splitWithComma", String.class);
         method.setAccessible(true);
@@ -0,0 +1,62 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.AsyncContainerLogger;
+import org.jboss.arquillian.container.osgi.EmbeddedDeployableContainer.AbstractContainerLogger;
+import org.junit.Test;
+
+/**
+ * Test {@link AsyncContainerLogger}
+ */
+public class AsyncContainerLoggerTestCase {
+
+    @Test
+    public void testLevelAndOrder() throws Exception {
+        final List<String> messages = new CopyOnWriteArrayList<String>();
+        AsyncContainerLogger log = new AsyncContainerLogger(new AbstractContainerLogger() {
+            @Override
+            public boolean isEnabled(Level level) {
+                return level != Level.DEBUG;
+            }
+
+            @Override
+            public void log(Level level, String message, Throwable th) {
+                messages.add(level + " " + message);
+            }
+        });
+
+        for (int i = 0; i < 100; i++) {
+            log.debug("debug " + i);
+            log.info("info " + i);
+        }
+        log.error("done");
+        log.flush(10, TimeUnit.SECONDS);
+
+        assertEquals(101, messages.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals("INFO info " + i, messages.get(i));
+        }
+        assertEquals("ERROR done", messages.get(100));
+    }
+}
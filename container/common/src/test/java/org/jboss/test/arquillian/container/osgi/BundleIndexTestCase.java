@@ -0,0 +1,152 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.arquillian.container.osgi.BundleIndex;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.Version;
+
+/**
+ * Test {@link BundleIndex}
+ */
+public class BundleIndexTestCase {
+
+    static final int THREADS = 8;
+    static final int BUNDLES_PER_THREAD = 100;
+
+    @Test
+    public void testConcurrentInstalls() throws Exception {
+        final BundleIndex index = new BundleIndex(null);
+        final Bundle[][] bundles = new Bundle[THREADS][BUNDLES_PER_THREAD];
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++) {
+            final int thread = i;
+            threads[i] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int j = 0; j < BUNDLES_PER_THREAD; j++) {
+                        Bundle bundle = mockBundle(thread * BUNDLES_PER_THREAD + j, "bundle-" + thread, "1.0." + j);
+                        bundles[thread][j] = bundle;
+                        index.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, bundle));
+                        // Uninstall every other bundle right away
+                        if (j % 2 == 1) {
+                            setState(bundle, Bundle.UNINSTALLED);
+                            index.bundleChanged(new BundleEvent(BundleEvent.UNINSTALLED, bundle));
+                        }
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        startLatch.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(THREADS * BUNDLES_PER_THREAD / 2, index.getLocations().size());
+        for (int i = 0; i < THREADS; i++) {
+            assertSame(bundles[i][0], index.getBundleBySymbolicName("bundle-" + i));
+            for (int j = 0; j < BUNDLES_PER_THREAD; j++) {
+                Bundle bundle = bundles[i][j];
+                if (j % 2 == 0) {
+                    assertSame(bundle, index.getBundleByLocation(bundle.getLocation()));
+                    assertSame(bundle, index.getBundle("bundle-" + i, "1.0." + j));
+                } else {
+                    assertNull(index.getBundleByLocation(bundle.getLocation()));
+                    assertNull(index.getBundle("bundle-" + i, "1.0." + j));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testUpdateChangesVersion() throws Exception {
+        BundleIndex index = new BundleIndex(null);
+        Bundle bundle = mockBundle(1, "acme", "1.0.0");
+        index.bundleChanged(new BundleEvent(BundleEvent.INSTALLED, bundle));
+        assertSame(bundle, index.getBundle("acme", "1.0"));
+
+        ((MockBundle) Proxy.getInvocationHandler(bundle)).version = Version.parseVersion("2.0.0");
+        index.bundleChanged(new BundleEvent(BundleEvent.UPDATED, bundle));
+        assertNull(index.getBundle("acme", "1.0.0"));
+        assertSame(bundle, index.getBundle("acme", "2.0.0"));
+        assertSame(bundle, index.getBundleByLocation("location-1"));
+    }
+
+    static Bundle mockBundle(long bundleId, String symbolicName, String version) {
+        MockBundle handler = new MockBundle(bundleId, symbolicName, Version.parseVersion(version));
+        return (Bundle) Proxy.newProxyInstance(Bundle.class.getClassLoader(), new Class<?>[] { Bundle.class }, handler);
+    }
+
+    static void setState(Bundle bundle, int state) {
+        ((MockBundle) Proxy.getInvocationHandler(bundle)).state.set(state);
+    }
+
+    static class MockBundle implements InvocationHandler {
+
+        final long bundleId;
+        final String symbolicName;
+        final AtomicInteger state = new AtomicInteger(Bundle.INSTALLED);
+        volatile Version version;
+
+        MockBundle(long bundleId, String symbolicName, Version version) {
+            this.bundleId = bundleId;
+            this.symbolicName = symbolicName;
+            this.version = version;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if ("getBundleId".equals(name))
+                return bundleId;
+            if ("getSymbolicName".equals(name))
+                return symbolicName;
+            if ("getVersion".equals(name))
+                return version;
+            if ("getLocation".equals(name))
+                return "location-" + bundleId;
+            if ("getState".equals(name))
+                return state.get();
+            if ("hashCode".equals(name))
+                return System.identityHashCode(proxy);
+            if ("equals".equals(name))
+                return proxy == args[0];
+            if ("toString".equals(name))
+                return symbolicName + ":" + version;
+            throw new UnsupportedOperationException(name);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.jboss.arquillian.container.osgi.CommonDeployableContainer;
+import org.jboss.arquillian.container.osgi.DeploymentTiming;
+import org.jboss.arquillian.container.osgi.EmbeddedContainerConfiguration;
+import org.jboss.arquillian.container.spi.client.container.DeploymentException;
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+import org.jboss.arquillian.container.spi.client.protocol.ProtocolDescription;
+import org.jboss.arquillian.container.spi.client.protocol.metadata.ProtocolMetaData;
+import org.jboss.shrinkwrap.api.Archive;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.jboss.shrinkwrap.descriptor.api.Descriptor;
+import org.junit.Test;
+
+/**
+ * Test the batch deployment of {@link CommonDeployableContainer}
+ */
+public class CommonDeployableContainerTestCase {
+
+    @Test
+    public void testDeployBatch() throws Exception {
+        RecordingContainer container = new RecordingContainer(null);
+        List<DeploymentTiming> timings = container.deploy(archives("a.jar", "b.jar", "c.jar"));
+
+        assertEquals(Arrays.asList("a.jar", "b.jar", "c.jar"), container.deployed);
+        assertEquals(3, timings.size());
+        assertEquals("b.jar", timings.get(1).getLocation());
+        assertEquals(-1, timings.get(1).getBundleId());
+        assertEquals(0, container.undeployed.size());
+    }
+
+    @Test
+    public void testDeployBatchRollback() throws Exception {
+        RecordingContainer container = new RecordingContainer("c.jar");
+        try {
+            container.deploy(archives("a.jar", "b.jar", "c.jar", "d.jar"));
+            fail("DeploymentException expected");
+        } catch (DeploymentException ex) {
+            // expected
+        }
+
+        // The deployed archives are undeployed in reverse order, nothing after the failure is deployed
+        assertEquals(Arrays.asList("a.jar", "b.jar"), container.deployed);
+        assertEquals(Arrays.asList("b.jar", "a.jar"), container.undeployed);
+    }
+
+    static List<Archive<?>> archives(String... names) {
+        List<Archive<?>> archives = new ArrayList<Archive<?>>();
+        for (String name : names) {
+            archives.add(ShrinkWrap.create(JavaArchive.class, name));
+        }
+        return archives;
+    }
+
+    static class RecordingContainer extends CommonDeployableContainer<EmbeddedContainerConfiguration> {
+
+        final String failOn;
+        final List<String> deployed = new ArrayList<String>();
+        final List<String> undeployed = new ArrayList<String>();
+
+        RecordingContainer(String failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        public Class<EmbeddedContainerConfiguration> getConfigurationClass() {
+            return EmbeddedContainerConfiguration.class;
+        }
+
+        @Override
+        public ProtocolDescription getDefaultProtocol() {
+            return new ProtocolDescription("jmx-osgi");
+        }
+
+        @Override
+        public void start() throws LifecycleException {
+        }
+
+        @Override
+        public void stop() throws LifecycleException {
+        }
+
+        @Override
+        public ProtocolMetaData deploy(Archive<?> archive) throws DeploymentException {
+            if (archive.getName().equals(failOn))
+                throw new DeploymentException("Cannot deploy: " + archive.getName());
+            deployed.add(archive.getName());
+            return new ProtocolMetaData();
+        }
+
+        @Override
+        public void undeploy(Archive<?> archive) throws DeploymentException {
+            undeployed.add(archive.getName());
+        }
+
+        @Override
+        public void deploy(Descriptor descriptor) throws DeploymentException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void undeploy(Descriptor descriptor) throws DeploymentException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void startBundle(String symbolicName, String version) throws Exception {
+        }
+
+        @Override
+        protected void awaitBootstrapCompleteService(String name) {
+        }
+    }
+}
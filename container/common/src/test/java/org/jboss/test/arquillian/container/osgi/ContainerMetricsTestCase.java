@@ -0,0 +1,134 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.metrics.ContainerMetrics;
+import org.jboss.arquillian.container.osgi.metrics.LatencyHistogram;
+import org.jboss.arquillian.container.osgi.metrics.Phase;
+import org.junit.Test;
+
+/**
+ * Test {@link ContainerMetrics} and {@link LatencyHistogram}
+ */
+public class ContainerMetricsTestCase {
+
+    static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    @Test
+    public void testEmptyHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.getCount());
+        assertEquals(0, histogram.getMin(TimeUnit.MILLISECONDS));
+        assertEquals(0, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(0.0, histogram.getMeanMillis(), 0.0);
+        assertEquals(0.0, histogram.getPercentileMillis(99), 0.0);
+    }
+
+    @Test
+    public void testHistogram() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.record(1 * MS);
+        }
+        histogram.record(100 * MS);
+        histogram.record(-5);
+
+        assertEquals(101, histogram.getCount());
+        assertEquals(0, histogram.getMin(TimeUnit.NANOSECONDS));
+        assertEquals(100, histogram.getMax(TimeUnit.MILLISECONDS));
+        assertEquals(199, histogram.getTotal(TimeUnit.MILLISECONDS));
+        assertEquals(199.0 / 101, histogram.getMeanMillis(), 0.001);
+
+        // 1ms falls into the bucket with the upper bound of 1024us
+        assertEquals(1.024, histogram.getPercentileMillis(50), 0.001);
+        assertEquals(1.024, histogram.getPercentileMillis(90), 0.001);
+
+        // The top percentile is capped by the maximum
+        assertEquals(100.0, histogram.getPercentileMillis(100), 0.001);
+    }
+
+    @Test
+    public void testPhasesAndTests() throws Exception {
+        ContainerMetrics metrics = new ContainerMetrics("test");
+        metrics.record(Phase.INSTALL, "a.jar", 2 * MS);
+        metrics.record(Phase.INSTALL, "b.jar", 4 * MS);
+        metrics.record(Phase.CONTAINER_START, null, 10 * MS);
+        metrics.recordTest("org.acme.FooTestCase#testFoo", 6 * MS);
+
+        assertArrayEquals(new String[] { "CONTAINER_START", "INSTALL", "TEST_INVOCATION" }, metrics.getPhases());
+        assertEquals(2, metrics.getCount("INSTALL"));
+        assertEquals(6, metrics.getTotalMillis("INSTALL"));
+        assertEquals(3.0, metrics.getMeanMillis("INSTALL"), 0.001);
+        assertEquals(2.0, metrics.getDeploymentMeanMillis("a.jar", "INSTALL"), 0.001);
+
+        // Test invocations are not mixed with the deployments
+        assertEquals(2, metrics.getDeploymentNames().length);
+        assertArrayEquals(new String[] { "org.acme.FooTestCase#testFoo" }, metrics.getTestNames());
+        assertEquals(6.0, metrics.getTestMeanMillis("org.acme.FooTestCase#testFoo"), 0.001);
+        assertEquals(1, metrics.getCount("TEST_INVOCATION"));
+
+        metrics.reset();
+        assertEquals(0, metrics.getPhases().length);
+        assertEquals(0, metrics.getDeploymentNames().length);
+        assertEquals(0, metrics.getTestNames().length);
+    }
+
+    @Test
+    public void testJSONReport() throws Exception {
+        ContainerMetrics metrics = new ContainerMetrics("con\"tainer");
+        String json = metrics.toJSONString();
+        assertTrue(json, json.contains("\"container\": \"con\\\"tainer\""));
+        assertTrue(json, json.contains("\"phases\": {}"));
+        assertTrue(json, json.contains("\"deployments\": {}"));
+        assertTrue(json, json.contains("\"tests\": {}"));
+
+        metrics.record(Phase.INSTALL, "a.jar", 2 * MS);
+        metrics.recordTest("FooTestCase#testFoo", 3 * MS);
+        json = metrics.toJSONString();
+        assertTrue(json, json.contains("\"INSTALL\": {\"count\": 1, \"totalMillis\": 2, \"minMillis\": 2, \"maxMillis\": 2"));
+        assertTrue(json, json.contains("\"a.jar\": {\n      \"INSTALL\": {\"count\": 1"));
+        assertTrue(json, json.contains("\"FooTestCase#testFoo\": {\"count\": 1, \"totalMillis\": 3"));
+        assertFalse(json, json.contains("\"FooTestCase#testFoo\": {\n"));
+        assertEquals(json.length() - json.replace("{", "").length(), json.length() - json.replace("}", "").length());
+        assertEquals(json.length() - json.replace("[", "").length(), json.length() - json.replace("]", "").length());
+    }
+
+    @Test
+    public void testWriteReport() throws Exception {
+        File reportDir = new File("target/metrics-" + System.nanoTime());
+        ContainerMetrics metrics = new ContainerMetrics("a/b");
+        metrics.record(Phase.START, "a.jar", MS);
+        File reportFile = metrics.writeReport(reportDir);
+        try {
+            assertNotNull(reportFile);
+            assertTrue(reportFile.getName(), reportFile.getName().startsWith("a_b-"));
+            assertEquals(metrics.toJSONString().length(), reportFile.length());
+        } finally {
+            reportFile.delete();
+            reportDir.delete();
+        }
+    }
+}
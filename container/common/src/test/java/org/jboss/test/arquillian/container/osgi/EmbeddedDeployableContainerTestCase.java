@@ -0,0 +1,243 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.jboss.arquillian.container.osgi.EmbeddedContainerConfiguration;
+import org.jboss.arquillian.container.osgi.EmbeddedDeployableContainer;
+import org.jboss.arquillian.container.spi.client.container.DeploymentException;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.asset.Asset;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleException;
+import org.osgi.framework.launch.Framework;
+
+/**
+ * Test {@link EmbeddedDeployableContainer}
+ */
+public class EmbeddedDeployableContainerTestCase {
+
+    static final int MB = 1024 * 1024;
+
+    @Test
+    public void testDeployHeapStaysFlat() throws Exception {
+        long smallGrowth = deployAndMeasure(8 * MB);
+        long largeGrowth = deployAndMeasure(64 * MB);
+
+        // Heap retained during install must not scale with the archive size
+        assertTrue("Heap growth for 8MB archive: " + smallGrowth, smallGrowth < 8 * MB);
+        assertTrue("Heap growth for 64MB archive: " + largeGrowth, largeGrowth < 8 * MB);
+    }
+
+    @Test
+    public void testDeployBatchRollback() throws Exception {
+        FailingContainer container = new FailingContainer("c.jar");
+        container.setup(new EmbeddedContainerConfiguration());
+        try {
+            container.deploy(CommonDeployableContainerTestCase.archives("a.jar", "b.jar", "c.jar"));
+            fail("DeploymentException expected");
+        } catch (DeploymentException ex) {
+            // expected
+        }
+
+        // The bundles installed by the failed batch are uninstalled in reverse order
+        assertEquals(2, container.installed.size());
+        List<Bundle> expected = new ArrayList<Bundle>(container.installed);
+        Collections.reverse(expected);
+        assertEquals(expected, container.uninstalled);
+    }
+
+    private long deployAndMeasure(long archiveSize) throws Exception {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "streaming-" + archiveSize + ".jar");
+        archive.add(new GeneratedAsset(archiveSize), "content.bin");
+
+        MeasuringContainer container = new MeasuringContainer(archiveSize / 2);
+        container.setup(new EmbeddedContainerConfiguration());
+        container.deploy(archive);
+
+        assertEquals("content.bin", container.entryName);
+        assertEquals(archiveSize, container.entrySize);
+        return container.heapGrowth;
+    }
+
+    static long usedHeap() {
+        MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    static class MeasuringContainer extends EmbeddedDeployableContainer<EmbeddedContainerConfiguration> {
+
+        final long sampleAt;
+        String entryName;
+        long entrySize;
+        long heapGrowth;
+
+        MeasuringContainer(long sampleAt) {
+            this.sampleAt = sampleAt;
+        }
+
+        @Override
+        public Class<EmbeddedContainerConfiguration> getConfigurationClass() {
+            return EmbeddedContainerConfiguration.class;
+        }
+
+        @Override
+        protected ContainerLogger getLogger() {
+            return new AbstractContainerLogger() {
+                @Override
+                public void log(Level level, String message, Throwable th) {
+                }
+            };
+        }
+
+        @Override
+        protected Framework createFramework(EmbeddedContainerConfiguration conf) {
+            return null;
+        }
+
+        @Override
+        protected Bundle installBundle(String location, InputStream inputStream) throws BundleException {
+            try {
+                long baseline = usedHeap();
+                ZipInputStream zipInput = new ZipInputStream(inputStream);
+                ZipEntry entry;
+                byte[] buffer = new byte[8192];
+                while ((entry = zipInput.getNextEntry()) != null) {
+                    if (entry.isDirectory())
+                        continue;
+                    entryName = entry.getName();
+                    long size = 0;
+                    int num;
+                    while ((num = zipInput.read(buffer)) != -1) {
+                        size += num;
+                        // Sample the heap half way through the entry
+                        if (size - num < sampleAt && size >= sampleAt) {
+                            heapGrowth = usedHeap() - baseline;
+                        }
+                    }
+                    entrySize = size;
+                }
+                return null;
+            } catch (IOException ex) {
+                throw new BundleException("Cannot read bundle stream", ex);
+            }
+        }
+    }
+
+    static class FailingContainer extends EmbeddedDeployableContainer<EmbeddedContainerConfiguration> {
+
+        final String failOn;
+        final List<Bundle> installed = new ArrayList<Bundle>();
+        final List<Bundle> uninstalled = new ArrayList<Bundle>();
+
+        FailingContainer(String failOn) {
+            this.failOn = failOn;
+        }
+
+        @Override
+        public Class<EmbeddedContainerConfiguration> getConfigurationClass() {
+            return EmbeddedContainerConfiguration.class;
+        }
+
+        @Override
+        protected ContainerLogger getLogger() {
+            return new AbstractContainerLogger() {
+                @Override
+                public void log(Level level, String message, Throwable th) {
+                }
+            };
+        }
+
+        @Override
+        protected Framework createFramework(EmbeddedContainerConfiguration conf) {
+            return null;
+        }
+
+        @Override
+        protected Bundle installBundle(String location, InputStream inputStream) throws BundleException {
+            if (location.equals(failOn))
+                throw new BundleException("Cannot install: " + location);
+            Bundle bundle = BundleIndexTestCase.mockBundle(installed.size() + 1, location, "1.0.0");
+            installed.add(bundle);
+            return bundle;
+        }
+
+        @Override
+        protected void uninstallBundle(Bundle bundle) throws BundleException {
+            uninstalled.add(bundle);
+        }
+    }
+
+    /**
+     * An asset that generates its content on demand, so the archive itself holds no bytes
+     */
+    static class GeneratedAsset implements Asset {
+
+        private final long size;
+
+        GeneratedAsset(long size) {
+            this.size = size;
+        }
+
+        @Override
+        public InputStream openStream() {
+            return new InputStream() {
+                private final Random random = new Random(size);
+                private long remaining = size;
+
+                @Override
+                public int read() throws IOException {
+                    if (remaining <= 0)
+                        return -1;
+                    remaining--;
+                    return random.nextInt(256);
+                }
+
+                @Override
+                public int read(byte[] b, int off, int len) throws IOException {
+                    if (remaining <= 0)
+                        return -1;
+                    int num = (int) Math.min(len, remaining);
+                    for (int i = 0; i < num; i++) {
+                        b[off + i] = (byte) random.nextInt(256);
+                    }
+                    remaining -= num;
+                    return num;
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.logging.Logger;
+
+import javax.management.MBeanServer;
+
+import org.jboss.arquillian.container.osgi.ImportPackageAnalyzer;
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.jboss.shrinkwrap.api.ShrinkWrap;
+import org.jboss.shrinkwrap.api.spec.JavaArchive;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+
+/**
+ * Test {@link ImportPackageAnalyzer}
+ */
+public class ImportPackageAnalyzerTestCase {
+
+    @Test
+    public void testReferencedPackages() throws Exception {
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "analyzed.jar");
+        archive.addClasses(Fixture.class, ImportPackageAnalyzerTestCase.class);
+
+        Set<String> packages = new ImportPackageAnalyzer(null).getImportedPackages(archive);
+        // Own package and java.* are not imported
+        assertTrue(packages.toString(), packages.containsAll(Arrays.asList("javax.management", "org.osgi.framework", "org.junit",
+                "org.jboss.shrinkwrap.api", "org.jboss.arquillian.container.osgi", "org.jboss.arquillian.container.osgi.util")));
+        assertTrue(packages.toString(), !packages.contains("org.jboss.test.arquillian.container.osgi"));
+        for (String packageName : packages) {
+            assertTrue(packageName, !packageName.startsWith("java."));
+        }
+    }
+
+    @Test
+    public void testIndexAcrossRuns() throws Exception {
+        File dir = new File("target/import-analyzer-test").getAbsoluteFile();
+        FileUtils.deleteRecursively(dir);
+        File indexFile = new File(dir, "imports.properties");
+
+        JavaArchive archive = ShrinkWrap.create(JavaArchive.class, "analyzed.jar");
+        archive.addClasses(Fixture.class);
+        Set<String> first = new ImportPackageAnalyzer(indexFile).getImportedPackages(archive);
+        // Only referenced through generic signatures and an annotation
+        assertEquals(new TreeSet<String>(Arrays.asList("javax.management", "org.junit", "org.osgi.framework")), first);
+
+        Properties properties = loadProperties(indexFile);
+        String key = FileUtils.toHexString(FileUtils.newDigest("SHA-1").digest(getClassBytes(Fixture.class)));
+        assertNotNull("Indexed by content digest", properties.getProperty(key));
+
+        // A later run takes the result from the index instead of parsing the class
+        properties.setProperty(key, "org.jboss.test.arquillian.container.osgi|org.acme.seeded");
+        OutputStream output = new FileOutputStream(indexFile);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+        Set<String> second = new ImportPackageAnalyzer(indexFile).getImportedPackages(archive);
+        assertEquals(Collections.singleton("org.acme.seeded"), second);
+    }
+
+    private static Properties loadProperties(File file) throws Exception {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        return properties;
+    }
+
+    private static byte[] getClassBytes(Class<?> clazz) throws Exception {
+        InputStream input = clazz.getResourceAsStream("/" + clazz.getName().replace('.', '/') + ".class");
+        try {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                output.write(buffer, 0, num);
+            }
+            return output.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    static class Fixture implements Callable<List<? extends BundleContext>> {
+
+        Logger logger;
+
+        @Override
+        public List<? extends BundleContext> call() {
+            return null;
+        }
+
+        @Test
+        public <T extends MBeanServer> T get(T[] servers) {
+            return servers[0];
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.arquillian.container.osgi.MavenArtifactCache;
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.junit.Test;
+
+/**
+ * Test {@link MavenArtifactCache}
+ */
+public class MavenArtifactCacheTestCase {
+
+    static final String FILESPEC = "org.acme:acme-bundle:jar:1.0.0";
+
+    @Test
+    public void testIndexHit() throws Exception {
+        File dir = new File("target/artifact-cache-test").getAbsoluteFile();
+        FileUtils.deleteRecursively(dir);
+        dir.mkdirs();
+
+        byte[] content = "bundle content".getBytes("UTF-8");
+        File artifact = new File(dir, "acme-bundle-1.0.0.jar");
+        write(artifact, content);
+
+        MessageDigest digest = MessageDigest.getInstance("SHA-1");
+        String sha1 = FileUtils.toHexString(digest.digest(content));
+
+        Properties index = new Properties();
+        index.setProperty(FILESPEC, artifact.getPath() + "|" + artifact.length() + "|" + artifact.lastModified() + "|" + sha1);
+        File indexFile = new File(dir, "index.properties");
+        store(index, indexFile);
+
+        // A valid index entry never reaches the maven resolver
+        MavenArtifactCache cache = new MavenArtifactCache(indexFile);
+        assertArrayEquals(new File[] { artifact }, cache.resolve(FILESPEC));
+    }
+
+    @Test
+    public void testIndexMiss() throws Exception {
+        File dir = new File("target/artifact-cache-test").getAbsoluteFile();
+        FileUtils.deleteRecursively(dir);
+        dir.mkdirs();
+
+        final File artifact = new File(dir, "acme-bundle-1.0.0.jar");
+        write(artifact, "bundle content".getBytes("UTF-8"));
+
+        // The entry no longer matches the file
+        Properties index = new Properties();
+        index.setProperty(FILESPEC, artifact.getPath() + "|" + artifact.length() + "|" + artifact.lastModified() + "|0000");
+        File indexFile = new File(dir, "index.properties");
+        store(index, indexFile);
+
+        final AtomicInteger resolveCount = new AtomicInteger();
+        MavenArtifactCache cache = new MavenArtifactCache(indexFile) {
+            @Override
+            protected File[] resolveWithMaven(String filespec) {
+                resolveCount.incrementAndGet();
+                return new File[] { artifact };
+            }
+        };
+        assertArrayEquals(new File[] { artifact }, cache.resolve(FILESPEC));
+        assertEquals(1, resolveCount.get());
+
+        // The index is rewritten with the checksum of the resolved file
+        String sha1 = FileUtils.toHexString(MessageDigest.getInstance("SHA-1").digest("bundle content".getBytes("UTF-8")));
+        assertEquals(artifact.getPath() + "|" + artifact.length() + "|" + artifact.lastModified() + "|" + sha1, load(indexFile).getProperty(FILESPEC));
+        assertArrayEquals(new File[] { artifact }, cache.resolve(FILESPEC));
+        assertEquals(1, resolveCount.get());
+    }
+
+    private static void store(Properties properties, File file) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            properties.store(output, null);
+        } finally {
+            output.close();
+        }
+    }
+
+    private static Properties load(File file) throws IOException {
+        Properties properties = new Properties();
+        InputStream input = new FileInputStream(file);
+        try {
+            properties.load(input);
+        } finally {
+            input.close();
+        }
+        return properties;
+    }
+
+    private void write(File file, byte[] content) throws IOException {
+        FileOutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+    }
+}
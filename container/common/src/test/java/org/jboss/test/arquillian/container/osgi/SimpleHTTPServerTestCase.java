@@ -0,0 +1,280 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.test.arquillian.container.osgi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.arquillian.container.osgi.jmx.http.SimpleHTTPServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Test {@link SimpleHTTPServer}
+ */
+public class SimpleHTTPServerTestCase {
+
+    static final int SIZE = 4 * 1024 * 1024;
+    static final int CLIENTS = 32;
+    static final int DOWNLOADS = 4;
+    static final String WORKER_THREAD_NAME = "Simple HTTP Server Worker-";
+
+    static final Logger logger = LoggerFactory.getLogger(SimpleHTTPServerTestCase.class);
+
+    private File file;
+    private byte[] content;
+    private SimpleHTTPServer server;
+
+    @Before
+    public void setUp() throws Exception {
+        content = new byte[SIZE];
+        new Random(SIZE).nextBytes(content);
+        file = File.createTempFile("http-server-test", ".jar");
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content);
+        } finally {
+            output.close();
+        }
+        server = new SimpleHTTPServer(InetAddress.getByName("localhost"), 0);
+        server.start();
+    }
+
+    @After
+    public void tearDown() {
+        server.shutdown();
+        file.delete();
+    }
+
+    @Test
+    public void testHeadAndRange() throws Exception {
+        URL url = server.serve(file.toURI().toURL());
+        Socket socket = new Socket("localhost", url.getPort());
+        try {
+            OutputStream output = socket.getOutputStream();
+            InputStream input = socket.getInputStream();
+
+            output.write(("HEAD " + url.getPath() + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("US-ASCII"));
+            String head = readHead(input);
+            assertTrue(head, head.startsWith("HTTP/1.1 200 OK"));
+            assertTrue(head, head.contains("Content-Length: " + SIZE + "\r\n"));
+
+            // Same connection, no body was sent for HEAD
+            output.write(("GET " + url.getPath() + " HTTP/1.1\r\nRange: bytes=10-19\r\n\r\n").getBytes("US-ASCII"));
+            head = readHead(input);
+            assertTrue(head, head.startsWith("HTTP/1.1 206 Partial Content"));
+            assertTrue(head, head.contains("Content-Range: bytes 10-19/" + SIZE + "\r\n"));
+            assertArrayEquals(Arrays.copyOfRange(content, 10, 20), readBytes(input, 10));
+
+            output.write(("GET /unknown HTTP/1.1\r\nConnection: close\r\n\r\n").getBytes("US-ASCII"));
+            head = readHead(input);
+            assertTrue(head, head.startsWith("HTTP/1.1 404 Not Found"));
+            assertEquals(-1, input.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void testContentAddressed() throws Exception {
+        URL url = server.serveContent(file.toURI().toURL());
+        assertEquals(url, server.serveContent(file.toURI().toURL()));
+
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        String etag = connection.getHeaderField("ETag");
+        assertEquals("\"" + url.getPath().substring(1) + "\"", etag);
+        assertTrue(connection.getLastModified() > 0);
+        connection.getInputStream().close();
+
+        connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, connection.getResponseCode());
+    }
+
+    @Test
+    public void testContentAddressedFallback() throws Exception {
+        File copy = File.createTempFile("http-server-test", ".jar");
+        try {
+            OutputStream output = new FileOutputStream(copy);
+            try {
+                output.write(content);
+            } finally {
+                output.close();
+            }
+            URL url = server.serveContent(file.toURI().toURL());
+            assertEquals(url, server.serveContent(copy.toURI().toURL()));
+
+            // The digest stays servable from the copy when the first file is gone
+            assertTrue(file.delete());
+            assertEquals(SIZE, download(url));
+        } finally {
+            copy.delete();
+        }
+    }
+
+    @Test
+    public void testConcurrentDownloads() throws Exception {
+        final URL url = server.serve(file.toURI().toURL());
+
+        // Workers of servers from other tests may not have terminated yet
+        final Set<Thread> existingWorkers = getWorkerThreads();
+        final AtomicInteger maxWorkers = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread sampler = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    do {
+                        Set<Thread> workers = getWorkerThreads();
+                        workers.removeAll(existingWorkers);
+                        if (workers.size() > maxWorkers.get()) {
+                            maxWorkers.set(workers.size());
+                        }
+                    } while (!done.await(10, TimeUnit.MILLISECONDS));
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        ExecutorService executor = Executors.newFixedThreadPool(CLIENTS);
+        try {
+            long startNanos = System.nanoTime();
+            sampler.start();
+            List<Future<Long>> futures = new ArrayList<Future<Long>>();
+            for (int i = 0; i < CLIENTS; i++) {
+                futures.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        long total = 0;
+                        for (int j = 0; j < DOWNLOADS; j++) {
+                            total += download(url);
+                        }
+                        return total;
+                    }
+                }));
+            }
+            long total = 0;
+            for (Future<Long> future : futures) {
+                total += future.get();
+            }
+            long elapsedNanos = System.nanoTime() - startNanos;
+            done.countDown();
+            sampler.join();
+
+            assertEquals((long) SIZE * CLIENTS * DOWNLOADS, total);
+            long millis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(elapsedNanos));
+            logger.info("Downloaded " + (total >> 20) + "MB with " + CLIENTS + " clients in " + millis + "ms, " + (total * 1000 / millis >> 20)
+                    + "MB/s, at most " + maxWorkers.get() + " server worker threads");
+
+            // The worker pool is bounded independent of the number of clients
+            assertTrue("Server worker threads: " + maxWorkers.get(), maxWorkers.get() <= 4);
+        } finally {
+            done.countDown();
+            executor.shutdownNow();
+        }
+    }
+
+    private static Set<Thread> getWorkerThreads() {
+        Set<Thread> workers = new HashSet<Thread>();
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(WORKER_THREAD_NAME)) {
+                workers.add(thread);
+            }
+        }
+        return workers;
+    }
+
+    private long download(URL url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        assertEquals(200, connection.getResponseCode());
+        assertEquals(SIZE, connection.getContentLength());
+        InputStream input = connection.getInputStream();
+        try {
+            byte[] buffer = new byte[65536];
+            long size = 0;
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                if (size < 16 && num >= 16) {
+                    assertArrayEquals(Arrays.copyOfRange(content, 0, 16), Arrays.copyOfRange(buffer, 0, 16));
+                }
+                size += num;
+            }
+            return size;
+        } finally {
+            input.close();
+        }
+    }
+
+    private static String readHead(InputStream input) throws IOException {
+        ByteArrayOutputStream head = new ByteArrayOutputStream();
+        int state = 0;
+        while (state < 4) {
+            int b = input.read();
+            if (b < 0)
+                throw new IOException("Unexpected end of stream: " + head);
+            head.write(b);
+            if (b == '\n' && (state == 1 || state == 3)) {
+                state++;
+            } else {
+                state = b == '\r' ? (state == 2 ? 3 : 1) : 0;
+            }
+        }
+        return head.toString("US-ASCII");
+    }
+
+    private static byte[] readBytes(InputStream input, int count) throws IOException {
+        byte[] bytes = new byte[count];
+        int offset = 0;
+        while (offset < count) {
+            int num = input.read(bytes, offset, count - offset);
+            if (num < 0)
+                throw new IOException("Unexpected end of stream");
+            offset += num;
+        }
+        return bytes;
+    }
+}
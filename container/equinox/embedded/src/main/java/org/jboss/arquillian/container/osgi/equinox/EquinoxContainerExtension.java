@@ -19,6 +19,7 @@ package org.jboss.arquillian.container.osgi.equinox;
 
 import org.jboss.arquillian.container.osgi.DeploymentObserver;
 import org.jboss.arquillian.container.osgi.OSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.container.osgi.metrics.ContainerMetricsObserver;
 import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
 import org.jboss.arquillian.container.test.spi.client.deployment.ApplicationArchiveProcessor;
 import org.jboss.arquillian.core.spi.LoadableExtension;
@@ -36,6 +37,7 @@ public class EquinoxContainerExtension implements LoadableExtension {
         builder.service(DeployableContainer.class, EquinoxEmbeddedDeployableContainer.class);
         builder.service(ApplicationArchiveProcessor.class, OSGiApplicationArchiveProcessor.class);
         builder.observer(DeploymentObserver.class);
+        builder.observer(ContainerMetricsObserver.class);
     }
 
 }
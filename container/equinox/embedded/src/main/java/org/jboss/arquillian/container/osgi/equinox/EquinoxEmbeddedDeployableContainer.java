@@ -39,6 +39,8 @@ public class EquinoxEmbeddedDeployableContainer extends
 
     static final Logger logger = LoggerFactory.getLogger(EquinoxEmbeddedDeployableContainer.class.getPackage().getName());
 
+    static final String LOG_LEVEL_PROP = "eclipse.log.level";
+
     @Override
     public Class<EmbeddedContainerConfiguration> getConfigurationClass() {
         return EmbeddedContainerConfiguration.class;
@@ -48,8 +50,13 @@ public class EquinoxEmbeddedDeployableContainer extends
     @SuppressWarnings({ "rawtypes", "unchecked" })
     protected Framework createFramework(EmbeddedContainerConfiguration conf) {
 
-        // Set the configuration properties as system properties
+        // Let the framework log follow the slf4j level if not given
         Map config = new HashMap(conf.getFrameworkConfiguration());
+        if (config.get(LOG_LEVEL_PROP) == null) {
+            config.put(LOG_LEVEL_PROP, getFrameworkLogLevel());
+        }
+
+        // Set the configuration properties as system properties
         for (Object key : config.keySet()) {
             System.setProperty((String) key, config.get(key).toString());
         }
@@ -58,6 +65,12 @@ public class EquinoxEmbeddedDeployableContainer extends
         return factory.newFramework(config);
     }
 
+    private static String getFrameworkLogLevel() {
+        if (logger.isInfoEnabled())
+            return logger.isDebugEnabled() ? "ALL" : "INFO";
+        return logger.isWarnEnabled() ? "WARNING" : "ERROR";
+    }
+
     @Override
     protected BundleContext startFramework() throws BundleException {
         BundleContext bundleContext = super.startFramework();
@@ -68,6 +81,20 @@ public class EquinoxEmbeddedDeployableContainer extends
     @Override
     protected ContainerLogger getLogger() {
         return new AbstractContainerLogger() {
+            @Override
+            public boolean isEnabled(Level level) {
+                switch (level) {
+                case DEBUG:
+                    return logger.isDebugEnabled();
+                case INFO:
+                    return logger.isInfoEnabled();
+                case WARN:
+                    return logger.isWarnEnabled();
+                default:
+                    return logger.isErrorEnabled();
+                }
+            }
+
             @Override
             public void log(Level level, String message, Throwable th) {
                 if (logger != null) {
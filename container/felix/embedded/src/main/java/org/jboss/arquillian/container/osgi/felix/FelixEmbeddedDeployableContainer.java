@@ -36,7 +36,7 @@ import org.osgi.framework.launch.FrameworkFactory;
  */
 public class FelixEmbeddedDeployableContainer extends EmbeddedDeployableContainer<EmbeddedContainerConfiguration> {
 
-    private final Logger logger = new FelixLogger();
+    private final FelixLogger logger = new FelixLogger();
 
     @Override
     public Class<EmbeddedContainerConfiguration> getConfigurationClass() {
@@ -71,23 +71,28 @@ public class FelixEmbeddedDeployableContainer extends EmbeddedDeployableContaine
     @Override
     protected ContainerLogger getLogger() {
         return new AbstractContainerLogger() {
+            @Override
+            public boolean isEnabled(Level level) {
+                return logger.isEnabled(toFelixLevel(level));
+            }
+
             @Override
             public void log(Level level, String message, Throwable th) {
-                switch (level) {
-                case DEBUG:
-                    logger.log(Logger.LOG_DEBUG, message, th);
-                    break;
-                case INFO:
-                    logger.log(Logger.LOG_INFO, message, th);
-                    break;
-                case WARN:
-                    logger.log(Logger.LOG_WARNING, message, th);
-                    break;
-                case ERROR:
-                    logger.log(Logger.LOG_ERROR, message, th);
-                    break;
-                }
+                logger.log(toFelixLevel(level), message, th);
             }
         };
     }
+
+    private static int toFelixLevel(ContainerLogger.Level level) {
+        switch (level) {
+        case DEBUG:
+            return Logger.LOG_DEBUG;
+        case INFO:
+            return Logger.LOG_INFO;
+        case WARN:
+            return Logger.LOG_WARNING;
+        default:
+            return Logger.LOG_ERROR;
+        }
+    }
 }
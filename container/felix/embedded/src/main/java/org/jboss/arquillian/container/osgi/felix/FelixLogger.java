@@ -41,30 +41,55 @@ public class FelixLogger extends org.apache.felix.framework.Logger {
     private final Logger log = LoggerFactory.getLogger(FelixLogger.class.getPackage().getName());
 
     public FelixLogger() {
-        setLogLevel(LOG_DEBUG);
+        // Let the framework discard messages that slf4j would not log anyway
+        if (log.isDebugEnabled()) {
+            setLogLevel(LOG_DEBUG);
+        } else if (log.isInfoEnabled()) {
+            setLogLevel(LOG_INFO);
+        } else if (log.isWarnEnabled()) {
+            setLogLevel(LOG_WARNING);
+        } else {
+            setLogLevel(LOG_ERROR);
+        }
+    }
+
+    /**
+     * True if a message at the given Felix log level reaches the log
+     */
+    public boolean isEnabled(int level) {
+        return getLogLevel() >= level;
     }
 
     @Override
     @SuppressWarnings("rawtypes")
     protected void doLog(Bundle bundle, ServiceReference sref, int level, String msg, Throwable throwable) {
-        if (bundle != null)
-            msg = "[" + bundle.getSymbolicName() + "] " + msg;
-        if (sref != null)
-            msg = sref + ": " + msg;
-
         // An unresolved bundle causes a WARNING that comes with an exception
         // Currently we log WARNING exceptions at DEBUG level
 
         if (level == LOG_DEBUG) {
-            log.debug(msg, throwable);
+            if (log.isDebugEnabled())
+                log.debug(prefix(bundle, sref, msg), throwable);
         } else if (level == LOG_INFO) {
-            log.info(msg, throwable);
+            if (log.isInfoEnabled())
+                log.info(prefix(bundle, sref, msg), throwable);
         } else if (level == LOG_WARNING) {
-            log.warn(msg);
-            if (throwable != null)
-                log.debug(msg, throwable);
+            if (log.isWarnEnabled()) {
+                msg = prefix(bundle, sref, msg);
+                log.warn(msg);
+                if (throwable != null)
+                    log.debug(msg, throwable);
+            }
         } else if (level == LOG_ERROR) {
-            log.error(msg, throwable);
+            log.error(prefix(bundle, sref, msg), throwable);
         }
     }
+
+    @SuppressWarnings("rawtypes")
+    private String prefix(Bundle bundle, ServiceReference sref, String msg) {
+        if (bundle != null)
+            msg = "[" + bundle.getSymbolicName() + "] " + msg;
+        if (sref != null)
+            msg = sref + ": " + msg;
+        return msg;
+    }
 }
\ No newline at end of file
@@ -37,6 +37,20 @@ public class JBossEmbeddedDeployableContainer extends EmbeddedDeployableContaine
     @Override
     protected ContainerLogger getLogger() {
         return new AbstractContainerLogger() {
+            @Override
+            public boolean isEnabled(Level level) {
+                switch (level) {
+                case DEBUG:
+                    return logger.isDebugEnabled();
+                case INFO:
+                    return logger.isInfoEnabled();
+                case WARN:
+                    return logger.isEnabled(Logger.Level.WARN);
+                default:
+                    return logger.isEnabled(Logger.Level.ERROR);
+                }
+            }
+
             @Override
             public void log(Level level, String message, Throwable th) {
                 switch (level) {
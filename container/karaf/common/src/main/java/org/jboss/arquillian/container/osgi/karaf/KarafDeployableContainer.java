@@ -0,0 +1,123 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+
+import org.jboss.arquillian.container.osgi.jmx.JMXContainerConfiguration;
+import org.jboss.arquillian.container.osgi.jmx.JMXDeployableContainer;
+import org.jboss.arquillian.container.osgi.metrics.Phase;
+import org.jboss.arquillian.container.spi.client.container.LifecycleException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link JMXDeployableContainer} for Karaf that installs the configured features while the arquillian bundle starts.
+ */
+public abstract class KarafDeployableContainer<T extends JMXContainerConfiguration> extends JMXDeployableContainer<T> {
+
+    static final Logger logger = LoggerFactory.getLogger(KarafDeployableContainer.class.getPackage().getName());
+
+    /**
+     * Install the arquillian bundle and the given features and wait until both are ready.
+     * The features are installed while the arquillian bundle starts.
+     */
+    protected void installArquillianBundleAndFeatures(List<String> repositories, List<String> features) throws Exception {
+        // Install the arquillian bundle to become active
+        installArquillianBundle();
+
+        // Install the configured features while the arquillian bundle starts
+        Future<Integer> provisioning = provisionKarafFeatures(repositories, features);
+        boolean success = false;
+        try {
+            // Await the arquillian bundle to become active
+            awaitArquillianBundleActive(30, TimeUnit.SECONDS);
+
+            // Await the configured features
+            awaitKarafFeatures(provisioning, 5, TimeUnit.MINUTES);
+            success = true;
+        } finally {
+            // Do not keep installing features into a container that failed to start
+            if (!success && provisioning != null) {
+                provisioning.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Start to install Karaf features in the background, so that the caller can await other services meanwhile.
+     *
+     * @return the pending installation or null if there is nothing to install
+     */
+    protected Future<Integer> provisionKarafFeatures(final List<String> repositories, final List<String> features) {
+        if (repositories.isEmpty() && features.isEmpty())
+            return null;
+
+        final MBeanServerConnection mbeanServer = mbeanServerInstance.get();
+        FutureTask<Integer> task = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                long startNanos = System.nanoTime();
+                KarafFeaturesProvisioner provisioner = new KarafFeaturesProvisioner(mbeanServer);
+                ObjectName oname = provisioner.lookupFeaturesMBean(30, TimeUnit.SECONDS);
+                int installed = provisioner.provision(oname, repositories, features, new KarafFeaturesProvisioner.RepositoryURLFactory() {
+                    @Override
+                    public URL create(URL fileURL) throws IOException {
+                        return getContainerURL(fileURL);
+                    }
+                });
+                if (installed > 0) {
+                    getMetrics().recordSince(Phase.FEATURE_INSTALL, null, startNanos);
+                    logger.info("Installed {} features in {}ms", installed, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+                }
+                return installed;
+            }
+        });
+        Thread thread = new Thread(task, "Karaf Features Provisioning");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+
+    protected void awaitKarafFeatures(Future<Integer> provisioning, long timeout, TimeUnit unit) throws LifecycleException {
+        if (provisioning == null)
+            return;
+        try {
+            provisioning.get(timeout, unit);
+        } catch (ExecutionException ex) {
+            throw new LifecycleException("Cannot install Karaf features", ex.getCause());
+        } catch (TimeoutException ex) {
+            provisioning.cancel(true);
+            throw new LifecycleException("Timeout while installing Karaf features", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            provisioning.cancel(true);
+            throw new LifecycleException("Interrupted while installing Karaf features", ex);
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+import javax.management.openmbean.TabularData;
+
+import org.jboss.arquillian.container.osgi.jmx.ObjectNameFactory;
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Installs Karaf features through the features MBean.
+ *
+ * Features are given as <code>name</code> or <code>name/version</code>. Features that are already installed are
+ * skipped. The remaining features are installed in one batch: they become the dependencies of a generated
+ * feature, so that Karaf resolves and refreshes once for all of them instead of once per feature. An interrupt
+ * stops the provisioning before the next MBean call.
+ */
+public class KarafFeaturesProvisioner {
+
+    static final Logger logger = LoggerFactory.getLogger(KarafFeaturesProvisioner.class.getPackage().getName());
+
+    private static final String FEATURES_MBEAN_PATTERN = "org.apache.karaf:type=features,*";
+    private static final String FEATURES_NAMESPACE = "http://karaf.apache.org/xmlns/features/v1.0.0";
+    private static final String BATCH_PREFIX = "arquillian-features-";
+    private static final String BATCH_VERSION = "1.0.0";
+
+    private final MBeanServerConnection mbeanServer;
+
+    public KarafFeaturesProvisioner(MBeanServerConnection mbeanServer) {
+        this.mbeanServer = mbeanServer;
+    }
+
+    /**
+     * Split a comma separated configuration value
+     */
+    public static List<String> parseList(String value) {
+        List<String> result = new ArrayList<String>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                item = item.trim();
+                if (item.length() > 0) {
+                    result.add(item);
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Wait for the features MBean, which Karaf registers while it boots
+     */
+    public ObjectName lookupFeaturesMBean(long timeout, TimeUnit unit) throws IOException, TimeoutException, InterruptedException {
+        ObjectName pattern = ObjectNameFactory.create(FEATURES_MBEAN_PATTERN);
+        long timeoutMillis = System.currentTimeMillis() + unit.toMillis(timeout);
+        while (true) {
+            Set<ObjectName> names = mbeanServer.queryNames(pattern, null);
+            if (!names.isEmpty())
+                return names.iterator().next();
+            if (System.currentTimeMillis() > timeoutMillis)
+                throw new TimeoutException("Timeout while waiting for: " + pattern);
+            Thread.sleep(100);
+        }
+    }
+
+    /**
+     * Add the missing repositories and install the missing features
+     *
+     * @param repositoryURL creates the URL under which Karaf reads the generated repository file
+     * @return the number of features that were installed
+     */
+    public int provision(ObjectName oname, List<String> repositories, List<String> features, RepositoryURLFactory repositoryURL)
+            throws IOException, JMException {
+        Set<String> knownRepositories = getRepositories(oname);
+        for (String uri : repositories) {
+            checkInterrupted();
+            if (!knownRepositories.contains(uri)) {
+                logger.debug("Add features repository: {}", uri);
+                mbeanServer.invoke(oname, "addRepository", new Object[] { uri }, new String[] { String.class.getName() });
+            }
+        }
+
+        List<String> missing = getMissingFeatures(oname, features);
+        if (missing.isEmpty()) {
+            logger.debug("Features already installed: {}", features);
+            return 0;
+        }
+
+        MessageDigest digest = FileUtils.newDigest("SHA-1");
+        for (String feature : missing) {
+            FileUtils.update(digest, feature + "\n");
+        }
+        String batchName = BATCH_PREFIX + FileUtils.toHexString(digest.digest());
+        File repositoryFile = File.createTempFile(batchName, ".xml");
+        try {
+            writeRepository(repositoryFile, batchName, missing);
+            String uri = repositoryURL.create(repositoryFile.toURI().toURL()).toExternalForm();
+            checkInterrupted();
+            mbeanServer.invoke(oname, "addRepository", new Object[] { uri }, new String[] { String.class.getName() });
+            try {
+                checkInterrupted();
+                logger.info("Install features: {}", missing);
+                mbeanServer.invoke(oname, "installFeature", new Object[] { batchName, BATCH_VERSION }, new String[] {
+                        String.class.getName(), String.class.getName() });
+            } finally {
+                // The installed features stay, only the generated repository is removed
+                try {
+                    mbeanServer.invoke(oname, "removeRepository", new Object[] { uri }, new String[] { String.class.getName() });
+                } catch (Exception ex) {
+                    logger.debug("Cannot remove features repository: " + uri, ex);
+                }
+            }
+        } finally {
+            repositoryFile.delete();
+        }
+        return missing.size();
+    }
+
+    private static void checkInterrupted() throws InterruptedIOException {
+        if (Thread.currentThread().isInterrupted())
+            throw new InterruptedIOException("Karaf features provisioning cancelled");
+    }
+
+    private Set<String> getRepositories(ObjectName oname) throws IOException, JMException {
+        Set<String> result = new HashSet<String>();
+        TabularData repositories = (TabularData) mbeanServer.getAttribute(oname, "Repositories");
+        for (CompositeData row : values(repositories)) {
+            result.add((String) row.get("Uri"));
+        }
+        return result;
+    }
+
+    List<String> getMissingFeatures(ObjectName oname, List<String> features) throws IOException, JMException {
+        Set<String> installed = new HashSet<String>();
+        TabularData rows = (TabularData) mbeanServer.getAttribute(oname, "Features");
+        for (CompositeData row : values(rows)) {
+            if (Boolean.TRUE.equals(row.get("Installed"))) {
+                String name = (String) row.get("Name");
+                installed.add(name);
+                installed.add(name + "/" + row.get("Version"));
+            }
+        }
+        List<String> missing = new ArrayList<String>();
+        for (String feature : features) {
+            if (!installed.contains(feature) && !missing.contains(feature)) {
+                missing.add(feature);
+            }
+        }
+        return missing;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Collection<CompositeData> values(TabularData data) {
+        return (Collection<CompositeData>) data.values();
+    }
+
+    static void writeRepository(File file, String batchName, List<String> features) throws IOException {
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            writer.write("<features name=\"" + batchName + "\" xmlns=\"" + FEATURES_NAMESPACE + "\">\n");
+            writer.write("  <feature name=\"" + batchName + "\" version=\"" + BATCH_VERSION + "\">\n");
+            for (String feature : features) {
+                int index = feature.indexOf('/');
+                String name = index < 0 ? feature : feature.substring(0, index);
+                writer.write("    <feature");
+                if (index >= 0) {
+                    writer.write(" version=\"" + escape(feature.substring(index + 1)) + "\"");
+                }
+                writer.write(">" + escape(name) + "</feature>\n");
+            }
+            writer.write("  </feature>\n");
+            writer.write("</features>\n");
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static String escape(String value) {
+        return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    /**
+     * Makes a local file readable for the Karaf instance
+     */
+    public interface RepositoryURLFactory {
+
+        URL create(URL fileURL) throws IOException;
+    }
+}
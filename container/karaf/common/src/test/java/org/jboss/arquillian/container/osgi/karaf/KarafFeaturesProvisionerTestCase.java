@@ -0,0 +1,244 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import javax.management.MBeanServer;
+import javax.management.MBeanServerFactory;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeDataSupport;
+import javax.management.openmbean.CompositeType;
+import javax.management.openmbean.OpenDataException;
+import javax.management.openmbean.OpenType;
+import javax.management.openmbean.SimpleType;
+import javax.management.openmbean.TabularData;
+import javax.management.openmbean.TabularDataSupport;
+import javax.management.openmbean.TabularType;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link KarafFeaturesProvisioner} against a features MBean that records the calls
+ */
+public class KarafFeaturesProvisionerTestCase {
+
+    private MBeanServer mbeanServer;
+    private ObjectName oname;
+    private Features features;
+
+    @Before
+    public void setUp() throws Exception {
+        mbeanServer = MBeanServerFactory.newMBeanServer();
+        oname = new ObjectName("org.apache.karaf:type=features,name=root");
+        features = new Features();
+        mbeanServer.registerMBean(features, oname);
+    }
+
+    @Test
+    public void testParseList() throws Exception {
+        assertEquals(Collections.emptyList(), KarafFeaturesProvisioner.parseList(null));
+        assertEquals(Collections.emptyList(), KarafFeaturesProvisioner.parseList(" , "));
+        assertEquals(Arrays.asList("scr", "webconsole/4.2.0"), KarafFeaturesProvisioner.parseList(" scr,, webconsole/4.2.0 "));
+    }
+
+    @Test
+    public void testMissingFeatures() throws Exception {
+        features.installed("scr", "4.0.0");
+        features.available("webconsole", "4.2.0");
+        KarafFeaturesProvisioner provisioner = new KarafFeaturesProvisioner(mbeanServer);
+        List<String> missing = provisioner.getMissingFeatures(oname, Arrays.asList("scr", "scr/4.0.0", "scr/5.0.0", "webconsole", "webconsole"));
+        assertEquals(Arrays.asList("scr/5.0.0", "webconsole"), missing);
+    }
+
+    @Test
+    public void testRepositoryXML() throws Exception {
+        File file = File.createTempFile("features", ".xml");
+        try {
+            KarafFeaturesProvisioner.writeRepository(file, "batch", Arrays.asList("scr", "a&b/1.0<2"));
+            String expected = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                    + "<features name=\"batch\" xmlns=\"http://karaf.apache.org/xmlns/features/v1.0.0\">\n"
+                    + "  <feature name=\"batch\" version=\"1.0.0\">\n"
+                    + "    <feature>scr</feature>\n"
+                    + "    <feature version=\"1.0&lt;2\">a&amp;b</feature>\n"
+                    + "  </feature>\n"
+                    + "</features>\n";
+            assertEquals(expected, read(file.toURI().toURL()));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProvision() throws Exception {
+        features.repository("mvn:org.example/known/1.0/xml/features");
+        features.installed("scr", "4.0.0");
+        KarafFeaturesProvisioner provisioner = new KarafFeaturesProvisioner(mbeanServer);
+        List<String> repositories = Arrays.asList("mvn:org.example/known/1.0/xml/features", "mvn:org.example/added/1.0/xml/features");
+        int installed = provisioner.provision(oname, repositories, Arrays.asList("scr", "webconsole/4.2.0", "http"), new IdentityURLFactory());
+        assertEquals(2, installed);
+
+        // Only the unknown repository is added, the generated one is removed again
+        assertEquals(2, features.added.size());
+        assertEquals("mvn:org.example/added/1.0/xml/features", features.added.get(0));
+        assertEquals(Collections.singletonList(features.added.get(1)), features.removed);
+
+        // The missing features are installed in one batch
+        assertEquals(1, features.batches.size());
+        assertTrue(features.batches.get(0), features.batches.get(0).matches("arquillian-features-[0-9a-f]+/1\\.0\\.0"));
+        String xml = features.repositoryContent.get(1);
+        assertTrue(xml, xml.contains("<feature version=\"4.2.0\">webconsole</feature>"));
+        assertTrue(xml, xml.contains("<feature>http</feature>"));
+        assertFalse(xml, xml.contains("scr"));
+    }
+
+    @Test
+    public void testProvisionNothingMissing() throws Exception {
+        features.installed("scr", "4.0.0");
+        KarafFeaturesProvisioner provisioner = new KarafFeaturesProvisioner(mbeanServer);
+        assertEquals(0, provisioner.provision(oname, Collections.<String> emptyList(), Arrays.asList("scr"), new IdentityURLFactory()));
+        assertTrue(features.added.isEmpty());
+        assertTrue(features.batches.isEmpty());
+    }
+
+    @Test
+    public void testProvisionInterrupted() throws Exception {
+        KarafFeaturesProvisioner provisioner = new KarafFeaturesProvisioner(mbeanServer);
+        Thread.currentThread().interrupt();
+        try {
+            provisioner.provision(oname, Collections.<String> emptyList(), Arrays.asList("scr"), new IdentityURLFactory());
+            fail("InterruptedIOException expected");
+        } catch (InterruptedIOException ex) {
+            // expected
+        } finally {
+            Thread.interrupted();
+        }
+        assertTrue(features.batches.isEmpty());
+    }
+
+    private static String read(URL url) throws IOException {
+        InputStream input = url.openStream();
+        try {
+            StringBuilder builder = new StringBuilder();
+            byte[] buffer = new byte[1024];
+            int num;
+            while ((num = input.read(buffer)) != -1) {
+                builder.append(new String(buffer, 0, num, "UTF-8"));
+            }
+            return builder.toString();
+        } finally {
+            input.close();
+        }
+    }
+
+    static class IdentityURLFactory implements KarafFeaturesProvisioner.RepositoryURLFactory {
+        @Override
+        public URL create(URL fileURL) {
+            return fileURL;
+        }
+    }
+
+    public interface FeaturesMBean {
+
+        TabularData getRepositories() throws OpenDataException;
+
+        TabularData getFeatures() throws OpenDataException;
+
+        void addRepository(String uri) throws IOException;
+
+        void removeRepository(String uri);
+
+        void installFeature(String name, String version);
+    }
+
+    public static class Features implements FeaturesMBean {
+
+        final List<String> repositories = new ArrayList<String>();
+        final List<Object[]> features = new ArrayList<Object[]>();
+        final List<String> added = new ArrayList<String>();
+        final List<String> repositoryContent = new ArrayList<String>();
+        final List<String> removed = new ArrayList<String>();
+        final List<String> batches = new ArrayList<String>();
+
+        void repository(String uri) {
+            repositories.add(uri);
+        }
+
+        void installed(String name, String version) {
+            features.add(new Object[] { name, version, Boolean.TRUE });
+        }
+
+        void available(String name, String version) {
+            features.add(new Object[] { name, version, Boolean.FALSE });
+        }
+
+        @Override
+        public TabularData getRepositories() throws OpenDataException {
+            String[] names = new String[] { "Uri" };
+            CompositeType rowType = new CompositeType("Repository", "Repository", names, names, new OpenType<?>[] { SimpleType.STRING });
+            TabularDataSupport data = new TabularDataSupport(new TabularType("Repositories", "Repositories", rowType, names));
+            for (String uri : repositories) {
+                data.put(new CompositeDataSupport(rowType, names, new Object[] { uri }));
+            }
+            return data;
+        }
+
+        @Override
+        public TabularData getFeatures() throws OpenDataException {
+            String[] names = new String[] { "Name", "Version", "Installed" };
+            CompositeType rowType = new CompositeType("Feature", "Feature", names, names, new OpenType<?>[] { SimpleType.STRING,
+                    SimpleType.STRING, SimpleType.BOOLEAN });
+            TabularDataSupport data = new TabularDataSupport(new TabularType("Features", "Features", rowType, new String[] { "Name", "Version" }));
+            for (Object[] feature : features) {
+                data.put(new CompositeDataSupport(rowType, names, feature));
+            }
+            return data;
+        }
+
+        @Override
+        public void addRepository(String uri) throws IOException {
+            added.add(uri);
+            repositoryContent.add(uri.startsWith("file:") ? read(new URL(uri)) : null);
+            repositories.add(uri);
+        }
+
+        @Override
+        public void removeRepository(String uri) {
+            removed.add(uri);
+            repositories.remove(uri);
+        }
+
+        @Override
+        public void installFeature(String name, String version) {
+            batches.add(name + "/" + version);
+        }
+    }
+}
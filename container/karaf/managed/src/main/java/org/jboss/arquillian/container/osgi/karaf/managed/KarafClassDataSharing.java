@@ -0,0 +1,317 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An application class data sharing archive for the Karaf JVM.
+ *
+ * The first launch without an archive is the training boot. On Java 13 and later it dumps a dynamic archive
+ * when the process exits. On Java 10 to 12 it writes the list of loaded classes, from which the archive is dumped
+ * in the background after the process has exited. Later launches map the archive. The archive is keyed by the JDK,
+ * the Java VM arguments and the Karaf lib directory, so a change to any of them leads to a new training boot.
+ * Archives with other keys may belong to another JDK that shares the directory, they are only deleted once they
+ * have not been used for {@link #MAX_UNUSED_DAYS} days.
+ */
+class KarafClassDataSharing {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafClassDataSharing.class.getPackage().getName());
+
+    static final int MAX_UNUSED_DAYS = 30;
+
+    private static final String COLD_READY_MILLIS = "coldReadyMillis";
+
+    // Dumps an archive from a class list without holding up the container stop
+    private static final ExecutorService dumper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "Karaf Class Data Sharing Dump");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final File archiveFile;
+    private final File statsFile;
+    private final int javaVersion;
+    private final boolean training;
+    private final File tmpFile;
+
+    KarafClassDataSharing(File archiveDir, String key, int javaVersion) {
+        this.archiveFile = new File(archiveDir, "karaf-" + key + ".jsa");
+        this.statsFile = new File(archiveDir, "karaf-" + key + ".properties");
+        this.javaVersion = javaVersion;
+        this.training = !archiveFile.isFile();
+        String suffix = javaVersion >= 13 ? ".jsa" : ".classlist";
+        this.tmpFile = new File(archiveDir, "karaf-" + key + ".tmp" + System.nanoTime() + suffix);
+    }
+
+    /**
+     * @return the archive for the given configuration or null if the running JDK does not support it
+     */
+    static KarafClassDataSharing create(KarafManagedContainerConfiguration config, File karafHome) throws IOException {
+        int javaVersion = getJavaVersion();
+        if (javaVersion < 10) {
+            _logger.info("Application class data sharing needs Java 10 or later, running on: {}", System.getProperty("java.version"));
+            return null;
+        }
+
+        String key = getKey(config, karafHome);
+        File archiveDir = config.getKarafClassDataSharingDirectory() != null ? new File(config.getKarafClassDataSharingDirectory())
+                .getAbsoluteFile() : new File(karafHome.getParentFile(), karafHome.getName() + "-cds");
+        if (!archiveDir.isDirectory() && !archiveDir.mkdirs())
+            throw new IOException("Cannot create directory: " + archiveDir);
+
+        deleteUnused(archiveDir, key, System.currentTimeMillis() - TimeUnit.DAYS.toMillis(MAX_UNUSED_DAYS));
+        KarafClassDataSharing classDataSharing = new KarafClassDataSharing(archiveDir, key, javaVersion);
+        classDataSharing.markUsed();
+        return classDataSharing;
+    }
+
+    /**
+     * @return the key of the archive for the running JDK, the Java VM arguments and the Karaf lib directory
+     */
+    static String getKey(KarafManagedContainerConfiguration config, File karafHome) {
+        MessageDigest digest = FileUtils.newDigest("SHA-1");
+        FileUtils.update(digest, System.getProperty("java.home") + "\n");
+        FileUtils.update(digest, System.getProperty("java.vm.version") + "\n");
+        FileUtils.update(digest, config.getJavaVmArguments() + "\n");
+        File[] libs = new File(karafHome, "lib").listFiles();
+        if (libs != null) {
+            Arrays.sort(libs);
+            for (File lib : libs) {
+                FileUtils.update(digest, lib.getName() + ":" + lib.length() + ":" + lib.lastModified() + "\n");
+            }
+        }
+        return FileUtils.toHexString(digest.digest());
+    }
+
+    /**
+     * Delete the files of other keys that have not been used since the given time
+     */
+    static void deleteUnused(File archiveDir, String key, long usedSince) {
+        File[] files = archiveDir.listFiles();
+        if (files == null)
+            return;
+        for (File file : files) {
+            String name = file.getName();
+            if (name.startsWith("karaf-") && !name.startsWith("karaf-" + key) && file.lastModified() < usedSince) {
+                _logger.debug("Deleting unused class data sharing file: {}", file);
+                file.delete();
+            }
+        }
+    }
+
+    private void markUsed() {
+        // Keeps the archive from being aged out by JVMs that use another key
+        if (!training) {
+            archiveFile.setLastModified(System.currentTimeMillis());
+        }
+    }
+
+    static int getJavaVersion() {
+        String version = System.getProperty("java.specification.version", "");
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException ex) {
+            return 0;
+        }
+    }
+
+    boolean isTraining() {
+        return training;
+    }
+
+    /**
+     * @return the arguments that let the Karaf JVM train or use the archive
+     */
+    List<String> getJvmArguments() {
+        List<String> args = new ArrayList<String>();
+        if (!training) {
+            args.add("-XX:SharedArchiveFile=" + archiveFile);
+            args.add("-Xshare:auto");
+        } else if (javaVersion >= 13) {
+            args.add("-XX:ArchiveClassesAtExit=" + tmpFile);
+        } else {
+            if (javaVersion == 10) {
+                args.add("-XX:+UseAppCDS");
+            }
+            args.add("-XX:DumpLoadedClassList=" + tmpFile);
+        }
+        return args;
+    }
+
+    /**
+     * Complete the archive after the training boot has exited
+     *
+     * @param classPath the class path of the training boot, the archive is only valid for the same class path
+     */
+    void onProcessExit(String classPath) {
+        if (!training)
+            return;
+        if (javaVersion < 13 && tmpFile.isFile()) {
+            final String dumpClassPath = classPath;
+            dumper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    File classList = tmpFile;
+                    File dumpFile = new File(tmpFile.getPath() + ".jsa");
+                    try {
+                        try {
+                            dumpArchive(classList, dumpFile, dumpClassPath);
+                        } finally {
+                            classList.delete();
+                        }
+                        install(dumpFile);
+                    } catch (IOException ex) {
+                        _logger.warn("Cannot create class data sharing archive: " + archiveFile, ex);
+                    }
+                }
+            });
+            return;
+        }
+        try {
+            install(tmpFile);
+        } catch (IOException ex) {
+            _logger.warn("Cannot create class data sharing archive: " + archiveFile, ex);
+        }
+    }
+
+    private void dumpArchive(File classList, File dumpFile, String classPath) throws IOException {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(java);
+        if (javaVersion == 10) {
+            cmd.add("-XX:+UseAppCDS");
+        }
+        cmd.add("-Xshare:dump");
+        cmd.add("-XX:SharedClassListFile=" + classList);
+        cmd.add("-XX:SharedArchiveFile=" + dumpFile);
+        cmd.add("-classpath");
+        cmd.add(classPath);
+        ProcessBuilder builder = new ProcessBuilder(cmd);
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        InputStream output = process.getInputStream();
+        try {
+            byte[] buffer = new byte[8192];
+            while (output.read(buffer) != -1) {
+                // discard
+            }
+        } finally {
+            output.close();
+        }
+        try {
+            if (process.waitFor() != 0)
+                throw new IOException("Class data sharing dump exited with: " + process.exitValue());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while dumping: " + dumpFile);
+        }
+    }
+
+    private void install(File file) throws IOException {
+        if (!file.isFile() || file.length() == 0) {
+            file.delete();
+            throw new IOException("No archive was written by the training boot");
+        }
+        // Concurrent training boots may race, the first archive wins
+        if (!file.renameTo(archiveFile) && !archiveFile.isFile()) {
+            file.delete();
+            throw new IOException("Cannot create: " + archiveFile);
+        }
+        file.delete();
+        _logger.info("Created class data sharing archive: {}", archiveFile);
+    }
+
+    /**
+     * Record the time from process launch to ready of a boot and report the savings of the archive
+     */
+    void recordReady(long readyMillis) {
+        Properties stats = loadStats();
+        if (training) {
+            stats.setProperty(COLD_READY_MILLIS, String.valueOf(readyMillis));
+            storeStats(stats);
+            _logger.info("Karaf training boot for class data sharing ready in {}ms", readyMillis);
+            return;
+        }
+        String coldReady = stats.getProperty(COLD_READY_MILLIS);
+        if (coldReady != null) {
+            long saved = Long.parseLong(coldReady) - readyMillis;
+            _logger.info("Karaf ready in {}ms with class data sharing, {}ms without, saved {}ms", new Object[] { readyMillis, coldReady, saved });
+        } else {
+            _logger.info("Karaf ready in {}ms with class data sharing", readyMillis);
+        }
+    }
+
+    private Properties loadStats() {
+        Properties stats = new Properties();
+        if (statsFile.isFile()) {
+            try {
+                InputStream input = new FileInputStream(statsFile);
+                try {
+                    stats.load(input);
+                } finally {
+                    input.close();
+                }
+            } catch (IOException ex) {
+                _logger.debug("Cannot read: {}", statsFile);
+            }
+        }
+        return stats;
+    }
+
+    private void storeStats(Properties stats) {
+        try {
+            OutputStream output = new FileOutputStream(statsFile);
+            try {
+                stats.store(output, "Karaf class data sharing");
+            } finally {
+                output.close();
+            }
+        } catch (IOException ex) {
+            _logger.warn("Cannot write: " + statsFile, ex);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return archiveFile.getPath();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+
+/**
+ * A snapshot of the Karaf data directory, taken when the first boot has completed, before any test has run.
+ * Karaf is stopped cleanly for the capture and then relaunched from a clone of the snapshot.
+ *
+ * The snapshot is keyed by a hash of the Karaf home, the content of its <code>etc</code> and <code>deploy</code>
+ * directories and the arquillian bundle version. A later start with the same key boots from a clone of the
+ * snapshot and finds its features resolved and started already.
+ */
+class KarafDataSnapshot {
+
+    // Runtime state that must not be part of the snapshot
+    private static final Set<String> EXCLUDED = new HashSet<String>(Arrays.asList("lock", "port", "tmp", "log"));
+
+    private final File snapshotDir;
+    private final String key;
+
+    KarafDataSnapshot(File snapshotRoot, String key) {
+        this.snapshotDir = new File(snapshotRoot, key);
+        this.key = key;
+    }
+
+    static KarafDataSnapshot create(KarafManagedContainerConfiguration config, File karafHome, String arqVersion) {
+        MessageDigest digest = FileUtils.newDigest("SHA-1");
+        FileUtils.update(digest, karafHome + "\n");
+        FileUtils.update(digest, "arquillian-osgi-bundle:" + arqVersion + "\n");
+        FileUtils.update(digest, "startLevel:" + config.getKarafBeginningStartLevel() + "\n");
+        FileUtils.update(digest, "features:" + config.getKarafFeatureRepositories() + "|" + config.getKarafFeatures() + "\n");
+        update(digest, new File(karafHome, "etc"));
+        update(digest, new File(karafHome, "deploy"));
+        String key = FileUtils.toHexString(digest.digest());
+
+        File snapshotRoot = config.getKarafSnapshotDirectory() != null ? new File(config.getKarafSnapshotDirectory()).getAbsoluteFile()
+                : new File(karafHome.getParentFile(), karafHome.getName() + "-snapshots");
+        return new KarafDataSnapshot(snapshotRoot, key);
+    }
+
+    private static void update(MessageDigest digest, File file) {
+        File[] children = file.listFiles();
+        if (children == null) {
+            if (file.isFile()) {
+                FileUtils.update(digest, file + ":" + file.length() + ":" + file.lastModified() + "\n");
+            }
+            return;
+        }
+        Arrays.sort(children);
+        for (File child : children) {
+            update(digest, child);
+        }
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    File getSnapshotRoot() {
+        return snapshotDir.getParentFile();
+    }
+
+    boolean exists() {
+        return snapshotDir.isDirectory();
+    }
+
+    /**
+     * Clone the snapshot into a new data directory
+     */
+    void cloneTo(File dataDir) throws IOException {
+        if (dataDir.exists() && !FileUtils.deleteRecursively(dataDir))
+            throw new IOException("Cannot delete data directory: " + dataDir);
+
+        FileUtils.cloneDirectory(snapshotDir, dataDir);
+    }
+
+    /**
+     * Capture the content of the data directory of a stopped instance.
+     *
+     * The content is copied to a temporary directory first and then renamed, so that
+     * concurrent captures for the same key never expose a partial snapshot.
+     */
+    void capture(File dataDir) throws IOException {
+        File snapshotRoot = snapshotDir.getParentFile();
+        File tmpDir = new File(snapshotRoot, key + ".tmp" + System.nanoTime());
+        try {
+            if (!tmpDir.mkdirs())
+                throw new IOException("Cannot create directory: " + tmpDir);
+
+            File[] children = dataDir.listFiles();
+            if (children == null)
+                throw new IOException("Cannot list directory: " + dataDir);
+
+            for (File child : children) {
+                if (EXCLUDED.contains(child.getName()))
+                    continue;
+                File dest = new File(tmpDir, child.getName());
+                if (child.isDirectory()) {
+                    FileUtils.copyDirectory(child, dest);
+                } else {
+                    FileUtils.copyFile(child, dest);
+                }
+            }
+            if (!tmpDir.renameTo(snapshotDir) && !exists())
+                throw new IOException("Cannot create data snapshot: " + snapshotDir);
+        } finally {
+            if (tmpDir.exists()) {
+                FileUtils.deleteRecursively(tmpDir);
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[" + key + "]" + snapshotDir;
+    }
+}
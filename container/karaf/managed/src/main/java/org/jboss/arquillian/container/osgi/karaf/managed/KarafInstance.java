@@ -0,0 +1,443 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Karaf process together with the directories it runs in.
+ *
+ * A default instance runs in the Karaf home directory with the configured ports. An instance created
+ * with {@link #create(File, File, KarafDataSnapshot)} has its own <code>karaf.base</code> with copies of <code>etc</code> and
+ * <code>data</code>, and its RMI ports are allocated dynamically. The data directory of either may be cloned
+ * from a {@link KarafDataSnapshot}.
+ */
+class KarafInstance {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafInstance.class.getPackage().getName());
+
+    static final String MANAGEMENT_CONFIG = "org.apache.karaf.management.cfg";
+    static final String PAX_WEB_CONFIG = "org.ops4j.pax.web.cfg";
+
+    static final long DESTROY_TIMEOUT_SECONDS = 10;
+
+    private final File karafHome;
+    private final File karafBase;
+    private final File dataDir;
+    private final String jmxServiceURL;
+    private final boolean fromSnapshot;
+    private Process process;
+    private KarafReadiness readiness;
+    private ProcessOutputPump outputPump;
+    private ProcessOutputPump.TailSink outputTail;
+    private KarafClassDataSharing classDataSharing;
+    private String classPath;
+    private long launchNanos;
+    private boolean readyRecorded;
+
+    KarafInstance(File karafHome) {
+        this(karafHome, karafHome, new File(karafHome, "data"), null, false);
+    }
+
+    /**
+     * Create an instance in the Karaf home directory that uses the given data directory
+     */
+    KarafInstance(File karafHome, File dataDir, boolean fromSnapshot) {
+        this(karafHome, karafHome, dataDir, null, fromSnapshot);
+    }
+
+    private KarafInstance(File karafHome, File karafBase, File dataDir, String jmxServiceURL, boolean fromSnapshot) {
+        this.karafHome = karafHome;
+        this.karafBase = karafBase;
+        this.dataDir = dataDir;
+        this.jmxServiceURL = jmxServiceURL;
+        this.fromSnapshot = fromSnapshot;
+    }
+
+    /**
+     * Create an instance in its own base directory with dynamically allocated ports
+     */
+    static KarafInstance create(File karafHome, File karafBase, KarafDataSnapshot snapshot) throws IOException {
+        FileUtils.deleteRecursively(karafBase);
+        FileUtils.copyDirectory(new File(karafHome, "etc"), new File(karafBase, "etc"));
+        File dataDir = new File(karafBase, "data");
+        boolean fromSnapshot = snapshot != null && snapshot.exists();
+        if (fromSnapshot) {
+            snapshot.cloneTo(dataDir);
+        } else if (new File(karafHome, "data").isDirectory()) {
+            FileUtils.copyDirectory(new File(karafHome, "data"), dataDir);
+            // The copy must not inherit the lock of a running instance
+            new File(dataDir, "lock").delete();
+        }
+
+        int[] ports = allocatePorts(3);
+        File etcDir = new File(karafBase, "etc");
+        setProperty(new File(etcDir, MANAGEMENT_CONFIG), "rmiRegistryPort", String.valueOf(ports[0]));
+        setProperty(new File(etcDir, MANAGEMENT_CONFIG), "rmiServerPort", String.valueOf(ports[1]));
+        File paxWebConfig = new File(etcDir, PAX_WEB_CONFIG);
+        if (paxWebConfig.isFile()) {
+            setProperty(paxWebConfig, "org.osgi.service.http.port", String.valueOf(ports[2]));
+        }
+
+        String karafName = loadProperties(new File(etcDir, "system.properties")).getProperty("karaf.name", "root");
+        String serviceURL = String.format("service:jmx:rmi://localhost:%d/jndi/rmi://localhost:%d/karaf-%s", ports[1], ports[0], karafName);
+        return new KarafInstance(karafHome, karafBase, dataDir, serviceURL, fromSnapshot);
+    }
+
+    File getKarafBase() {
+        return karafBase;
+    }
+
+    File getDataDir() {
+        return dataDir;
+    }
+
+    /**
+     * @return true if the data directory was cloned from a snapshot
+     */
+    boolean isFromSnapshot() {
+        return fromSnapshot;
+    }
+
+    /**
+     * @return the JMX service URL of an instance with dynamic ports, null for the default instance
+     */
+    String getJmxServiceURL() {
+        return jmxServiceURL;
+    }
+
+    /**
+     * Launch the Karaf process unless it is running already
+     */
+    synchronized void launch(KarafManagedContainerConfiguration config) throws IOException {
+        if (isAlive())
+            return;
+
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        _logger.info(String.format("Using java: %s", java));
+
+        List<String> cmd = new ArrayList<String>();
+        cmd.add(java);
+
+        // JavaVM args
+        String javaArgs = config.getJavaVmArguments();
+        if (!javaArgs.contains("-Xmx")) {
+            javaArgs = KarafManagedContainerConfiguration.DEFAULT_JAVAVM_ARGUMENTS + " " + javaArgs;
+        }
+        cmd.addAll(Arrays.asList(javaArgs.trim().split("\\s+")));
+
+        // Karaf properties
+        cmd.add("-Dkaraf.home=" + karafHome);
+        cmd.add("-Dkaraf.base=" + karafBase);
+        cmd.add("-Dkaraf.etc=" + karafBase + "/etc");
+        cmd.add("-Dkaraf.data=" + dataDir);
+        cmd.add("-Dkaraf.instances=" + karafBase + "/instances");
+        cmd.add("-Dkaraf.startLocalConsole=false");
+        cmd.add("-Dkaraf.startRemoteShell=false");
+
+        // Java properties
+        cmd.add("-Djava.io.tmpdir=" + new File(dataDir, "tmp"));
+        cmd.add("-Djava.util.logging.config.file=" + new File(karafBase, "etc/java.util.logging.properties"));
+        cmd.add("-Djava.endorsed.dirs=" + new File(karafHome, "lib/endorsed"));
+
+        // Classpath
+        StringBuilder classPath = new StringBuilder();
+        File karafLibDir = new File(karafHome, "lib");
+        String[] libs = karafLibDir.list(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith("karaf");
+            }
+        });
+        for (String lib : libs) {
+            String separator = classPath.length() > 0 ? File.pathSeparator : "";
+            classPath.append(separator).append(new File(karafHome, "lib/" + lib));
+        }
+        // Class data sharing archive
+        classDataSharing = config.isKarafClassDataSharing() ? KarafClassDataSharing.create(config, karafHome) : null;
+        if (classDataSharing != null) {
+            cmd.addAll(classDataSharing.getJvmArguments());
+        }
+
+        cmd.add("-classpath");
+        cmd.add(classPath.toString());
+        this.classPath = classPath.toString();
+
+        // Main class
+        cmd.add("org.apache.karaf.main.Main");
+
+        // Output the startup command
+        StringBuffer cmdstr = new StringBuffer();
+        for (String tok : cmd) {
+            cmdstr.append(tok).append(" ");
+        }
+        _logger.debug("Starting Karaf with: {}", cmdstr);
+
+        ProcessBuilder processBuilder = new ProcessBuilder(cmd);
+        processBuilder.directory(karafBase);
+        processBuilder.redirectErrorStream(true);
+        readiness = new KarafReadiness(config.getKarafReadyPattern(), getProcessCharset(cmd));
+        readyRecorded = false;
+        launchNanos = System.nanoTime();
+        process = processBuilder.start();
+
+        // If nothing consumes the output the process will hang on some platforms
+        List<ProcessOutputPump.Sink> sinks = new ArrayList<ProcessOutputPump.Sink>();
+        if (config.isOutputToConsole()) {
+            sinks.add(new ProcessOutputPump.ConsoleSink());
+        }
+        if (config.getOutputFile() != null) {
+            File outputFile = new File(config.getOutputFile()).getAbsoluteFile();
+            if (!karafBase.equals(karafHome)) {
+                // Pooled instances write next to each other
+                outputFile = new File(outputFile.getPath() + "-" + karafBase.getName());
+            }
+            sinks.add(new ProcessOutputPump.FileSink(outputFile, config.getOutputFileMaxSize(), 3));
+        }
+        outputTail = config.getOutputTailSize() > 0 ? new ProcessOutputPump.TailSink(config.getOutputTailSize()) : null;
+        if (outputTail != null) {
+            sinks.add(outputTail);
+        }
+        outputPump = new ProcessOutputPump("Karaf", process.getInputStream(), sinks, readiness, ProcessOutputPump.DEFAULT_BUFFER_SIZE);
+        outputPump.start();
+    }
+
+    /**
+     * @return the charset the process writes its output with, given by <code>-Dfile.encoding</code> or the platform charset
+     */
+    static Charset getProcessCharset(List<String> cmd) {
+        Charset charset = Charset.defaultCharset();
+        for (String arg : cmd) {
+            if (arg.startsWith("-Dfile.encoding=")) {
+                String name = arg.substring("-Dfile.encoding=".length());
+                try {
+                    charset = Charset.forName(name);
+                } catch (IllegalArgumentException ex) {
+                    _logger.warn("Unsupported file.encoding of Karaf process: {}", name);
+                }
+            }
+        }
+        return charset;
+    }
+
+    /**
+     * @return the most recent process output, null if none is kept
+     */
+    synchronized String getOutputTail() {
+        return outputTail != null ? outputTail.getTail() : null;
+    }
+
+    /**
+     * Wait until the launched process is ready to accept a JMX connection on the given service URL
+     *
+     * @return the reason or null if the timeout elapsed
+     * @see KarafReadiness
+     */
+    String awaitReady(String jmxServiceURL, long timeout, TimeUnit unit) throws InterruptedException {
+        KarafReadiness current;
+        synchronized (this) {
+            current = readiness;
+        }
+        if (current == null)
+            throw new IllegalStateException("Not launched: " + this);
+        String reason = current.await(jmxServiceURL, timeout, unit);
+        if (reason != null && !KarafReadiness.TERMINATED.equals(reason)) {
+            recordReady(current);
+        }
+        return reason;
+    }
+
+    private synchronized void recordReady(KarafReadiness current) {
+        // The boot time is measured from process launch, once per launch
+        if (readyRecorded || current != readiness)
+            return;
+        readyRecorded = true;
+        long readyMillis = TimeUnit.NANOSECONDS.toMillis(current.getReadyNanos() - launchNanos);
+        _logger.debug("Karaf process ready {}ms after launch", readyMillis);
+        if (classDataSharing != null) {
+            classDataSharing.recordReady(readyMillis);
+        }
+    }
+
+    synchronized boolean isAlive() {
+        if (process == null)
+            return false;
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException ex) {
+            return true;
+        }
+    }
+
+    /**
+     * Stop the process, waiting a bounded time for a clean shutdown
+     *
+     * @return true if the process has shut down cleanly, false if it had to be killed or was not running
+     */
+    synchronized boolean destroy() {
+        boolean stopped = false;
+        if (process != null) {
+            try {
+                stopped = destroyProcess(process, DESTROY_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+                outputPump.awaitCompletion(2, TimeUnit.SECONDS);
+                if (outputPump.getDroppedBytes() > 0) {
+                    _logger.warn("Dropped {} bytes of Karaf output", outputPump.getDroppedBytes());
+                }
+                if (stopped && classDataSharing != null) {
+                    classDataSharing.onProcessExit(classPath);
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            process = null;
+        }
+        return stopped;
+    }
+
+    /**
+     * Ask the process to terminate and kill it if it has not terminated within the timeout
+     *
+     * @return true if the process has terminated within the timeout, false if it had to be killed
+     */
+    static boolean destroyProcess(Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        process.destroy();
+        if (awaitExit(process, timeout, unit))
+            return true;
+
+        _logger.warn("Process did not terminate within {}s, killing it", unit.toSeconds(timeout));
+        try {
+            // Process.destroyForcibly() is available on Java 8 and later
+            Process.class.getMethod("destroyForcibly").invoke(process);
+            awaitExit(process, timeout, unit);
+        } catch (NoSuchMethodException ex) {
+            _logger.warn("Cannot kill process on this Java version");
+        } catch (Exception ex) {
+            _logger.warn("Cannot kill process", ex);
+        }
+        return false;
+    }
+
+    private static boolean awaitExit(Process process, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (true) {
+            try {
+                process.exitValue();
+                return true;
+            } catch (IllegalThreadStateException ex) {
+                if (System.nanoTime() - deadline > 0)
+                    return false;
+                Thread.sleep(50);
+            }
+        }
+    }
+
+    static int[] allocatePorts(int count) throws IOException {
+        // Keep all sockets open until every port is known, so that no port is handed out twice
+        ServerSocket[] sockets = new ServerSocket[count];
+        int[] ports = new int[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                sockets[i] = new ServerSocket(0);
+                ports[i] = sockets[i].getLocalPort();
+            }
+        } finally {
+            for (ServerSocket socket : sockets) {
+                if (socket != null) {
+                    socket.close();
+                }
+            }
+        }
+        return ports;
+    }
+
+    /**
+     * Set a property in a configuration file, keeping the remaining lines as they are
+     */
+    static void setProperty(File file, String key, String value) throws IOException {
+        List<String> lines = new ArrayList<String>();
+        if (file.isFile()) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "ISO-8859-1"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    lines.add(line);
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        boolean found = false;
+        for (int i = 0; i < lines.size(); i++) {
+            String line = lines.get(i).trim();
+            if (line.startsWith(key) && line.substring(key.length()).trim().matches("[=:].*")) {
+                lines.set(i, key + " = " + value);
+                found = true;
+            }
+        }
+        if (!found) {
+            lines.add(key + " = " + value);
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "ISO-8859-1");
+        try {
+            for (String line : lines) {
+                writer.write(line);
+                writer.write(System.getProperty("line.separator"));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static Properties loadProperties(File file) throws IOException {
+        Properties props = new Properties();
+        if (file.isFile()) {
+            InputStream input = new FileInputStream(file);
+            try {
+                props.load(input);
+            } finally {
+                input.close();
+            }
+        }
+        return props;
+    }
+
+    @Override
+    public String toString() {
+        return "KarafInstance[" + karafBase + "]";
+    }
+}
@@ -0,0 +1,233 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A pool of Karaf instances that are launched in the background before they are leased.
+ *
+ * There is one pool per Karaf home, Java VM arguments and pool directory in a JVM. The first lease launches
+ * a single instance. When an instance is released, that is when the container stops, the pool is filled, so
+ * that the next start in the same JVM finds an instance that has already booted. From then on leased
+ * instances are replaced right away. Instances use their own base directory and dynamically allocated ports, so that several
+ * test JVMs, such as parallel Surefire forks, can run their pools next to each other.
+ */
+class KarafInstancePool {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafInstancePool.class.getPackage().getName());
+
+    private static final Map<String, KarafInstancePool> pools = new HashMap<String, KarafInstancePool>();
+
+    private final File karafHome;
+    private final File poolDir;
+    private final int size;
+    private final KarafManagedContainerConfiguration config;
+    private final KarafDataSnapshot snapshot;
+    private final String instancePrefix;
+    private final LinkedList<PooledInstance> idle = new LinkedList<PooledInstance>();
+    private final Set<KarafInstance> instances = new HashSet<KarafInstance>();
+    private final ExecutorService launcher;
+    private int instanceCount;
+    private int releaseCount;
+
+    KarafInstancePool(File karafHome, File poolDir, KarafManagedContainerConfiguration config, KarafDataSnapshot snapshot) {
+        this.karafHome = karafHome;
+        this.poolDir = poolDir;
+        this.size = config.getKarafPoolSize();
+        this.config = config;
+        this.snapshot = snapshot;
+        // Instance directories of concurrent JVMs must not collide
+        this.instancePrefix = "instance-" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9]", "_") + "-";
+        // One launch for the lease and the replacements launched next to it
+        this.launcher = Executors.newFixedThreadPool(config.getKarafPoolSize() + 1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Karaf Instance Launcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    static synchronized KarafInstancePool getPool(KarafManagedContainerConfiguration config, File karafHome, KarafDataSnapshot snapshot) {
+        File poolDir = config.getKarafPoolDirectory() != null ? new File(config.getKarafPoolDirectory()).getAbsoluteFile()
+                : new File(karafHome.getParentFile(), karafHome.getName() + "-pool");
+        String key = karafHome + "|" + poolDir + "|" + config.getJavaVmArguments() + "|" + (snapshot != null ? snapshot.getKey() : null);
+        KarafInstancePool pool = pools.get(key);
+        if (pool == null) {
+            pool = new KarafInstancePool(karafHome, poolDir, config, snapshot);
+            Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownTask(pool), "Karaf Instance Pool Shutdown"));
+            pools.put(key, pool);
+        }
+        return pool;
+    }
+
+    /**
+     * Lease an instance, waiting until it has booted.
+     * The returned instance is ready, has failed to launch or did not become ready in time.
+     */
+    KarafInstance lease() throws IOException {
+        PooledInstance pooled;
+        synchronized (this) {
+            pooled = idle.isEmpty() ? launchInstance() : idle.removeFirst();
+            // A later lease can only use a pre-launched instance if the container is started again
+            if (releaseCount > 0) {
+                fill();
+            }
+        }
+        try {
+            pooled.launched.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while launching: " + pooled.instance);
+        } catch (ExecutionException ex) {
+            discard(pooled.instance);
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException)
+                throw (IOException) cause;
+            throw new IOException("Cannot launch: " + pooled.instance, cause);
+        }
+        _logger.info("Leased {}", pooled.instance);
+        return pooled.instance;
+    }
+
+    /**
+     * Stop a leased instance, delete its directory and launch the replacements
+     */
+    void release(KarafInstance instance) {
+        synchronized (this) {
+            releaseCount++;
+        }
+        discard(instance);
+        synchronized (this) {
+            try {
+                fill();
+            } catch (IOException ex) {
+                _logger.warn("Cannot launch pooled Karaf instance", ex);
+            }
+        }
+    }
+
+    private void discard(KarafInstance instance) {
+        synchronized (this) {
+            if (!instances.remove(instance))
+                return;
+        }
+        destroy(instance);
+        FileUtils.deleteRecursively(instance.getKarafBase());
+    }
+
+    /**
+     * @return the number of instances that are launched and not leased
+     */
+    synchronized int getIdleCount() {
+        return idle.size();
+    }
+
+    void launch(KarafInstance instance) throws IOException, InterruptedException {
+        instance.launch(config);
+        // Detect readiness while the instance boots, not when it is leased
+        instance.awaitReady(instance.getJmxServiceURL(), 30, TimeUnit.SECONDS);
+    }
+
+    void destroy(KarafInstance instance) {
+        instance.destroy();
+    }
+
+    private void fill() throws IOException {
+        while (idle.size() < size) {
+            idle.add(launchInstance());
+        }
+    }
+
+    private PooledInstance launchInstance() throws IOException {
+        File karafBase = new File(poolDir, instancePrefix + (++instanceCount));
+        // Instances created after the snapshot was captured boot from a clone of it
+        final KarafInstance instance = KarafInstance.create(karafHome, karafBase, snapshot);
+        Future<Void> launched = launcher.submit(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                launch(instance);
+                return null;
+            }
+        });
+        instances.add(instance);
+        _logger.debug("Launching pooled {}", instance);
+        return new PooledInstance(instance, launched);
+    }
+
+    /**
+     * Stop all instances of this pool, called when the JVM exits
+     */
+    void shutdown() {
+        List<KarafInstance> running;
+        synchronized (this) {
+            running = new ArrayList<KarafInstance>(instances);
+            instances.clear();
+            idle.clear();
+        }
+        launcher.shutdownNow();
+        for (KarafInstance instance : running) {
+            destroy(instance);
+            FileUtils.deleteRecursively(instance.getKarafBase());
+        }
+    }
+
+    private static class PooledInstance {
+        final KarafInstance instance;
+        final Future<Void> launched;
+
+        PooledInstance(KarafInstance instance, Future<Void> launched) {
+            this.instance = instance;
+            this.launched = launched;
+        }
+    }
+
+    private static class ShutdownTask implements Runnable {
+        private final KarafInstancePool pool;
+
+        ShutdownTask(KarafInstancePool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        public void run() {
+            pool.shutdown();
+        }
+    }
+}
@@ -16,6 +16,9 @@
  */
 package org.jboss.arquillian.container.osgi.karaf.managed;
 
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+
 import org.jboss.arquillian.container.osgi.jmx.JMXContainerConfiguration;
 import org.jboss.arquillian.container.spi.ConfigurationException;
 
@@ -30,12 +33,30 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
     public static final String DEFAULT_JAVAVM_ARGUMENTS = "-Xmx512m";
     public static final String DEFAULT_JMX_USERNAME = "karaf";
     public static final String DEFAULT_JMX_PASSWORD = "karaf";
+    public static final long DEFAULT_OUTPUT_FILE_MAX_SIZE = 10 * 1024 * 1024;
+    public static final int DEFAULT_OUTPUT_TAIL_SIZE = 64 * 1024;
+    public static final int DEFAULT_RESOURCE_MONITOR_MAX_SAMPLES = 3600;
 
     private String karafHome;
     private String javaVmArguments;
     private Integer karafBeginningStartLevel;
     private boolean allowConnectingToRunningServer;
     private boolean outputToConsole;
+    private int karafPoolSize;
+    private String karafPoolDirectory;
+    private boolean karafDataSnapshot;
+    private String karafReadyPattern;
+    private boolean karafClassDataSharing;
+    private String karafClassDataSharingDirectory;
+    private String outputFile;
+    private long outputFileMaxSize = DEFAULT_OUTPUT_FILE_MAX_SIZE;
+    private int outputTailSize = DEFAULT_OUTPUT_TAIL_SIZE;
+    private String karafSnapshotDirectory;
+    private String karafFeatures;
+    private String karafFeatureRepositories;
+    private long resourceMonitorInterval;
+    private int resourceMonitorMaxSamples = DEFAULT_RESOURCE_MONITOR_MAX_SAMPLES;
+    private String resourceMonitorFile;
 
     public KarafManagedContainerConfiguration() {
         super();
@@ -83,6 +104,172 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
         this.outputToConsole = outputToConsole;
     }
 
+    /**
+     * @return the number of Karaf instances that are launched ahead of time once the container is started again
+     *         in the same JVM, 0 to launch one per start
+     */
+    public int getKarafPoolSize() {
+        return karafPoolSize;
+    }
+
+    public void setKarafPoolSize(int karafPoolSize) {
+        this.karafPoolSize = karafPoolSize;
+    }
+
+    /**
+     * @return the directory that holds the pooled instances, defaults to a sibling of the Karaf home
+     */
+    public String getKarafPoolDirectory() {
+        return karafPoolDirectory;
+    }
+
+    public void setKarafPoolDirectory(String karafPoolDirectory) {
+        this.karafPoolDirectory = karafPoolDirectory;
+    }
+
+    /**
+     * @return true if later starts boot from a snapshot of the data directory, taken right after the first boot
+     */
+    public boolean isKarafDataSnapshot() {
+        return karafDataSnapshot;
+    }
+
+    public void setKarafDataSnapshot(boolean karafDataSnapshot) {
+        this.karafDataSnapshot = karafDataSnapshot;
+    }
+
+    /**
+     * @return the directory that holds the data snapshots, defaults to a sibling of the Karaf home
+     */
+    public String getKarafSnapshotDirectory() {
+        return karafSnapshotDirectory;
+    }
+
+    public void setKarafSnapshotDirectory(String karafSnapshotDirectory) {
+        this.karafSnapshotDirectory = karafSnapshotDirectory;
+    }
+
+    /**
+     * @return a regular expression that marks Karaf as ready when it appears in the process output, may be null
+     */
+    public String getKarafReadyPattern() {
+        return karafReadyPattern;
+    }
+
+    public void setKarafReadyPattern(String karafReadyPattern) {
+        this.karafReadyPattern = karafReadyPattern;
+    }
+
+    /**
+     * @return true if the Karaf JVM uses an application class data sharing archive created by a training boot
+     */
+    public boolean isKarafClassDataSharing() {
+        return karafClassDataSharing;
+    }
+
+    public void setKarafClassDataSharing(boolean karafClassDataSharing) {
+        this.karafClassDataSharing = karafClassDataSharing;
+    }
+
+    /**
+     * @return the directory that holds the class data sharing archive, defaults to a sibling of the Karaf home
+     */
+    public String getKarafClassDataSharingDirectory() {
+        return karafClassDataSharingDirectory;
+    }
+
+    public void setKarafClassDataSharingDirectory(String karafClassDataSharingDirectory) {
+        this.karafClassDataSharingDirectory = karafClassDataSharingDirectory;
+    }
+
+    /**
+     * @return the file that receives the Karaf process output, may be null
+     */
+    public String getOutputFile() {
+        return outputFile;
+    }
+
+    public void setOutputFile(String outputFile) {
+        this.outputFile = outputFile;
+    }
+
+    /**
+     * @return the size at which the output file is rotated, 0 to never rotate
+     */
+    public long getOutputFileMaxSize() {
+        return outputFileMaxSize;
+    }
+
+    public void setOutputFileMaxSize(long outputFileMaxSize) {
+        this.outputFileMaxSize = outputFileMaxSize;
+    }
+
+    /**
+     * @return the number of bytes of recent output that are attached to failed tests, 0 to attach none
+     */
+    public int getOutputTailSize() {
+        return outputTailSize;
+    }
+
+    public void setOutputTailSize(int outputTailSize) {
+        this.outputTailSize = outputTailSize;
+    }
+
+    /**
+     * @return a comma separated list of features, given as name or name/version, installed when the container starts
+     */
+    public String getKarafFeatures() {
+        return karafFeatures;
+    }
+
+    public void setKarafFeatures(String karafFeatures) {
+        this.karafFeatures = karafFeatures;
+    }
+
+    /**
+     * @return a comma separated list of feature repository URIs that are added before the features are installed
+     */
+    public String getKarafFeatureRepositories() {
+        return karafFeatureRepositories;
+    }
+
+    public void setKarafFeatureRepositories(String karafFeatureRepositories) {
+        this.karafFeatureRepositories = karafFeatureRepositories;
+    }
+
+    /**
+     * @return the milliseconds between samples of the Karaf JVM resources, 0 to not sample
+     */
+    public long getResourceMonitorInterval() {
+        return resourceMonitorInterval;
+    }
+
+    public void setResourceMonitorInterval(long resourceMonitorInterval) {
+        this.resourceMonitorInterval = resourceMonitorInterval;
+    }
+
+    /**
+     * @return the number of samples that are retained, older samples are dropped
+     */
+    public int getResourceMonitorMaxSamples() {
+        return resourceMonitorMaxSamples;
+    }
+
+    public void setResourceMonitorMaxSamples(int resourceMonitorMaxSamples) {
+        this.resourceMonitorMaxSamples = resourceMonitorMaxSamples;
+    }
+
+    /**
+     * @return the file that receives the samples when the container stops, JSON if it ends with .json and CSV otherwise
+     */
+    public String getResourceMonitorFile() {
+        return resourceMonitorFile;
+    }
+
+    public void setResourceMonitorFile(String resourceMonitorFile) {
+        this.resourceMonitorFile = resourceMonitorFile;
+    }
+
     @Override
     public void validate() throws ConfigurationException {
         super.validate();
@@ -94,5 +281,18 @@ public class KarafManagedContainerConfiguration extends JMXContainerConfiguratio
             setJmxUsername(DEFAULT_JMX_USERNAME);
         if (jmxPassword == null)
             setJmxPassword(DEFAULT_JMX_PASSWORD);
+        if (karafReadyPattern != null) {
+            try {
+                Pattern.compile(karafReadyPattern);
+            } catch (PatternSyntaxException ex) {
+                throw new ConfigurationException("Invalid karafReadyPattern: " + karafReadyPattern, ex);
+            }
+        }
+        if (karafPoolSize < 0)
+            throw new ConfigurationException("karafPoolSize cannot be negative: " + karafPoolSize);
+        if (resourceMonitorInterval < 0)
+            throw new ConfigurationException("resourceMonitorInterval cannot be negative: " + resourceMonitorInterval);
+        if (resourceMonitorInterval > 0 && resourceMonitorMaxSamples < 1)
+            throw new ConfigurationException("resourceMonitorMaxSamples must be positive: " + resourceMonitorMaxSamples);
     }
 }
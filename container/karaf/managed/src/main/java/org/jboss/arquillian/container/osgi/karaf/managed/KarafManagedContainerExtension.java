@@ -19,6 +19,7 @@ package org.jboss.arquillian.container.osgi.karaf.managed;
 
 import org.jboss.arquillian.container.osgi.DeploymentObserver;
 import org.jboss.arquillian.container.osgi.OSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.container.osgi.metrics.ContainerMetricsObserver;
 import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
 import org.jboss.arquillian.container.test.spi.client.deployment.ApplicationArchiveProcessor;
 import org.jboss.arquillian.core.spi.LoadableExtension;
@@ -35,6 +36,9 @@ public class KarafManagedContainerExtension implements LoadableExtension {
         builder.service(DeployableContainer.class, KarafManagedDeployableContainer.class);
         builder.service(ApplicationArchiveProcessor.class, OSGiApplicationArchiveProcessor.class);
         builder.observer(DeploymentObserver.class);
+        builder.observer(ContainerMetricsObserver.class);
+        builder.observer(KarafOutputObserver.class);
+        builder.observer(KarafResourceObserver.class);
     }
 
 }
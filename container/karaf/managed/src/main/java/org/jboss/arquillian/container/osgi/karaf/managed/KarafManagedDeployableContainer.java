@@ -17,24 +17,19 @@
 package org.jboss.arquillian.container.osgi.karaf.managed;
 
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.InputStream;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 
 import javax.management.MBeanServerConnection;
-import javax.management.ObjectName;
 
-import org.jboss.arquillian.container.osgi.jmx.JMXDeployableContainer;
-import org.jboss.arquillian.container.osgi.jmx.ObjectNameFactory;
+import org.jboss.arquillian.container.osgi.karaf.KarafDeployableContainer;
+import org.jboss.arquillian.container.osgi.karaf.KarafFeaturesProvisioner;
+import org.jboss.arquillian.container.osgi.metrics.Phase;
+import org.jboss.arquillian.container.osgi.util.FileUtils;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
-import org.osgi.jmx.framework.BundleStateMBean;
-import org.osgi.jmx.framework.FrameworkMBean;
-import org.osgi.jmx.framework.ServiceStateMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -43,12 +38,17 @@ import org.slf4j.LoggerFactory;
  *
  * @author thomas.diesler@jboss.com
  */
-public class KarafManagedDeployableContainer<T extends KarafManagedContainerConfiguration> extends JMXDeployableContainer<T> {
+public class KarafManagedDeployableContainer<T extends KarafManagedContainerConfiguration> extends KarafDeployableContainer<T> {
 
     static final Logger _logger = LoggerFactory.getLogger(KarafManagedDeployableContainer.class.getPackage().getName());
 
     private KarafManagedContainerConfiguration config;
-    private Process process;
+    private KarafInstancePool instancePool;
+    private volatile KarafInstance pooledInstance;
+    private KarafInstance karafInstance;
+    private KarafDataSnapshot dataSnapshot;
+    private File runDataDir;
+    private volatile KarafResourceMonitor resourceMonitor;
 
     @Override
     public Class<T> getConfigurationClass() {
@@ -59,183 +59,260 @@ public class KarafManagedDeployableContainer<T extends KarafManagedContainerConf
 
     @Override
     public void setup(T config) {
-        super.setup(config);
         this.config = config;
+        if (config.isKarafDataSnapshot()) {
+            dataSnapshot = KarafDataSnapshot.create(config, getKarafHomeDir(), getArquillianBundleVersion());
+        }
+        if (config.getKarafPoolSize() > 0) {
+            instancePool = KarafInstancePool.getPool(config, getKarafHomeDir(), dataSnapshot);
+        }
+        super.setup(config);
+    }
+
+    @Override
+    protected String getJmxServiceURL() {
+        // A pooled instance has its own ports
+        KarafInstance instance = pooledInstance;
+        return instance != null ? instance.getJmxServiceURL() : super.getJmxServiceURL();
     }
 
     @Override
     public void start() throws LifecycleException {
+        long startNanos = System.nanoTime();
+        startMetrics();
+
+        // Lease before the JMX connection is used
+        if (instancePool != null) {
+            try {
+                pooledInstance = instancePool.lease();
+            } catch (IOException ex) {
+                throw new LifecycleException("Cannot lease pooled Karaf instance", ex);
+            }
+        }
 
-        // Try to connect to an already running server
+        // Try to connect to an already running server, nothing listens on a closed port
         MBeanServerConnection mbeanServer = null;
-        try {
-            mbeanServer = getMBeanServerConnection(500, TimeUnit.MILLISECONDS);
-        } catch (TimeoutException ex) {
-            // ignore
+        InetSocketAddress registryAddress = KarafReadiness.getRegistryAddress(getJmxServiceURL());
+        if (registryAddress == null || KarafReadiness.isPortOpen(registryAddress)) {
+            try {
+                mbeanServer = getMBeanServerConnection(500, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException ex) {
+                // ignore
+            }
         }
 
-        if (mbeanServer != null && !config.isAllowConnectingToRunningServer()) {
+        if (mbeanServer != null && pooledInstance == null && !config.isAllowConnectingToRunningServer()) {
             throw new LifecycleException(
                     "The server is already running! Managed containers does not support connecting to running server instances due to the " +
                     "possible harmful effect of connecting to the wrong server. Please stop server before running or change to another type of container.\n" +
                     "To disable this check and allow Arquillian to connect to a running server, set allowConnectingToRunningServer to true in the container configuration");
         }
 
-        // Start the Karaf process
+        // Start the Karaf process, a pooled instance is usually running already
         if (mbeanServer == null) {
-            String karafHome = config.getKarafHome();
-            if (karafHome == null)
-                throw new IllegalStateException("karafHome cannot be null");
+            mbeanServer = launchKarafInstance(pooledInstance);
+        } else if (pooledInstance != null) {
+            karafInstance = pooledInstance;
+        }
 
-            File karafHomeDir = new File(karafHome).getAbsoluteFile();
-            if (!karafHomeDir.isDirectory())
-                throw new IllegalStateException("Not a valid Karaf home dir: " + karafHomeDir);
+        try {
+            bootKaraf(mbeanServer);
+
+            String boot = null;
+            if (karafInstance != null) {
+                boot = karafInstance.isFromSnapshot() ? "warm" : "cold";
+                // Capture the state of the first boot before any test changes it, then continue on a clone
+                if (dataSnapshot != null && !dataSnapshot.exists() && !karafInstance.isFromSnapshot()) {
+                    relaunchFromDataSnapshot();
+                    boot = "cold, relaunched from data snapshot";
+                }
+            }
 
-            String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
-            _logger.info(String.format("Using java: %s", java));
+            getMetrics().recordSince(Phase.CONTAINER_START, null, startNanos);
+            if (boot != null) {
+                long readyMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+                _logger.info("Karaf ready in {}ms ({} boot)", readyMillis, boot);
+            }
 
-            List<String> cmd = new ArrayList<String>();
-            cmd.add(java);
+        } catch (RuntimeException rte) {
+            destroyKarafProcess();
+            throw rte;
+        } catch (Exception ex) {
+            destroyKarafProcess();
+            throw new LifecycleException("Cannot start Karaf container", ex);
+        }
+    }
 
-            // JavaVM args
-            String javaArgs = config.getJavaVmArguments();
-            if (!javaArgs.contains("-Xmx")) {
-                javaArgs = KarafManagedContainerConfiguration.DEFAULT_JAVAVM_ARGUMENTS + " " + javaArgs;
-            }
-            cmd.addAll(Arrays.asList(javaArgs.split("\\s")));
-
-            // Karaf properties
-            cmd.add("-Dkaraf.home=" + karafHomeDir);
-            cmd.add("-Dkaraf.base=" + karafHomeDir);
-            cmd.add("-Dkaraf.etc=" + karafHomeDir + "/etc");
-            cmd.add("-Dkaraf.data=" + karafHomeDir + "/data");
-            cmd.add("-Dkaraf.instances=" + karafHomeDir + "/instances");
-            cmd.add("-Dkaraf.startLocalConsole=false");
-            cmd.add("-Dkaraf.startRemoteShell=false");
-
-            // Java properties
-            cmd.add("-Djava.io.tmpdir=" + new File(karafHomeDir, "data/tmp"));
-            cmd.add("-Djava.util.logging.config.file=" + new File(karafHomeDir, "etc/java.util.logging.properties"));
-            cmd.add("-Djava.endorsed.dirs=" + new File(karafHomeDir, "lib/endorsed"));
-
-            // Classpath
-            StringBuilder classPath = new StringBuilder();
-            File karafLibDir = new File(karafHomeDir, "lib");
-            String[] libs = karafLibDir.list(new FilenameFilter() {
-                @Override
-                public boolean accept(File dir, String name) {
-                    return name.startsWith("karaf");
-                }
-            });
-            for (String lib : libs) {
-                String separator = classPath.length() > 0 ? File.pathSeparator : "";
-                classPath.append(separator).append(new File(karafHomeDir, "lib/" + lib));
-            }
-            cmd.add("-classpath");
-            cmd.add(classPath.toString());
+    @Override
+    public void stop() throws LifecycleException {
+        // The final sample needs the connection that super.stop() closes
+        stopResourceMonitor();
+        super.stop();
+        destroyKarafProcess();
+    }
 
-            // Main class
-            cmd.add("org.apache.karaf.main.Main");
+    /**
+     * @return the resource monitor of the running Karaf process, null if resources are not sampled
+     */
+    KarafResourceMonitor getResourceMonitor() {
+        return resourceMonitor;
+    }
 
-            // Output the startup command
-            StringBuffer cmdstr = new StringBuffer();
-            for (String tok : cmd) {
-                cmdstr.append(tok).append(" ");
-            }
-            _logger.debug("Starting Karaf with: {}", cmdstr);
+    /**
+     * @return the most recent output of the Karaf process, null if there is none
+     */
+    public String getOutputTail() {
+        KarafInstance instance = karafInstance;
+        return instance != null ? instance.getOutputTail() : null;
+    }
 
-            try {
-                ProcessBuilder processBuilder = new ProcessBuilder(cmd);
-                processBuilder.directory(karafHomeDir);
-                processBuilder.redirectErrorStream(true);
-                process = processBuilder.start();
-                new Thread(new ConsoleConsumer()).start();
-            } catch (Exception ex) {
-                throw new LifecycleException("Cannot start managed Karaf container", ex);
-            }
+    /**
+     * Launch the given or a new Karaf instance and connect to it as soon as the process reports readiness or opens its port
+     */
+    private MBeanServerConnection launchKarafInstance(KarafInstance instance) throws LifecycleException {
+        try {
+            karafInstance = instance != null ? instance : createKarafInstance();
+            karafInstance.launch(config);
+        } catch (Exception ex) {
+            throw new LifecycleException("Cannot start managed Karaf container", ex);
+        }
 
-            // Get the MBeanServerConnection
-            try {
-                mbeanServer = getMBeanServerConnection(30, TimeUnit.SECONDS);
-            } catch (Exception ex) {
-                destroyKarafProcess();
-                throw new LifecycleException("Cannot obtain MBean server connection", ex);
-            }
+        try {
+            long startWait = System.nanoTime();
+            String reason = karafInstance.awaitReady(getJmxServiceURL(), 30, TimeUnit.SECONDS);
+            if (KarafReadiness.TERMINATED.equals(reason))
+                throw new IllegalStateException("Karaf process terminated during startup");
+            long remaining = TimeUnit.SECONDS.toNanos(30) - (System.nanoTime() - startWait);
+            return getMBeanServerConnection(Math.max(remaining, TimeUnit.SECONDS.toNanos(1)), TimeUnit.NANOSECONDS);
+        } catch (Exception ex) {
+            destroyKarafProcess();
+            throw new LifecycleException("Cannot obtain MBean server connection", ex);
         }
+    }
 
+    /**
+     * Wait until the arquillian bundle, the features, the beginning start level and the bootstrap complete services are there
+     */
+    private void bootKaraf(MBeanServerConnection mbeanServer) throws Exception {
         mbeanServerInstance.set(mbeanServer);
 
-        try {
-            // Get the FrameworkMBean
-            ObjectName oname = ObjectNameFactory.create("osgi.core:type=framework,*");
-            frameworkMBean = getMBeanProxy(mbeanServer, oname, FrameworkMBean.class, 30, TimeUnit.SECONDS);
+        // Sample the Karaf JVM from the start, so that slow boots show up as well
+        if (config.getResourceMonitorInterval() > 0) {
+            resourceMonitor = new KarafResourceMonitor(mbeanServer, config.getResourceMonitorMaxSamples());
+            resourceMonitor.start(config.getResourceMonitorInterval(), TimeUnit.MILLISECONDS);
+        }
 
-            // Get the BundleStateMBean
-            oname = ObjectNameFactory.create("osgi.core:type=bundleState,*");
-            bundleStateMBean = getMBeanProxy(mbeanServer, oname, BundleStateMBean.class, 30, TimeUnit.SECONDS);
+        // Get the Framework, BundleState and ServiceState MBeans
+        lookupOSGiMBeans(mbeanServer, 30, TimeUnit.SECONDS);
 
-            // Get the BundleStateMBean
-            oname = ObjectNameFactory.create("osgi.core:type=serviceState,*");
-            serviceStateMBean = getMBeanProxy(mbeanServer, oname, ServiceStateMBean.class, 30, TimeUnit.SECONDS);
+        // Install the arquillian bundle and the configured features
+        installArquillianBundleAndFeatures(KarafFeaturesProvisioner.parseList(config.getKarafFeatureRepositories()),
+                KarafFeaturesProvisioner.parseList(config.getKarafFeatures()));
 
-            // Install the arquillian bundle to become active
-            installArquillianBundle();
+        // Await the beginning start level
+        Integer beginningStartLevel = config.getKarafBeginningStartLevel();
+        if (beginningStartLevel != null)
+            awaitBeginningStartLevel(beginningStartLevel, 30, TimeUnit.SECONDS);
 
-            // Await the arquillian bundle to become active
-            awaitArquillianBundleActive(30, TimeUnit.SECONDS);
+        // Await bootsrap complete services
+        awaitBootstrapCompleteServices();
+    }
 
-            // Await the beginning start level
-            Integer beginningStartLevel = config.getKarafBeginningStartLevel();
-            if (beginningStartLevel != null)
-                awaitBeginningStartLevel(beginningStartLevel, 30, TimeUnit.SECONDS);
+    /**
+     * Stop the booted instance, capture its data directory, which is only consistent once the framework has
+     * stopped, and boot again from a clone of the snapshot
+     */
+    private void relaunchFromDataSnapshot() throws Exception {
+        KarafResourceMonitor monitor = resourceMonitor;
+        resourceMonitor = null;
+        if (monitor != null) {
+            monitor.stop();
+        }
+        closeMBeanServerConnection();
 
-            // Await bootsrap complete services
-            awaitBootstrapCompleteServices();
+        if (karafInstance.destroy()) {
+            captureDataSnapshot(karafInstance.getDataDir());
+        } else {
+            _logger.warn("Karaf did not stop cleanly, not capturing data snapshot: {}", dataSnapshot);
+        }
+        karafInstance = null;
 
-        } catch (RuntimeException rte) {
-            destroyKarafProcess();
-            throw rte;
-        } catch (Exception ex) {
-            destroyKarafProcess();
-            throw new LifecycleException("Cannot start Karaf container", ex);
+        // Instances that the pool launches from now on boot from the snapshot
+        if (pooledInstance != null) {
+            instancePool.release(pooledInstance);
+            pooledInstance = null;
+            pooledInstance = instancePool.lease();
         }
+        bootKaraf(launchKarafInstance(pooledInstance));
     }
 
-    @Override
-    public void stop() throws LifecycleException {
-        super.stop();
-        destroyKarafProcess();
+    private KarafInstance createKarafInstance() throws IOException {
+        File karafHomeDir = getKarafHomeDir();
+        if (dataSnapshot == null || !dataSnapshot.exists())
+            return new KarafInstance(karafHomeDir);
+
+        // Boot from a clone of the snapshot in a directory of its own
+        String runName = "run-" + ManagementFactory.getRuntimeMXBean().getName().replaceAll("[^A-Za-z0-9]", "_");
+        runDataDir = new File(dataSnapshot.getSnapshotRoot(), runName);
+        long startNanos = System.nanoTime();
+        dataSnapshot.cloneTo(runDataDir);
+        _logger.debug("Cloned data snapshot {} in {}ms", dataSnapshot, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos));
+        return new KarafInstance(karafHomeDir, runDataDir, true);
     }
 
-    private void destroyKarafProcess() {
-        if (process != null) {
-            process.destroy();
+    private void captureDataSnapshot(File dataDir) {
+        if (dataSnapshot.exists())
+            return;
+        try {
+            dataSnapshot.capture(dataDir);
+            _logger.info("Captured data snapshot: {}", dataSnapshot);
+        } catch (IOException ex) {
+            _logger.warn("Cannot capture data snapshot: " + dataSnapshot, ex);
         }
     }
 
-    /**
-     * Runnable that consumes the output of the process. If nothing consumes the output the AS will hang on some platforms
-     *
-     * @author Stuart Douglas
-     */
-    private class ConsoleConsumer implements Runnable {
+    private File getKarafHomeDir() {
+        String karafHome = config.getKarafHome();
+        if (karafHome == null)
+            throw new IllegalStateException("karafHome cannot be null");
+
+        File karafHomeDir = new File(karafHome).getAbsoluteFile();
+        if (!karafHomeDir.isDirectory())
+            throw new IllegalStateException("Not a valid Karaf home dir: " + karafHomeDir);
+        return karafHomeDir;
+    }
 
-        @Override
-        public void run() {
-            final InputStream stream = process.getInputStream();
-            final boolean writeOutput = config.isOutputToConsole();
+    private void stopResourceMonitor() {
+        KarafResourceMonitor monitor = resourceMonitor;
+        if (monitor == null)
+            return;
+        resourceMonitor = null;
+        monitor.stop();
+        monitor.logSummary();
+        if (config.getResourceMonitorFile() != null) {
+            File file = new File(config.getResourceMonitorFile());
             try {
-                byte[] buf = new byte[32];
-                int num;
-                // Do not try reading a line cos it considers '\r' end of line
-                while ((num = stream.read(buf)) != -1) {
-                    if (writeOutput)
-                        System.out.write(buf, 0, num);
-                }
-            } catch (IOException ignored) {
+                monitor.export(file);
+                _logger.info("Exported Karaf resource samples: {}", file);
+            } catch (IOException ex) {
+                _logger.warn("Cannot export Karaf resource samples: " + file, ex);
             }
         }
     }
 
-
+    private void destroyKarafProcess() {
+        stopResourceMonitor();
+        if (karafInstance != null) {
+            karafInstance.destroy();
+            karafInstance = null;
+        }
+        if (pooledInstance != null) {
+            instancePool.release(pooledInstance);
+            pooledInstance = null;
+        }
+        if (runDataDir != null) {
+            FileUtils.deleteRecursively(runDataDir);
+            runDataDir = null;
+        }
+    }
 }
@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.lang.reflect.Method;
+
+import org.jboss.arquillian.container.spi.Container;
+import org.jboss.arquillian.container.spi.ContainerRegistry;
+import org.jboss.arquillian.core.api.Instance;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.core.spi.EventContext;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.event.suite.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Attaches the recent output of the managed Karaf process to failed tests.
+ *
+ * The output is added as a suppressed exception where the runtime supports it and logged otherwise.
+ */
+public class KarafOutputObserver {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafOutputObserver.class.getPackage().getName());
+
+    @Inject
+    private Instance<ContainerRegistry> registryInstance;
+
+    @Inject
+    private Instance<TestResult> testResultInstance;
+
+    public void attachOutput(@Observes EventContext<Test> context) {
+        context.proceed();
+
+        TestResult result = testResultInstance.get();
+        ContainerRegistry registry = registryInstance.get();
+        if (result == null || result.getStatus() != TestResult.Status.FAILED || registry == null)
+            return;
+
+        for (Container container : registry.getContainers()) {
+            if (container.getDeployableContainer() instanceof KarafManagedDeployableContainer) {
+                String tail = ((KarafManagedDeployableContainer<?>) container.getDeployableContainer()).getOutputTail();
+                if (tail != null && tail.length() > 0) {
+                    attach(result, container.getName(), tail);
+                }
+            }
+        }
+    }
+
+    private void attach(TestResult result, String containerName, String tail) {
+        String message = "Recent output of Karaf container '" + containerName + "':\n" + tail;
+        Throwable failure = result.getThrowable();
+        if (failure != null) {
+            try {
+                Method addSuppressed = Throwable.class.getMethod("addSuppressed", Throwable.class);
+                addSuppressed.invoke(failure, new KarafOutput(message));
+                return;
+            } catch (Exception ex) {
+                // Not available before Java 7
+            }
+        }
+        _logger.warn(message);
+    }
+
+    /**
+     * Carries the process output, without a stack trace of its own
+     */
+    static class KarafOutput extends Throwable {
+
+        private static final long serialVersionUID = 1L;
+
+        KarafOutput(String message) {
+            super(message);
+        }
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+}
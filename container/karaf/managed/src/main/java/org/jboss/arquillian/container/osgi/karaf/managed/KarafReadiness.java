@@ -0,0 +1,192 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Detects when a launched Karaf process is ready to accept a JMX connection.
+ *
+ * The process output is decoded with the charset of the process and matched line by line against the configured pattern. Independently of the output,
+ * the RMI registry port from the JMX service URL is probed, so that the connection can be made as soon as
+ * the port is open. A terminated process ends the wait as well.
+ */
+class KarafReadiness {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafReadiness.class.getPackage().getName());
+
+    static final String TERMINATED = "process terminated";
+
+    private static final Pattern REGISTRY_PATTERN = Pattern.compile("/jndi/rmi://([^:/]+):(\\d+)/");
+    private static final int MAX_LINE_LENGTH = 4096;
+    private static final long PROBE_INTERVAL = 25;
+    private static final int PROBE_TIMEOUT = 100;
+
+    private final Pattern pattern;
+    private final CountDownLatch signal = new CountDownLatch(1);
+    private final StringBuilder line = new StringBuilder();
+    private final CharsetDecoder decoder;
+    private final CharBuffer chars = CharBuffer.allocate(1024);
+    private ByteBuffer undecoded = ByteBuffer.allocate(0);
+    private volatile String reason;
+    private volatile long readyNanos;
+
+    KarafReadiness(String readyPattern, Charset charset) {
+        this.pattern = readyPattern != null ? Pattern.compile(readyPattern) : null;
+        this.decoder = charset.newDecoder().onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    }
+
+    /**
+     * Feed process output, called from the single thread that consumes it
+     */
+    void onOutput(byte[] buf, int off, int len) {
+        if (pattern == null || signal.getCount() == 0)
+            return;
+        ByteBuffer input = ByteBuffer.wrap(buf, off, len);
+        if (undecoded.hasRemaining()) {
+            // A multi byte character was split across chunks
+            ByteBuffer joined = ByteBuffer.allocate(undecoded.remaining() + len);
+            joined.put(undecoded).put(input).flip();
+            input = joined;
+        }
+        decode(input, false);
+        undecoded = ByteBuffer.allocate(input.remaining());
+        undecoded.put(input).flip();
+    }
+
+    void onTerminated() {
+        if (pattern != null && signal.getCount() > 0) {
+            decode(undecoded, true);
+            decoder.flush(chars);
+            appendChars();
+            matchLine();
+        }
+        ready(TERMINATED);
+    }
+
+    private void decode(ByteBuffer input, boolean endOfInput) {
+        CoderResult result;
+        do {
+            result = decoder.decode(input, chars, endOfInput);
+            appendChars();
+        } while (result.isOverflow());
+    }
+
+    private void appendChars() {
+        chars.flip();
+        while (chars.hasRemaining()) {
+            char ch = chars.get();
+            if (ch == '\n' || ch == '\r') {
+                matchLine();
+            } else if (line.length() < MAX_LINE_LENGTH) {
+                line.append(ch);
+            }
+        }
+        chars.clear();
+    }
+
+    private void matchLine() {
+        if (line.length() > 0 && pattern != null) {
+            if (pattern.matcher(line).find()) {
+                ready("output matched: " + line);
+            }
+            line.setLength(0);
+        }
+    }
+
+    private void ready(String cause) {
+        if (signal.getCount() > 0) {
+            reason = cause;
+            readyNanos = System.nanoTime();
+            signal.countDown();
+        }
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} at which readiness was detected, 0 if it has not been detected
+     */
+    long getReadyNanos() {
+        return readyNanos;
+    }
+
+    /**
+     * Wait until the output matches, the RMI registry port is open or the process terminates
+     *
+     * @return the reason or null if the timeout elapsed
+     */
+    String await(String jmxServiceURL, long timeout, TimeUnit unit) throws InterruptedException {
+        InetSocketAddress address = getRegistryAddress(jmxServiceURL);
+        long startNanos = System.nanoTime();
+        long timeoutNanos = unit.toNanos(timeout);
+        while (true) {
+            if (signal.getCount() == 0)
+                break;
+            if (address != null && isPortOpen(address)) {
+                ready("port open: " + address);
+                break;
+            }
+            long remaining = timeoutNanos - (System.nanoTime() - startNanos);
+            if (remaining <= 0)
+                return null;
+            signal.await(Math.min(remaining, TimeUnit.MILLISECONDS.toNanos(PROBE_INTERVAL)), TimeUnit.NANOSECONDS);
+        }
+        _logger.debug("Karaf ready after {}ms, {}", TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos), reason);
+        return reason;
+    }
+
+    static InetSocketAddress getRegistryAddress(String jmxServiceURL) {
+        if (jmxServiceURL == null)
+            return null;
+        Matcher matcher = REGISTRY_PATTERN.matcher(jmxServiceURL);
+        if (!matcher.find())
+            return null;
+        return new InetSocketAddress(matcher.group(1), Integer.parseInt(matcher.group(2)));
+    }
+
+    static boolean isPortOpen(InetSocketAddress address) {
+        if (address.isUnresolved())
+            return false;
+        Socket socket = new Socket();
+        try {
+            socket.connect(address, PROBE_TIMEOUT);
+            return true;
+        } catch (IOException ex) {
+            return false;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                // ignore
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.JMException;
+import javax.management.MBeanServerConnection;
+import javax.management.ObjectName;
+import javax.management.openmbean.CompositeData;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Samples the platform MXBeans of the Karaf JVM over its JMX connection.
+ *
+ * Samples go into a bounded time series, the oldest samples are dropped when it is full. Test starts and ends
+ * are recorded as markers on the same time line. The series is exported as CSV, or as JSON when the file name
+ * ends with <code>.json</code>.
+ */
+class KarafResourceMonitor {
+
+    static final Logger _logger = LoggerFactory.getLogger(KarafResourceMonitor.class.getPackage().getName());
+
+    static final String[] COLUMNS = { "heapUsed", "heapCommitted", "nonHeapUsed", "gcCount", "gcTimeMillis", "threadCount",
+            "peakThreadCount", "daemonThreadCount", "processCpuTimeNanos", "processCpuLoad", "systemLoadAverage" };
+
+    private static final ObjectName MEMORY = name(ManagementFactory.MEMORY_MXBEAN_NAME);
+    private static final ObjectName THREADING = name(ManagementFactory.THREAD_MXBEAN_NAME);
+    private static final ObjectName OPERATING_SYSTEM = name(ManagementFactory.OPERATING_SYSTEM_MXBEAN_NAME);
+    private static final ObjectName GARBAGE_COLLECTORS = name(ManagementFactory.GARBAGE_COLLECTOR_MXBEAN_DOMAIN_TYPE + ",*");
+
+    private final MBeanServerConnection mbeanServer;
+    private final long startMillis = System.currentTimeMillis();
+    private final long[][] samples;
+    private final LinkedList<Marker> markers = new LinkedList<Marker>();
+    private final int maxMarkers;
+    private ScheduledExecutorService executor;
+    private Set<ObjectName> collectors;
+    private boolean failing;
+
+    // Guarded by this
+    private long sampleCount;
+
+    KarafResourceMonitor(MBeanServerConnection mbeanServer, int maxSamples) {
+        this.mbeanServer = mbeanServer;
+        this.samples = new long[maxSamples][];
+        this.maxMarkers = maxSamples;
+    }
+
+    synchronized void start(long interval, TimeUnit unit) {
+        executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "Karaf Resource Monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                sample();
+            }
+        }, 0, interval, unit);
+    }
+
+    /**
+     * Stop sampling, after a final sample while the connection is still open
+     */
+    void stop() {
+        ScheduledExecutorService running;
+        synchronized (this) {
+            running = executor;
+            executor = null;
+        }
+        if (running == null)
+            return;
+        running.shutdown();
+        try {
+            running.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        sample();
+    }
+
+    void mark(String label) {
+        addMarker(System.currentTimeMillis() - startMillis, label);
+    }
+
+    synchronized void addMarker(long timeMillis, String label) {
+        if (markers.size() == maxMarkers) {
+            markers.removeFirst();
+        }
+        markers.add(new Marker(timeMillis, label));
+    }
+
+    void sample() {
+        long[] sample = new long[COLUMNS.length + 1];
+        try {
+            sample[0] = System.currentTimeMillis() - startMillis;
+            CompositeData heap = (CompositeData) mbeanServer.getAttribute(MEMORY, "HeapMemoryUsage");
+            CompositeData nonHeap = (CompositeData) mbeanServer.getAttribute(MEMORY, "NonHeapMemoryUsage");
+            sample[1] = (Long) heap.get("used");
+            sample[2] = (Long) heap.get("committed");
+            sample[3] = (Long) nonHeap.get("used");
+
+            if (collectors == null) {
+                collectors = mbeanServer.queryNames(GARBAGE_COLLECTORS, null);
+            }
+            for (ObjectName collector : collectors) {
+                AttributeList gc = mbeanServer.getAttributes(collector, new String[] { "CollectionCount", "CollectionTime" });
+                sample[4] += Math.max(0, getLong(gc, "CollectionCount", 0));
+                sample[5] += Math.max(0, getLong(gc, "CollectionTime", 0));
+            }
+
+            AttributeList threads = mbeanServer.getAttributes(THREADING, new String[] { "ThreadCount", "PeakThreadCount", "DaemonThreadCount" });
+            sample[6] = getLong(threads, "ThreadCount", -1);
+            sample[7] = getLong(threads, "PeakThreadCount", -1);
+            sample[8] = getLong(threads, "DaemonThreadCount", -1);
+
+            // ProcessCpuTime and ProcessCpuLoad are only provided by some JVMs
+            AttributeList os = mbeanServer.getAttributes(OPERATING_SYSTEM, new String[] { "ProcessCpuTime", "ProcessCpuLoad", "SystemLoadAverage" });
+            sample[9] = getLong(os, "ProcessCpuTime", -1);
+            sample[10] = Math.round(getDouble(os, "ProcessCpuLoad") * 1000);
+            sample[11] = Math.round(getDouble(os, "SystemLoadAverage") * 1000);
+        } catch (IOException ex) {
+            onSampleFailure(ex);
+            return;
+        } catch (JMException ex) {
+            onSampleFailure(ex);
+            return;
+        }
+        addSample(sample);
+    }
+
+    /**
+     * Add a sample that starts with the milliseconds since the monitor was created, followed by the {@link #COLUMNS}
+     */
+    synchronized void addSample(long[] sample) {
+        samples[(int) (sampleCount++ % samples.length)] = sample;
+        failing = false;
+    }
+
+    private synchronized void onSampleFailure(Exception ex) {
+        // The process may be gone, report once until sampling works again
+        if (!failing) {
+            _logger.debug("Cannot sample Karaf resources", ex);
+            failing = true;
+        }
+    }
+
+    private static long getLong(AttributeList list, String name, long defaultValue) {
+        for (Attribute attribute : list.asList()) {
+            if (attribute.getName().equals(name) && attribute.getValue() instanceof Number)
+                return ((Number) attribute.getValue()).longValue();
+        }
+        return defaultValue;
+    }
+
+    private static double getDouble(AttributeList list, String name) {
+        for (Attribute attribute : list.asList()) {
+            if (attribute.getName().equals(name) && attribute.getValue() instanceof Number)
+                return ((Number) attribute.getValue()).doubleValue();
+        }
+        return -0.001;
+    }
+
+    /**
+     * @return the retained samples, oldest first, each starting with the milliseconds since the monitor was created
+     */
+    synchronized List<long[]> getSamples() {
+        List<long[]> result = new ArrayList<long[]>();
+        long first = Math.max(0, sampleCount - samples.length);
+        for (long i = first; i < sampleCount; i++) {
+            result.add(samples[(int) (i % samples.length)]);
+        }
+        return result;
+    }
+
+    synchronized List<Marker> getMarkers() {
+        return new ArrayList<Marker>(markers);
+    }
+
+    synchronized long getDroppedSamples() {
+        return Math.max(0, sampleCount - samples.length);
+    }
+
+    /**
+     * Log a one line summary of the retained samples
+     */
+    void logSummary() {
+        List<long[]> list = getSamples();
+        if (list.isEmpty())
+            return;
+        long maxHeap = 0;
+        long maxThreads = 0;
+        for (long[] sample : list) {
+            maxHeap = Math.max(maxHeap, sample[1]);
+            maxThreads = Math.max(maxThreads, sample[6]);
+        }
+        long[] first = list.get(0);
+        long[] last = list.get(list.size() - 1);
+        _logger.info("Karaf resources over {}ms: max heap {}MB, {} collections in {}ms, max {} threads", new Object[] { last[0] - first[0],
+                maxHeap / (1024 * 1024), last[4] - first[4], last[5] - first[5], maxThreads });
+    }
+
+    void export(File file) throws IOException {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs())
+            throw new IOException("Cannot create directory: " + parent);
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            if (file.getName().endsWith(".json")) {
+                writeJSON(writer);
+            } else {
+                writeCSV(writer);
+            }
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Write samples and markers in time order, a marker row only has the time and the marker column
+     */
+    void writeCSV(Writer writer) throws IOException {
+        writer.write("timeMillis");
+        for (String column : COLUMNS) {
+            writer.write("," + column);
+        }
+        writer.write(",marker\n");
+        List<long[]> list = getSamples();
+        List<Marker> marks = getMarkers();
+        int m = 0;
+        for (long[] sample : list) {
+            while (m < marks.size() && marks.get(m).timeMillis <= sample[0]) {
+                writeCSVMarker(writer, marks.get(m++));
+            }
+            for (int i = 0; i < sample.length; i++) {
+                writer.write(i == 0 ? "" : ",");
+                writer.write(format(i, sample[i]));
+            }
+            writer.write(",\n");
+        }
+        while (m < marks.size()) {
+            writeCSVMarker(writer, marks.get(m++));
+        }
+    }
+
+    private static void writeCSVMarker(Writer writer, Marker marker) throws IOException {
+        writer.write(String.valueOf(marker.timeMillis));
+        for (int i = 0; i < COLUMNS.length; i++) {
+            writer.write(",");
+        }
+        writer.write(",\"" + marker.label.replace("\"", "\"\"") + "\"\n");
+    }
+
+    void writeJSON(Writer writer) throws IOException {
+        writer.write("{\n  \"columns\": [\"timeMillis\"");
+        for (String column : COLUMNS) {
+            writer.write(", \"" + column + "\"");
+        }
+        writer.write("],\n  \"droppedSamples\": " + getDroppedSamples() + ",\n  \"samples\": [");
+        List<long[]> list = getSamples();
+        for (int s = 0; s < list.size(); s++) {
+            long[] sample = list.get(s);
+            writer.write(s == 0 ? "\n    [" : ",\n    [");
+            for (int i = 0; i < sample.length; i++) {
+                writer.write(i == 0 ? "" : ", ");
+                String value = format(i, sample[i]);
+                writer.write(value.length() > 0 ? value : "null");
+            }
+            writer.write("]");
+        }
+        writer.write("\n  ],\n  \"markers\": [");
+        List<Marker> marks = getMarkers();
+        for (int i = 0; i < marks.size(); i++) {
+            Marker marker = marks.get(i);
+            writer.write(i == 0 ? "\n    " : ",\n    ");
+            writer.write("{\"timeMillis\": " + marker.timeMillis + ", \"label\": \"" + escapeJSON(marker.label) + "\"}");
+        }
+        writer.write("\n  ]\n}\n");
+    }
+
+    // Loads are sampled as thousandths, a negative value means that the JVM does not provide it
+    private static String format(int column, long value) {
+        if (column >= 10) {
+            return value < 0 ? "" : String.valueOf(value / 1000.0);
+        }
+        return value < 0 && column >= 6 ? "" : String.valueOf(value);
+    }
+
+    private static String escapeJSON(String value) {
+        StringBuilder builder = new StringBuilder();
+        for (char ch : value.toCharArray()) {
+            if (ch == '"' || ch == '\\') {
+                builder.append('\\').append(ch);
+            } else if (ch < 0x20) {
+                builder.append(String.format("\\u%04x", (int) ch));
+            } else {
+                builder.append(ch);
+            }
+        }
+        return builder.toString();
+    }
+
+    private static ObjectName name(String name) {
+        try {
+            return new ObjectName(name);
+        } catch (JMException ex) {
+            throw new IllegalArgumentException(name, ex);
+        }
+    }
+
+    static class Marker {
+        final long timeMillis;
+        final String label;
+
+        Marker(long timeMillis, String label) {
+            this.timeMillis = timeMillis;
+            this.label = label;
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.jboss.arquillian.container.spi.Container;
+import org.jboss.arquillian.container.spi.ContainerRegistry;
+import org.jboss.arquillian.core.api.Instance;
+import org.jboss.arquillian.core.api.annotation.Inject;
+import org.jboss.arquillian.core.api.annotation.Observes;
+import org.jboss.arquillian.core.spi.EventContext;
+import org.jboss.arquillian.test.spi.TestResult;
+import org.jboss.arquillian.test.spi.event.suite.Test;
+
+/**
+ * Marks the start and end of each test on the resource samples of the managed Karaf containers.
+ */
+public class KarafResourceObserver {
+
+    @Inject
+    private Instance<ContainerRegistry> registryInstance;
+
+    @Inject
+    private Instance<TestResult> testResultInstance;
+
+    public void markTest(@Observes EventContext<Test> context) {
+        Test event = context.getEvent();
+        String testName = event.getTestClass().getJavaClass().getSimpleName() + "." + event.getTestMethod().getName();
+        List<KarafResourceMonitor> monitors = getMonitors();
+        for (KarafResourceMonitor monitor : monitors) {
+            monitor.mark("start " + testName);
+        }
+        try {
+            context.proceed();
+        } finally {
+            TestResult result = testResultInstance.get();
+            String status = result != null ? " " + result.getStatus() : "";
+            for (KarafResourceMonitor monitor : monitors) {
+                monitor.mark("end " + testName + status);
+            }
+        }
+    }
+
+    private List<KarafResourceMonitor> getMonitors() {
+        List<KarafResourceMonitor> monitors = new ArrayList<KarafResourceMonitor>();
+        ContainerRegistry registry = registryInstance.get();
+        if (registry != null) {
+            for (Container container : registry.getContainers()) {
+                if (container.getDeployableContainer() instanceof KarafManagedDeployableContainer) {
+                    KarafResourceMonitor monitor = ((KarafManagedDeployableContainer<?>) container.getDeployableContainer()).getResourceMonitor();
+                    if (monitor != null) {
+                        monitors.add(monitor);
+                    }
+                }
+            }
+        }
+        return monitors;
+    }
+}
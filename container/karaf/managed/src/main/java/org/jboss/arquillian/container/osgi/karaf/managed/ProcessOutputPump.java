@@ -0,0 +1,379 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Drains the output of a child process into a set of {@link Sink}s.
+ *
+ * A reader thread copies the output into a bounded ring buffer as fast as the pipe delivers it and never waits
+ * for a sink, so a slow console cannot stall the child process. A writer thread passes the buffered output on
+ * to the sinks. When the sinks fall behind by more than the buffer size, the oldest output is dropped and a
+ * marker is written in its place.
+ */
+class ProcessOutputPump {
+
+    static final Logger _logger = LoggerFactory.getLogger(ProcessOutputPump.class.getPackage().getName());
+
+    static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    /**
+     * A destination for process output. Sinks are only called from the writer thread.
+     */
+    interface Sink {
+
+        void write(byte[] buf, int off, int len) throws IOException;
+
+        void flush() throws IOException;
+
+        void close();
+    }
+
+    private final InputStream input;
+    private final List<Sink> sinks;
+    private final KarafReadiness readiness;
+    private final byte[] ring;
+    private final Thread reader;
+    private final Thread writer;
+
+    // Guarded by this
+    private long written;
+    private long read;
+    private long dropped;
+    private boolean eof;
+
+    ProcessOutputPump(String name, InputStream input, List<Sink> sinks, KarafReadiness readiness, int bufferSize) {
+        this.input = input;
+        this.sinks = new ArrayList<Sink>(sinks);
+        this.readiness = readiness;
+        this.ring = new byte[bufferSize];
+        this.reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                pumpInput();
+            }
+        }, name + " Output Reader");
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainToSinks();
+            }
+        }, name + " Output Writer");
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+    }
+
+    void start() {
+        writer.start();
+        reader.start();
+    }
+
+    /**
+     * Wait until all output up to the end of the stream has reached the sinks
+     */
+    boolean awaitCompletion(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        reader.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        writer.join(Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime())));
+        return !writer.isAlive();
+    }
+
+    synchronized long getDroppedBytes() {
+        return dropped;
+    }
+
+    private void pumpInput() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        try {
+            int num;
+            while ((num = input.read(chunk)) != -1) {
+                if (readiness != null) {
+                    readiness.onOutput(chunk, 0, num);
+                }
+                put(chunk, num);
+            }
+        } catch (IOException ex) {
+            // The stream is closed when the process is destroyed
+        } finally {
+            if (readiness != null) {
+                readiness.onTerminated();
+            }
+            synchronized (this) {
+                eof = true;
+                notifyAll();
+            }
+        }
+    }
+
+    private synchronized void put(byte[] chunk, int len) {
+        int off = 0;
+        if (len > ring.length) {
+            off = len - ring.length;
+            dropped += off;
+            len = ring.length;
+        }
+        // Overwrite the oldest output rather than wait for the sinks
+        long overflow = written + len - read - ring.length;
+        if (overflow > 0) {
+            read += overflow;
+            dropped += overflow;
+        }
+        int pos = (int) (written % ring.length);
+        int first = Math.min(len, ring.length - pos);
+        System.arraycopy(chunk, off, ring, pos, first);
+        System.arraycopy(chunk, off + first, ring, 0, len - first);
+        written += len;
+        notifyAll();
+    }
+
+    private void drainToSinks() {
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long reported = 0;
+        try {
+            while (true) {
+                int len;
+                long droppedNow;
+                boolean drained;
+                synchronized (this) {
+                    while (written == read && !eof) {
+                        wait();
+                    }
+                    if (written == read && eof)
+                        break;
+                    int pos = (int) (read % ring.length);
+                    len = (int) Math.min(Math.min(written - read, chunk.length), ring.length - pos);
+                    System.arraycopy(ring, pos, chunk, 0, len);
+                    read += len;
+                    droppedNow = dropped;
+                    drained = written == read;
+                }
+                if (droppedNow > reported) {
+                    byte[] marker = marker(droppedNow - reported);
+                    write(marker, marker.length);
+                    reported = droppedNow;
+                }
+                write(chunk, len);
+                // Flush once the buffer has drained rather than per chunk
+                if (drained) {
+                    flush();
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            for (Sink sink : sinks) {
+                try {
+                    sink.flush();
+                } catch (IOException ex) {
+                    // ignore
+                }
+                sink.close();
+            }
+        }
+    }
+
+    private void write(byte[] buf, int len) {
+        for (Sink sink : sinks) {
+            try {
+                sink.write(buf, 0, len);
+            } catch (IOException ex) {
+                _logger.warn("Cannot write process output to: " + sink, ex);
+            }
+        }
+    }
+
+    private void flush() {
+        for (Sink sink : sinks) {
+            try {
+                sink.flush();
+            } catch (IOException ex) {
+                _logger.warn("Cannot flush process output to: " + sink, ex);
+            }
+        }
+    }
+
+    private static byte[] marker(long droppedBytes) {
+        try {
+            return ("\n[... " + droppedBytes + " bytes of output dropped ...]\n").getBytes("US-ASCII");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    /**
+     * Writes to the console of the test JVM
+     */
+    static class ConsoleSink implements Sink {
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            System.out.write(buf, off, len);
+        }
+
+        @Override
+        public void flush() {
+            System.out.flush();
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "console";
+        }
+    }
+
+    /**
+     * Writes to a file that is rotated when it exceeds the maximum size
+     */
+    static class FileSink implements Sink {
+
+        private final File file;
+        private final long maxSize;
+        private final int backups;
+        private OutputStream output;
+        private long size;
+
+        FileSink(File file, long maxSize, int backups) {
+            this.file = file;
+            this.maxSize = maxSize;
+            this.backups = backups;
+        }
+
+        @Override
+        public void write(byte[] buf, int off, int len) throws IOException {
+            if (output == null || (maxSize > 0 && size + len > maxSize && size > 0)) {
+                rotate();
+            }
+            output.write(buf, off, len);
+            size += len;
+        }
+
+        private void rotate() throws IOException {
+            if (output != null) {
+                output.close();
+                output = null;
+                for (int i = backups - 1; i >= 0; i--) {
+                    File source = i == 0 ? file : new File(file.getPath() + "." + i);
+                    File target = new File(file.getPath() + "." + (i + 1));
+                    if (source.exists()) {
+                        target.delete();
+                        source.renameTo(target);
+                    }
+                }
+            }
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (!parent.isDirectory() && !parent.mkdirs())
+                throw new IOException("Cannot create directory: " + parent);
+            output = new FileOutputStream(file);
+            size = 0;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (output != null) {
+                output.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+            if (output != null) {
+                try {
+                    output.close();
+                } catch (IOException ex) {
+                    // ignore
+                }
+                output = null;
+            }
+        }
+
+        @Override
+        public String toString() {
+            return file.getPath();
+        }
+    }
+
+    /**
+     * Keeps the most recent output in memory
+     */
+    static class TailSink implements Sink {
+
+        private final byte[] tail;
+        private long count;
+
+        TailSink(int size) {
+            this.tail = new byte[size];
+        }
+
+        @Override
+        public synchronized void write(byte[] buf, int off, int len) {
+            if (len > tail.length) {
+                off += len - tail.length;
+                count += len - tail.length;
+                len = tail.length;
+            }
+            int pos = (int) (count % tail.length);
+            int first = Math.min(len, tail.length - pos);
+            System.arraycopy(buf, off, tail, pos, first);
+            System.arraycopy(buf, off + first, tail, 0, len - first);
+            count += len;
+        }
+
+        /**
+         * @return the most recent output, decoded with the platform charset
+         */
+        synchronized String getTail() {
+            int len = (int) Math.min(count, tail.length);
+            byte[] bytes = new byte[len];
+            int start = (int) ((count - len) % tail.length);
+            int first = Math.min(len, tail.length - start);
+            System.arraycopy(tail, start, bytes, 0, first);
+            System.arraycopy(tail, 0, bytes, first, len - first);
+            return new String(bytes);
+        }
+
+        @Override
+        public void flush() {
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public String toString() {
+            return "tail";
+        }
+    }
+}
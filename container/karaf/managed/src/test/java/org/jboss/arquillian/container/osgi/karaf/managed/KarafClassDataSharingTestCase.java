@@ -0,0 +1,138 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.jboss.arquillian.container.osgi.karaf.managed.KarafInstancePoolTestCase.newConfig;
+import static org.jboss.arquillian.container.osgi.karaf.managed.KarafInstancePoolTestCase.writeFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link KarafClassDataSharing}
+ */
+public class KarafClassDataSharingTestCase {
+
+    private File workDir;
+    private File karafHome;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = File.createTempFile("karaf-cds-test", "");
+        workDir.delete();
+        karafHome = new File(workDir, "karaf");
+        writeFile(new File(karafHome, "lib/karaf.jar"), "karaf");
+        writeFile(new File(karafHome, "lib/karaf-jaas-boot.jar"), "jaas");
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testKey() throws Exception {
+        KarafManagedContainerConfiguration config = newConfig(0);
+        String key = KarafClassDataSharing.getKey(config, karafHome);
+        assertEquals(key, KarafClassDataSharing.getKey(newConfig(0), karafHome));
+
+        // Java VM arguments are part of the key
+        config.setJavaVmArguments("-Xmx1g");
+        assertFalse(key.equals(KarafClassDataSharing.getKey(config, karafHome)));
+
+        // So is the content of the lib directory
+        writeFile(new File(karafHome, "lib/karaf.jar"), "karaf-updated");
+        assertFalse(key.equals(KarafClassDataSharing.getKey(newConfig(0), karafHome)));
+    }
+
+    @Test
+    public void testTrainingArguments() throws Exception {
+        File archiveDir = new File(workDir, "cds");
+        assertEquals("-XX:ArchiveClassesAtExit=", prefix(arguments(archiveDir, 17), 0));
+        assertEquals("-XX:ArchiveClassesAtExit=", prefix(arguments(archiveDir, 13), 0));
+
+        List<String> args = arguments(archiveDir, 11);
+        assertEquals(1, args.size());
+        assertEquals("-XX:DumpLoadedClassList=", prefix(args, 0));
+        assertTrue(args.get(0), args.get(0).endsWith(".classlist"));
+
+        args = arguments(archiveDir, 10);
+        assertEquals(2, args.size());
+        assertEquals("-XX:+UseAppCDS", args.get(0));
+        assertEquals("-XX:DumpLoadedClassList=", prefix(args, 1));
+    }
+
+    @Test
+    public void testArchiveArguments() throws Exception {
+        File archiveDir = new File(workDir, "cds");
+        File archiveFile = new File(archiveDir, "karaf-key.jsa");
+        writeFile(archiveFile, "archive");
+        for (int javaVersion : new int[] { 10, 11, 13, 17 }) {
+            KarafClassDataSharing classDataSharing = new KarafClassDataSharing(archiveDir, "key", javaVersion);
+            assertFalse(classDataSharing.isTraining());
+            List<String> args = classDataSharing.getJvmArguments();
+            assertEquals(2, args.size());
+            assertEquals("-XX:SharedArchiveFile=" + archiveFile, args.get(0));
+            assertEquals("-Xshare:auto", args.get(1));
+        }
+    }
+
+    @Test
+    public void testDeleteUnused() throws Exception {
+        File archiveDir = new File(workDir, "cds");
+        long now = System.currentTimeMillis();
+        long usedSince = now - TimeUnit.DAYS.toMillis(KarafClassDataSharing.MAX_UNUSED_DAYS);
+        File own = touch(new File(archiveDir, "karaf-key.jsa"), now - TimeUnit.DAYS.toMillis(60));
+        File recent = touch(new File(archiveDir, "karaf-other.jsa"), now - TimeUnit.DAYS.toMillis(1));
+        File unused = touch(new File(archiveDir, "karaf-unused.jsa"), now - TimeUnit.DAYS.toMillis(60));
+        File unusedStats = touch(new File(archiveDir, "karaf-unused.properties"), now - TimeUnit.DAYS.toMillis(60));
+        File foreign = touch(new File(archiveDir, "other.jsa"), now - TimeUnit.DAYS.toMillis(60));
+
+        KarafClassDataSharing.deleteUnused(archiveDir, "key", usedSince);
+        assertTrue(own.exists());
+        assertTrue(recent.exists());
+        assertFalse(unused.exists());
+        assertFalse(unusedStats.exists());
+        assertTrue(foreign.exists());
+    }
+
+    private static List<String> arguments(File archiveDir, int javaVersion) {
+        KarafClassDataSharing classDataSharing = new KarafClassDataSharing(archiveDir, "key", javaVersion);
+        assertTrue(classDataSharing.isTraining());
+        return classDataSharing.getJvmArguments();
+    }
+
+    private static String prefix(List<String> args, int index) {
+        String arg = args.get(index);
+        return arg.substring(0, arg.indexOf('=') + 1);
+    }
+
+    private static File touch(File file, long lastModified) throws Exception {
+        writeFile(file, file.getName());
+        assertTrue(file.setLastModified(lastModified));
+        return file;
+    }
+}
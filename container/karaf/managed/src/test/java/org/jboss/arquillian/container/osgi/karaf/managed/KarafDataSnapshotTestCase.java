@@ -0,0 +1,95 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.jboss.arquillian.container.osgi.karaf.managed.KarafInstancePoolTestCase.readFile;
+import static org.jboss.arquillian.container.osgi.karaf.managed.KarafInstancePoolTestCase.writeFile;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link KarafDataSnapshot}
+ */
+public class KarafDataSnapshotTestCase {
+
+    private File workDir;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = File.createTempFile("karaf-snapshot-test", "");
+        workDir.delete();
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testCaptureExcludesRuntimeState() throws Exception {
+        File dataDir = new File(workDir, "data");
+        writeFile(new File(dataDir, "cache/bundle1/bundle.jar"), "jar");
+        writeFile(new File(dataDir, "cache/bundle1/bundle.info"), "info");
+        writeFile(new File(dataDir, "lock"), "");
+        writeFile(new File(dataDir, "port"), "8101");
+        writeFile(new File(dataDir, "tmp/file"), "tmp");
+        writeFile(new File(dataDir, "log/karaf.log"), "log");
+
+        KarafDataSnapshot snapshot = new KarafDataSnapshot(new File(workDir, "snapshots"), "key");
+        assertFalse(snapshot.exists());
+        snapshot.capture(dataDir);
+        assertTrue(snapshot.exists());
+
+        File snapshotDir = new File(workDir, "snapshots/key");
+        assertTrue(new File(snapshotDir, "cache/bundle1/bundle.jar").isFile());
+        assertEquals("info", readFile(new File(snapshotDir, "cache/bundle1/bundle.info")));
+        for (String name : new String[] { "lock", "port", "tmp", "log" }) {
+            assertFalse(name, new File(snapshotDir, name).exists());
+        }
+        // No temporary capture directory is left behind
+        assertEquals(1, new File(workDir, "snapshots").list().length);
+    }
+
+    @Test
+    public void testCloneIsIndependent() throws Exception {
+        File dataDir = new File(workDir, "data");
+        writeFile(new File(dataDir, "cache/bundle1/bundle.jar"), "jar");
+        writeFile(new File(dataDir, "cache/bundle1/bundle.info"), "info");
+        KarafDataSnapshot snapshot = new KarafDataSnapshot(new File(workDir, "snapshots"), "key");
+        snapshot.capture(dataDir);
+
+        File cloneDir = new File(workDir, "clone");
+        writeFile(new File(cloneDir, "stale"), "stale");
+        snapshot.cloneTo(cloneDir);
+        assertFalse(new File(cloneDir, "stale").exists());
+        assertEquals("jar", readFile(new File(cloneDir, "cache/bundle1/bundle.jar")));
+
+        // Writes to the clone must not reach the snapshot
+        writeFile(new File(cloneDir, "cache/bundle1/bundle.info"), "changed");
+        assertEquals("info", readFile(new File(workDir, "snapshots/key/cache/bundle1/bundle.info")));
+        assertTrue(new File(cloneDir, "cache/bundle1/bundle.jar").delete());
+        assertTrue(new File(workDir, "snapshots/key/cache/bundle1/bundle.jar").isFile());
+    }
+}
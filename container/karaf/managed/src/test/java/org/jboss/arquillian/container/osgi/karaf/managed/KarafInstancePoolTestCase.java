@@ -0,0 +1,253 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.container.osgi.util.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test {@link KarafInstancePool} and the directory and port setup of {@link KarafInstance}
+ */
+public class KarafInstancePoolTestCase {
+
+    private File workDir;
+    private File karafHome;
+
+    @Before
+    public void setUp() throws Exception {
+        workDir = File.createTempFile("karaf-pool-test", "");
+        workDir.delete();
+        karafHome = createKarafHome(new File(workDir, "karaf"));
+    }
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteRecursively(workDir);
+    }
+
+    @Test
+    public void testFirstStartLaunchesOneInstance() throws Exception {
+        RecordingPool pool = new RecordingPool(2);
+        try {
+            KarafInstance instance = pool.lease();
+            pool.awaitLaunched(1);
+            assertEquals(0, pool.getIdleCount());
+            assertEquals(1, pool.launched.size());
+
+            // The stop fills the pool for the next start
+            pool.release(instance);
+            assertEquals(1, pool.destroyed.size());
+            assertFalse(instance.getKarafBase().exists());
+            assertEquals(2, pool.getIdleCount());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void testRestartUsesPrelaunchedInstance() throws Exception {
+        RecordingPool pool = new RecordingPool(1);
+        try {
+            pool.release(pool.lease());
+            assertEquals(1, pool.getIdleCount());
+
+            // The restart leases the instance launched on release, and a replacement is launched next to it
+            KarafInstance second = pool.lease();
+            assertTrue(second.getKarafBase().getName().endsWith("-2"));
+            assertEquals(1, pool.getIdleCount());
+            pool.release(second);
+
+            KarafInstance third = pool.lease();
+            assertTrue(third.getKarafBase().getName().endsWith("-3"));
+            assertEquals(1, pool.getIdleCount());
+            pool.release(third);
+        } finally {
+            pool.shutdown();
+        }
+        pool.awaitLaunched(4);
+        assertEquals(4, pool.destroyed.size());
+    }
+
+    @Test
+    public void testInstanceDirectoryAndPorts() throws Exception {
+        KarafInstance instance = KarafInstance.create(karafHome, new File(workDir, "instance"), null);
+
+        // The instance has its own copy of etc and data, without the lock of the home instance
+        File dataDir = instance.getDataDir();
+        assertTrue(new File(dataDir, "cache/bundle.jar").isFile());
+        assertFalse(new File(dataDir, "lock").exists());
+        assertTrue(new File(new File(karafHome, "data"), "lock").exists());
+
+        String url = instance.getJmxServiceURL();
+        assertTrue(url, url.matches("service:jmx:rmi://localhost:\\d+/jndi/rmi://localhost:\\d+/karaf-test"));
+
+        String config = readFile(new File(instance.getKarafBase(), "etc/" + KarafInstance.MANAGEMENT_CONFIG));
+        int registryPort = KarafReadiness.getRegistryAddress(url).getPort();
+        assertTrue(config, config.contains("rmiRegistryPort = " + registryPort));
+        assertFalse(config, config.contains("1099"));
+        assertTrue(config, config.contains("# management"));
+    }
+
+    @Test
+    public void testAllocatePorts() throws Exception {
+        int[] ports = KarafInstance.allocatePorts(5);
+        Set<Integer> unique = new HashSet<Integer>();
+        for (int port : ports) {
+            assertTrue("Port: " + port, port > 0);
+            unique.add(port);
+        }
+        assertEquals(5, unique.size());
+    }
+
+    @Test
+    public void testDestroyKillsHangingProcess() throws Exception {
+        String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), HangingMain.class.getName());
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        try {
+            // Wait until the shutdown hook is installed
+            assertEquals('R', process.getInputStream().read());
+
+            long start = System.nanoTime();
+            // The process does not stop cleanly and is killed
+            assertFalse(KarafInstance.destroyProcess(process, 1, TimeUnit.SECONDS));
+            process.exitValue();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            assertTrue("Destroyed in " + millis + "ms", millis < 10000);
+        } finally {
+            process.getInputStream().close();
+        }
+    }
+
+    /**
+     * A process that does not terminate on SIGTERM
+     */
+    public static class HangingMain {
+        public static void main(String[] args) throws Exception {
+            Runtime.getRuntime().addShutdownHook(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+                    } catch (InterruptedException ex) {
+                        // ignore
+                    }
+                }
+            });
+            System.out.write('R');
+            System.out.flush();
+            Thread.sleep(TimeUnit.MINUTES.toMillis(5));
+        }
+    }
+
+    static File createKarafHome(File karafHome) throws IOException {
+        writeFile(new File(karafHome, "etc/" + KarafInstance.MANAGEMENT_CONFIG), "# management\nrmiRegistryPort = 1099\nrmiServerPort = 44444\n");
+        writeFile(new File(karafHome, "etc/system.properties"), "karaf.name = test\n");
+        writeFile(new File(karafHome, "data/cache/bundle.jar"), "jar");
+        writeFile(new File(karafHome, "data/lock"), "");
+        return karafHome;
+    }
+
+    static void writeFile(File file, String content) throws IOException {
+        file.getParentFile().mkdirs();
+        OutputStream output = new FileOutputStream(file);
+        try {
+            output.write(content.getBytes("UTF-8"));
+        } finally {
+            output.close();
+        }
+    }
+
+    static String readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        InputStream input = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < bytes.length) {
+                offset += input.read(bytes, offset, bytes.length - offset);
+            }
+        } finally {
+            input.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A pool that records launches instead of starting Karaf processes
+     */
+    class RecordingPool extends KarafInstancePool {
+
+        final List<KarafInstance> launched = new ArrayList<KarafInstance>();
+        final List<KarafInstance> destroyed = new ArrayList<KarafInstance>();
+
+        RecordingPool(int size) {
+            super(karafHome, new File(workDir, "pool"), newConfig(size), null);
+        }
+
+        @Override
+        void launch(KarafInstance instance) throws IOException {
+            synchronized (launched) {
+                launched.add(instance);
+                launched.notifyAll();
+            }
+        }
+
+        // Replacements are launched in the background
+        void awaitLaunched(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 10000;
+            synchronized (launched) {
+                while (launched.size() < count && System.currentTimeMillis() < deadline) {
+                    launched.wait(100);
+                }
+                assertEquals(count, launched.size());
+            }
+        }
+
+        @Override
+        void destroy(KarafInstance instance) {
+            synchronized (destroyed) {
+                destroyed.add(instance);
+            }
+        }
+    }
+
+    static KarafManagedContainerConfiguration newConfig(int poolSize) {
+        KarafManagedContainerConfiguration config = new KarafManagedContainerConfiguration();
+        config.setKarafPoolSize(poolSize);
+        config.setJavaVmArguments(KarafManagedContainerConfiguration.DEFAULT_JAVAVM_ARGUMENTS);
+        return config;
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test {@link KarafReadiness}
+ */
+public class KarafReadinessTestCase {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    @Test
+    public void testRegistryAddress() throws Exception {
+        InetSocketAddress address = KarafReadiness.getRegistryAddress("service:jmx:rmi://localhost:44444/jndi/rmi://localhost:1099/karaf-root");
+        assertEquals("localhost", address.getHostName());
+        assertEquals(1099, address.getPort());
+
+        assertNull(KarafReadiness.getRegistryAddress("service:jmx:jmxmp://localhost:9999"));
+        assertNull(KarafReadiness.getRegistryAddress(null));
+    }
+
+    @Test
+    public void testLineSplitAcrossChunks() throws Exception {
+        KarafReadiness readiness = new KarafReadiness("Karaf started in \\d+s", UTF8);
+        feed(readiness, "Starting Karaf\nKaraf sta".getBytes(UTF8));
+        assertNull(readiness.await(null, 0, TimeUnit.MILLISECONDS));
+        assertEquals(0, readiness.getReadyNanos());
+
+        feed(readiness, "rted in 3s\r\n".getBytes(UTF8));
+        assertEquals("output matched: Karaf started in 3s", readiness.await(null, 0, TimeUnit.MILLISECONDS));
+        assertTrue(readiness.getReadyNanos() != 0);
+    }
+
+    @Test
+    public void testMultiByteCharacterSplitAcrossChunks() throws Exception {
+        KarafReadiness readiness = new KarafReadiness("Bereit \u00fcber \u20ac", UTF8);
+        byte[] bytes = "Bereit \u00fcber \u20ac\n".getBytes(UTF8);
+        // Split inside the three bytes of the euro sign
+        int split = bytes.length - 3;
+        feed(readiness, Arrays.copyOfRange(bytes, 0, split));
+        feed(readiness, Arrays.copyOfRange(bytes, split, bytes.length));
+        assertEquals("output matched: Bereit \u00fcber \u20ac", readiness.await(null, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testProcessCharset() throws Exception {
+        KarafReadiness readiness = new KarafReadiness("Gr\u00f6\u00dfe", Charset.forName("ISO-8859-1"));
+        feed(readiness, "Gr\u00f6\u00dfe\n".getBytes("ISO-8859-1"));
+        assertEquals("output matched: Gr\u00f6\u00dfe", readiness.await(null, 0, TimeUnit.MILLISECONDS));
+
+        assertEquals(Charset.forName("ISO-8859-1"), KarafInstance.getProcessCharset(Arrays.asList("java", "-Dfile.encoding=ISO-8859-1")));
+        assertEquals(Charset.defaultCharset(), KarafInstance.getProcessCharset(Arrays.asList("java", "-Dfile.encoding=unknown")));
+    }
+
+    @Test
+    public void testTerminated() throws Exception {
+        // The last line is matched even without a line separator
+        KarafReadiness readiness = new KarafReadiness("ready", UTF8);
+        feed(readiness, "ready".getBytes(UTF8));
+        readiness.onTerminated();
+        assertEquals("output matched: ready", readiness.await(null, 0, TimeUnit.MILLISECONDS));
+
+        readiness = new KarafReadiness("ready", UTF8);
+        feed(readiness, "Error occurred during initialization of VM\n".getBytes(UTF8));
+        readiness.onTerminated();
+        assertEquals(KarafReadiness.TERMINATED, readiness.await(null, 0, TimeUnit.MILLISECONDS));
+
+        readiness = new KarafReadiness(null, UTF8);
+        readiness.onTerminated();
+        assertEquals(KarafReadiness.TERMINATED, readiness.await(null, 0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPortOpen() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        try {
+            String serviceURL = "service:jmx:rmi://localhost:1/jndi/rmi://localhost:" + socket.getLocalPort() + "/karaf-root";
+            KarafReadiness readiness = new KarafReadiness(null, UTF8);
+            String reason = readiness.await(serviceURL, 5, TimeUnit.SECONDS);
+            assertEquals("port open: " + KarafReadiness.getRegistryAddress(serviceURL), reason);
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static void feed(KarafReadiness readiness, byte[] bytes) {
+        // Pass the bytes at an offset, as the output pump does with its chunks
+        byte[] chunk = new byte[bytes.length + 4];
+        System.arraycopy(bytes, 0, chunk, 2, bytes.length);
+        readiness.onOutput(chunk, 2, bytes.length);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.StringWriter;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the export of {@link KarafResourceMonitor} with fixed samples and markers
+ */
+public class KarafResourceMonitorTestCase {
+
+    private KarafResourceMonitor monitor;
+
+    @Before
+    public void setUp() {
+        // No connection is needed for samples that are added directly
+        monitor = new KarafResourceMonitor(null, 3);
+        // Dropped, only three samples are retained
+        monitor.addSample(new long[] { 100, 1000, 2000, 300, 1, 5, 40, 42, 20, 5000000, 250, 1500 });
+        monitor.addMarker(150, "start a");
+        // Loads are thousandths, a negative value is not provided by the JVM
+        monitor.addSample(new long[] { 200, 1100, 2000, 310, 2, 7, 41, 42, 21, 6000000, 500, -1 });
+        monitor.addMarker(300, "end \"a\"");
+        monitor.addSample(new long[] { 300, 1200, 2100, 320, 2, 7, -1, -1, -1, -1, -1, 2000 });
+        monitor.addSample(new long[] { 400, 1300, 2100, 330, 3, 9, 43, 43, 22, 7000000, 0, 1250 });
+        monitor.addMarker(450, "tab\there");
+    }
+
+    @Test
+    public void testCSV() throws Exception {
+        StringWriter writer = new StringWriter();
+        monitor.writeCSV(writer);
+
+        String empty = ",,,,,,,,,,,,";
+        String expected = "timeMillis,heapUsed,heapCommitted,nonHeapUsed,gcCount,gcTimeMillis,threadCount,peakThreadCount,"
+                + "daemonThreadCount,processCpuTimeNanos,processCpuLoad,systemLoadAverage,marker\n"
+                + "150" + empty + "\"start a\"\n"
+                + "200,1100,2000,310,2,7,41,42,21,6000000,0.5,,\n"
+                + "300" + empty + "\"end \"\"a\"\"\"\n"
+                + "300,1200,2100,320,2,7,,,,,,2.0,\n"
+                + "400,1300,2100,330,3,9,43,43,22,7000000,0.0,1.25,\n"
+                + "450" + empty + "\"tab\there\"\n";
+        assertEquals(expected, writer.toString());
+    }
+
+    @Test
+    public void testJSON() throws Exception {
+        StringWriter writer = new StringWriter();
+        monitor.writeJSON(writer);
+
+        String expected = "{\n"
+                + "  \"columns\": [\"timeMillis\", \"heapUsed\", \"heapCommitted\", \"nonHeapUsed\", \"gcCount\", \"gcTimeMillis\", \"threadCount\", "
+                + "\"peakThreadCount\", \"daemonThreadCount\", \"processCpuTimeNanos\", \"processCpuLoad\", \"systemLoadAverage\"],\n"
+                + "  \"droppedSamples\": 1,\n"
+                + "  \"samples\": [\n"
+                + "    [200, 1100, 2000, 310, 2, 7, 41, 42, 21, 6000000, 0.5, null],\n"
+                + "    [300, 1200, 2100, 320, 2, 7, null, null, null, null, null, 2.0],\n"
+                + "    [400, 1300, 2100, 330, 3, 9, 43, 43, 22, 7000000, 0.0, 1.25]\n"
+                + "  ],\n"
+                + "  \"markers\": [\n"
+                + "    {\"timeMillis\": 150, \"label\": \"start a\"},\n"
+                + "    {\"timeMillis\": 300, \"label\": \"end \\\"a\\\"\"},\n"
+                + "    {\"timeMillis\": 450, \"label\": \"tab\\u0009here\"}\n"
+                + "  ]\n"
+                + "}\n";
+        assertEquals(expected, writer.toString());
+    }
+
+    @Test
+    public void testEmpty() throws Exception {
+        StringWriter writer = new StringWriter();
+        new KarafResourceMonitor(null, 3).writeJSON(writer);
+        assertEquals("{\n  \"columns\": [\"timeMillis\", \"heapUsed\", \"heapCommitted\", \"nonHeapUsed\", \"gcCount\", \"gcTimeMillis\", "
+                + "\"threadCount\", \"peakThreadCount\", \"daemonThreadCount\", \"processCpuTimeNanos\", \"processCpuLoad\", \"systemLoadAverage\"],\n"
+                + "  \"droppedSamples\": 0,\n  \"samples\": [\n  ],\n  \"markers\": [\n  ]\n}\n", writer.toString());
+    }
+}
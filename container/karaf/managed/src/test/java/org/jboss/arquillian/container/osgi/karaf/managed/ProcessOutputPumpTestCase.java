@@ -0,0 +1,162 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.container.osgi.karaf.managed;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Test {@link ProcessOutputPump}
+ */
+public class ProcessOutputPumpTestCase {
+
+    @Test
+    public void testSlowSinkDropsOldestOutput() throws Exception {
+        // Lines with their own offset, so that every part of the output can be told apart
+        StringBuilder builder = new StringBuilder();
+        while (builder.length() < 10050) {
+            builder.append(String.format("%05d\n", builder.length()));
+        }
+        String data = builder.toString();
+        assertEquals(10050, data.length());
+
+        BlockingSink sink = new BlockingSink();
+        ProcessOutputPump.TailSink tail = new ProcessOutputPump.TailSink(256);
+        GatedInput input = new GatedInput(data.getBytes("US-ASCII"), 100, sink.started);
+        ProcessOutputPump pump = new ProcessOutputPump("Test", input, Arrays.<ProcessOutputPump.Sink> asList(sink, tail), null, 1000);
+        pump.start();
+
+        // The sink blocks on the first 100 bytes while the rest overflows the 1000 byte buffer
+        assertTrue(input.exhausted.await(10, TimeUnit.SECONDS));
+        sink.release.countDown();
+        assertTrue(pump.awaitCompletion(10, TimeUnit.SECONDS));
+
+        assertEquals(10050 - 100 - 1000, pump.getDroppedBytes());
+        String expected = data.substring(0, 100) + "\n[... 8950 bytes of output dropped ...]\n" + data.substring(9050);
+        assertEquals(expected, sink.getOutput());
+
+        // The retained 1000 bytes start at offset 50 of the buffer and wrap around its end
+        assertEquals(4, sink.writes);
+        assertEquals(data.substring(10050 - 256), tail.getTail());
+
+        // Flushed when the buffer drained after the first chunk and after the last, and on close
+        assertEquals(3, sink.flushes);
+        assertTrue(sink.closed);
+    }
+
+    @Test
+    public void testTailSinkWrapsAround() throws Exception {
+        ProcessOutputPump.TailSink tail = new ProcessOutputPump.TailSink(8);
+        tail.write("abcdef".getBytes("US-ASCII"), 0, 6);
+        assertEquals("abcdef", tail.getTail());
+        tail.write("xghijk".getBytes("US-ASCII"), 1, 5);
+        assertEquals("defghijk", tail.getTail());
+        tail.write("0123456789".getBytes("US-ASCII"), 0, 10);
+        assertEquals("23456789", tail.getTail());
+    }
+
+    /**
+     * Returns the data in small reads and holds back everything after the first read until the sink has started
+     */
+    static class GatedInput extends InputStream {
+
+        final CountDownLatch exhausted = new CountDownLatch(1);
+        private final byte[] data;
+        private final int maxRead;
+        private final CountDownLatch gate;
+        private int pos;
+
+        GatedInput(byte[] data, int maxRead, CountDownLatch gate) {
+            this.data = data;
+            this.maxRead = maxRead;
+            this.gate = gate;
+        }
+
+        @Override
+        public int read() {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public int read(byte[] buf, int off, int len) {
+            if (pos > 0) {
+                try {
+                    gate.await();
+                } catch (InterruptedException ex) {
+                    return -1;
+                }
+            }
+            if (pos == data.length) {
+                exhausted.countDown();
+                return -1;
+            }
+            int num = Math.min(Math.min(len, maxRead), data.length - pos);
+            System.arraycopy(data, pos, buf, off, num);
+            pos += num;
+            return num;
+        }
+    }
+
+    /**
+     * Blocks the first write until it is released
+     */
+    static class BlockingSink implements ProcessOutputPump.Sink {
+
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        volatile int writes;
+        volatile int flushes;
+        volatile boolean closed;
+
+        @Override
+        public void write(byte[] buf, int off, int len) {
+            synchronized (this) {
+                output.write(buf, off, len);
+                writes++;
+            }
+            started.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        synchronized String getOutput() throws Exception {
+            return output.toString("US-ASCII");
+        }
+    }
+}
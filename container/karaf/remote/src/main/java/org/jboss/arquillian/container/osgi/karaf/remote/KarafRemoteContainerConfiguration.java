@@ -31,6 +31,31 @@ public class KarafRemoteContainerConfiguration extends JMXContainerConfiguration
     public static final String DEFAULT_JMX_USERNAME = "karaf";
     public static final String DEFAULT_JMX_PASSWORD = "karaf";
 
+    private String karafFeatures;
+    private String karafFeatureRepositories;
+
+    /**
+     * @return a comma separated list of features, given as name or name/version, installed when the container starts
+     */
+    public String getKarafFeatures() {
+        return karafFeatures;
+    }
+
+    public void setKarafFeatures(String karafFeatures) {
+        this.karafFeatures = karafFeatures;
+    }
+
+    /**
+     * @return a comma separated list of feature repository URIs that are added before the features are installed
+     */
+    public String getKarafFeatureRepositories() {
+        return karafFeatureRepositories;
+    }
+
+    public void setKarafFeatureRepositories(String karafFeatureRepositories) {
+        this.karafFeatureRepositories = karafFeatureRepositories;
+    }
+
     @Override
     public void validate() throws ConfigurationException {
         super.validate();
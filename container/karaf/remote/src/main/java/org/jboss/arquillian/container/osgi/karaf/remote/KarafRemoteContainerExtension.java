@@ -18,6 +18,7 @@ package org.jboss.arquillian.container.osgi.karaf.remote;
 
 import org.jboss.arquillian.container.osgi.DeploymentObserver;
 import org.jboss.arquillian.container.osgi.OSGiApplicationArchiveProcessor;
+import org.jboss.arquillian.container.osgi.metrics.ContainerMetricsObserver;
 import org.jboss.arquillian.container.spi.client.container.DeployableContainer;
 import org.jboss.arquillian.container.test.spi.client.deployment.ApplicationArchiveProcessor;
 import org.jboss.arquillian.core.spi.LoadableExtension;
@@ -35,6 +36,7 @@ public class KarafRemoteContainerExtension implements LoadableExtension {
         builder.service(DeployableContainer.class, KarafRemoteDeployableContainer.class);
         builder.service(ApplicationArchiveProcessor.class, OSGiApplicationArchiveProcessor.class);
         builder.observer(DeploymentObserver.class);
+        builder.observer(ContainerMetricsObserver.class);
     }
 
 }
@@ -16,17 +16,15 @@
  */
 package org.jboss.arquillian.container.osgi.karaf.remote;
 
-import org.jboss.arquillian.container.osgi.jmx.JMXDeployableContainer;
+import org.jboss.arquillian.container.osgi.karaf.KarafDeployableContainer;
+import org.jboss.arquillian.container.osgi.karaf.KarafFeaturesProvisioner;
+import org.jboss.arquillian.container.osgi.metrics.Phase;
 import org.jboss.arquillian.container.spi.client.container.LifecycleException;
 
-import org.osgi.jmx.framework.BundleStateMBean;
-import org.osgi.jmx.framework.FrameworkMBean;
-import org.osgi.jmx.framework.ServiceStateMBean;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.management.MBeanServerConnection;
-import javax.management.ObjectName;
 
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
@@ -42,9 +40,9 @@ import java.util.concurrent.TimeoutException;
  * @author mbasovni@redhat.com
  */
 public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfiguration> extends
-        JMXDeployableContainer<T> {
+        KarafDeployableContainer<T> {
 
-    //private KarafRemoteContainerConfiguration config;
+    private KarafRemoteContainerConfiguration config;
 
     static final Logger logger = LoggerFactory.getLogger(KarafRemoteDeployableContainer.class.getPackage().getName());
 
@@ -58,7 +56,7 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
     @Override
     public void setup(T config) {
         super.setup(config);
-        //this.config = config;
+        this.config = config;
     }
 
     @Override
@@ -67,6 +65,9 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
         // to verify if the container is running, along with any other necessary
         // validations.
 
+        long startNanos = System.nanoTime();
+        startMetrics();
+
         MBeanServerConnection mbeanServer = null;
 
         // Try to connect to an already running server
@@ -78,27 +79,18 @@ public class KarafRemoteDeployableContainer<T extends KarafRemoteContainerConfig
         }
 
         try {
-            // Get the FrameworkMBean
-            ObjectName oname = new ObjectName("osgi.core:type=framework,*");
-            frameworkMBean = getMBeanProxy(mbeanServer, oname, FrameworkMBean.class, 30, TimeUnit.SECONDS);
-
-            // Get the BundleStateMBean
-            oname = new ObjectName("osgi.core:type=bundleState,*");
-            bundleStateMBean = getMBeanProxy(mbeanServer, oname, BundleStateMBean.class, 30, TimeUnit.SECONDS);
-
-            // Get the ServiceStateMBean
-            oname = new ObjectName("osgi.core:type=serviceState,*");
-            serviceStateMBean = getMBeanProxy(mbeanServer, oname, ServiceStateMBean.class, 30, TimeUnit.SECONDS);
+            // Get the Framework, BundleState and ServiceState MBeans
+            lookupOSGiMBeans(mbeanServer, 30, TimeUnit.SECONDS);
 
-            // Install the arquillian bundle to become active
-            installArquillianBundle();
-
-            // Await the arquillian bundle to become active
-            awaitArquillianBundleActive(30, TimeUnit.SECONDS);
+            // Install the arquillian bundle and the configured features
+            installArquillianBundleAndFeatures(KarafFeaturesProvisioner.parseList(config.getKarafFeatureRepositories()),
+                    KarafFeaturesProvisioner.parseList(config.getKarafFeatures()));
 
             // Await bootsrap complete services
             awaitBootstrapCompleteServices();
 
+            getMetrics().recordSince(Phase.CONTAINER_START, null, startNanos);
+
         } catch (RuntimeException rte) {
             throw rte;
         } catch (Exception ex) {
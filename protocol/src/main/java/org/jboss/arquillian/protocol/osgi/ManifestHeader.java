@@ -0,0 +1,278 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.protocol.osgi;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.VersionRange;
+
+/**
+ * Parses OSGi manifest headers such as Import-Package and Export-Package.
+ *
+ * A header is a comma separated list of clauses. A clause has one or more paths followed by attributes
+ * (<code>name=value</code>) and directives (<code>name:=value</code>), separated by semicolons. Values may be
+ * quoted and a quoted value may contain commas and semicolons. The header is read in a single pass.
+ */
+public final class ManifestHeader {
+
+    private ManifestHeader() {
+    }
+
+    /**
+     * Split a header into its clauses, without interpreting them
+     */
+    public static String[] split(String value) {
+        List<String> clauses = new ArrayList<String>();
+        int start = 0;
+        boolean quoted = false;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char ch = value.charAt(i);
+            if (quoted && ch == '\\') {
+                i++;
+            } else if (ch == '"') {
+                quoted = !quoted;
+            } else if (ch == ',' && !quoted) {
+                clauses.add(value.substring(start, i));
+                start = i + 1;
+            }
+        }
+        clauses.add(value.substring(start));
+        // Like String.split, trailing empty clauses are dropped
+        int size = clauses.size();
+        while (size > 0 && clauses.get(size - 1).length() == 0) {
+            clauses.remove(--size);
+        }
+        return clauses.toArray(new String[size]);
+    }
+
+    /**
+     * Parse a header into clauses
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static List<Clause> parse(String value) {
+        List<Clause> clauses = new ArrayList<Clause>();
+        if (value == null)
+            return clauses;
+
+        Clause clause = new Clause();
+        StringBuilder token = new StringBuilder();
+        String name = null;
+        boolean directive = false;
+        boolean quoted = false;
+        boolean wasQuoted = false;
+        int length = value.length();
+        for (int i = 0; i <= length; i++) {
+            char ch = i < length ? value.charAt(i) : ',';
+            if (quoted) {
+                if (ch == '\\' && i + 1 < length) {
+                    token.append(value.charAt(++i));
+                } else if (ch == '"') {
+                    quoted = false;
+                } else if (i == length) {
+                    throw new IllegalArgumentException("Unterminated quote in: " + value);
+                } else {
+                    token.append(ch);
+                }
+            } else if (ch == '"') {
+                if (name == null || token.toString().trim().length() > 0)
+                    throw new IllegalArgumentException("Unexpected quote at " + i + " in: " + value);
+                token.setLength(0);
+                quoted = true;
+                wasQuoted = true;
+            } else if (ch == '=' && name == null) {
+                directive = token.length() > 0 && token.charAt(token.length() - 1) == ':';
+                name = token.substring(0, token.length() - (directive ? 1 : 0)).trim();
+                if (name.length() == 0)
+                    throw new IllegalArgumentException("Missing parameter name at " + i + " in: " + value);
+                token.setLength(0);
+                wasQuoted = false;
+            } else if (ch == ';' || ch == ',') {
+                String text = wasQuoted ? token.toString() : token.toString().trim();
+                if (name != null) {
+                    if (directive) {
+                        clause.directives.put(name, text);
+                    } else {
+                        clause.attributes.put(name, text);
+                    }
+                } else if (text.length() > 0) {
+                    if (!clause.attributes.isEmpty() || !clause.directives.isEmpty())
+                        throw new IllegalArgumentException("Path after parameters at " + i + " in: " + value);
+                    clause.paths.add(text);
+                }
+                if (ch == ',') {
+                    if (!clause.paths.isEmpty()) {
+                        clauses.add(clause);
+                    } else if (!clause.attributes.isEmpty() || !clause.directives.isEmpty()) {
+                        throw new IllegalArgumentException("Clause without path at " + i + " in: " + value);
+                    }
+                    clause = new Clause();
+                }
+                token.setLength(0);
+                name = null;
+                directive = false;
+                wasQuoted = false;
+            } else {
+                token.append(ch);
+            }
+        }
+        return clauses;
+    }
+
+    /**
+     * Merge Import-Package clauses into one clause per package.
+     *
+     * The version ranges of a package that is imported more than once are intersected. A package is only
+     * optional when all its imports are optional. Other attributes and directives of the first import win.
+     *
+     * @throws IllegalArgumentException if the version ranges of a package do not overlap
+     */
+    public static List<Clause> mergeImports(Collection<Clause> clauses) {
+        Map<String, Clause> merged = new LinkedHashMap<String, Clause>();
+        for (Clause clause : clauses) {
+            for (String path : clause.paths) {
+                Clause single = clause.withPath(path);
+                Clause existing = merged.get(path);
+                merged.put(path, existing != null ? mergeImport(existing, single) : single);
+            }
+        }
+        return new ArrayList<Clause>(merged.values());
+    }
+
+    private static Clause mergeImport(Clause first, Clause second) {
+        Clause result = first.withPath(first.paths.get(0));
+        for (Map.Entry<String, String> entry : second.attributes.entrySet()) {
+            if (!result.attributes.containsKey(entry.getKey())) {
+                result.attributes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (Map.Entry<String, String> entry : second.directives.entrySet()) {
+            if (!result.directives.containsKey(entry.getKey())) {
+                result.directives.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        String firstVersion = first.attributes.get(Constants.VERSION_ATTRIBUTE);
+        String secondVersion = second.attributes.get(Constants.VERSION_ATTRIBUTE);
+        if (firstVersion != null && secondVersion != null && !firstVersion.equals(secondVersion)) {
+            VersionRange range = new VersionRange(firstVersion).intersection(new VersionRange(secondVersion));
+            if (range.isEmpty())
+                throw new IllegalArgumentException("Conflicting version ranges for " + first.paths.get(0) + ": " + firstVersion + " and "
+                        + secondVersion);
+            result.attributes.put(Constants.VERSION_ATTRIBUTE, range.toString());
+        }
+
+        if (!Constants.RESOLUTION_OPTIONAL.equals(first.directives.get(Constants.RESOLUTION_DIRECTIVE))
+                || !Constants.RESOLUTION_OPTIONAL.equals(second.directives.get(Constants.RESOLUTION_DIRECTIVE))) {
+            result.directives.remove(Constants.RESOLUTION_DIRECTIVE);
+        }
+        return result;
+    }
+
+    /**
+     * @return the clauses as a header value
+     */
+    public static String toString(Collection<Clause> clauses) {
+        StringBuilder builder = new StringBuilder();
+        for (Clause clause : clauses) {
+            if (builder.length() > 0) {
+                builder.append(',');
+            }
+            clause.appendTo(builder);
+        }
+        return builder.toString();
+    }
+
+    /**
+     * A header clause with its paths, attributes and directives
+     */
+    public static final class Clause {
+
+        private final List<String> paths = new ArrayList<String>();
+        private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+        private final Map<String, String> directives = new LinkedHashMap<String, String>();
+
+        public List<String> getPaths() {
+            return Collections.unmodifiableList(paths);
+        }
+
+        public Map<String, String> getAttributes() {
+            return Collections.unmodifiableMap(attributes);
+        }
+
+        public Map<String, String> getDirectives() {
+            return Collections.unmodifiableMap(directives);
+        }
+
+        public String getAttribute(String name) {
+            return attributes.get(name);
+        }
+
+        public String getDirective(String name) {
+            return directives.get(name);
+        }
+
+        private Clause withPath(String path) {
+            Clause clause = new Clause();
+            clause.paths.add(path);
+            clause.attributes.putAll(attributes);
+            clause.directives.putAll(directives);
+            return clause;
+        }
+
+        private void appendTo(StringBuilder builder) {
+            for (int i = 0; i < paths.size(); i++) {
+                builder.append(i > 0 ? ";" : "").append(paths.get(i));
+            }
+            for (Map.Entry<String, String> entry : attributes.entrySet()) {
+                builder.append(';').append(entry.getKey()).append('=');
+                appendValue(builder, entry.getValue());
+            }
+            for (Map.Entry<String, String> entry : directives.entrySet()) {
+                builder.append(';').append(entry.getKey()).append(":=");
+                appendValue(builder, entry.getValue());
+            }
+        }
+
+        private static void appendValue(StringBuilder builder, String value) {
+            boolean plain = value.length() > 0;
+            for (int i = 0; i < value.length() && plain; i++) {
+                char ch = value.charAt(i);
+                plain = Character.isLetterOrDigit(ch) || ch == '_' || ch == '-' || ch == '.';
+            }
+            if (plain) {
+                builder.append(value);
+            } else {
+                builder.append('"').append(value.replace("\\", "\\\\").replace("\"", "\\\"")).append('"');
+            }
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder builder = new StringBuilder();
+            appendTo(builder);
+            return builder.toString();
+        }
+    }
+}
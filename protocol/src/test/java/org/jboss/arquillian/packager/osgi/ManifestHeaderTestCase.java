@@ -0,0 +1,105 @@
+/*
+ * JBoss, Home of Professional Open Source
+ * Copyright 2009, Red Hat Middleware LLC, and individual contributors
+ * by the @authors tag. See the copyright.txt in the distribution for a
+ * full listing of individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.arquillian.packager.osgi;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.jboss.arquillian.protocol.osgi.ManifestHeader;
+import org.jboss.arquillian.protocol.osgi.ManifestHeader.Clause;
+import org.junit.Test;
+
+/**
+ * Test {@link ManifestHeader}
+ */
+public class ManifestHeaderTestCase {
+
+    @Test
+    public void testSplit() {
+        assertArrayEquals(new String[] { "org.jboss.arquillian.junit;extra=\"A,B,C\"", "org.osgi.framework;version=\"[1.0.0,2.0.0)\"" },
+                ManifestHeader.split("org.jboss.arquillian.junit;extra=\"A,B,C\",org.osgi.framework;version=\"[1.0.0,2.0.0)\""));
+        assertArrayEquals(new String[] { "a", "b;x=\"q\\\",\"" }, ManifestHeader.split("a,b;x=\"q\\\",\","));
+    }
+
+    @Test
+    public void testParse() {
+        List<Clause> clauses = ManifestHeader.parse("org.acme.a;org.acme.b;version=\"[1.0,2.0)\";resolution:=optional, org.acme.c ;extra=\"x;y,z\"");
+        assertEquals(2, clauses.size());
+        Clause first = clauses.get(0);
+        assertEquals(Arrays.asList("org.acme.a", "org.acme.b"), first.getPaths());
+        assertEquals("[1.0,2.0)", first.getAttribute("version"));
+        assertEquals("optional", first.getDirective("resolution"));
+        assertNull(first.getAttribute("resolution"));
+        Clause second = clauses.get(1);
+        assertEquals(Arrays.asList("org.acme.c"), second.getPaths());
+        assertEquals("x;y,z", second.getAttribute("extra"));
+        assertEquals("org.acme.c;extra=\"x;y,z\"", second.toString());
+
+        for (String invalid : new String[] { "a;version=\"1.0", ";version=1.0", "a;=1.0", "a;version=1.0;b" }) {
+            try {
+                ManifestHeader.parse(invalid);
+                fail("IllegalArgumentException expected: " + invalid);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testMergeImports() {
+        List<Clause> clauses = new ArrayList<Clause>();
+        clauses.addAll(ManifestHeader.parse("org.acme.a;version=\"[1.0,3.0)\";resolution:=optional,org.acme.b;resolution:=optional"));
+        clauses.addAll(ManifestHeader.parse("org.acme.a;version=\"[2.0,4.0)\",org.acme.b;resolution:=optional,org.acme.c"));
+        clauses.addAll(ManifestHeader.parse("org.acme.c"));
+        List<Clause> merged = ManifestHeader.mergeImports(clauses);
+        assertEquals("org.acme.a;version=\"[2.0.0,3.0.0)\",org.acme.b;resolution:=optional,org.acme.c", ManifestHeader.toString(merged));
+
+        try {
+            ManifestHeader.mergeImports(ManifestHeader.parse("org.acme.a;version=\"[1.0,2.0)\",org.acme.a;version=\"[2.0,3.0)\""));
+            fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException ex) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testLargeHeader() {
+        int count = 10000;
+        StringBuilder header = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            header.append(i > 0 ? "," : "").append("org.acme.pkg").append(i).append(";version=\"[1.").append(i).append(",2.0)\";extra=\"a,b\"");
+        }
+        String value = header.toString();
+
+        // A single pass takes well under a second, the bound only catches a return to rescanning the header
+        long startNanos = System.nanoTime();
+        assertEquals(count, ManifestHeader.split(value).length);
+        List<Clause> merged = ManifestHeader.mergeImports(ManifestHeader.parse(value + "," + value));
+        long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+        assertEquals(count, merged.size());
+        assertEquals("a,b", merged.get(count - 1).getAttribute("extra"));
+        assertTrue("Split, parsed and merged " + count + " clauses in " + millis + "ms", millis < 10000);
+    }
+}